@@ -4,7 +4,7 @@ import android.content.Context;
 
 import com.tonnfccard.callback.NfcCallback;
 import com.tonnfccard.helpers.CardApiInterface;
-import com.tonnfccard.nfc.NfcApduRunner;
+import com.tonnfccard.smartcard.ApduRunner;
 import com.tonnfccard.smartcard.TonWalletAppletStates;
 import com.tonnfccard.smartcard.RAPDU;
 
@@ -52,11 +52,11 @@ public final class CardActivationApi extends TonWalletApi {
   private static final String TAG = "CardActivationNfcApi";
 
 
-  public CardActivationApi(NfcApduRunner apduRunner) {
+  public CardActivationApi(ApduRunner apduRunner) {
     super(apduRunner);
   }
 
-  public CardActivationApi(Context activity, NfcApduRunner apduRunner) {
+  public CardActivationApi(Context activity, ApduRunner apduRunner) {
     super(activity, apduRunner);
   }
 
@@ -347,31 +347,31 @@ public final class CardActivationApi extends TonWalletApi {
 
   private boolean selectTonWalletAppletAndAndVerifyHashOfCommonSecret(byte[] commonSecret) throws Exception {
     String hashFromCard = BYTE_ARR_HELPER.hex(selectTonWalletAppletAndGetHashOfEncryptedCommonSecret().getData());
-    String commonSecretHash = BYTE_ARR_HELPER.hex(digest.digest(commonSecret));
+    String commonSecretHash = BYTE_ARR_HELPER.hex(HASH_HELPER.sha256(commonSecret));
     return hashFromCard.equals(commonSecretHash);
   }
 
   private boolean verifyHashOfEncryptedCommonSecret(byte[] password, byte[] commonSecret, byte[] initialVector) throws Exception {
     String hashFromCard = BYTE_ARR_HELPER.hex(getHashOfEncryptedCommonSecret().getData());
     IvParameterSpec ivSpec = new IvParameterSpec(initialVector);
-    byte[] passwordHash = digest.digest(password);
+    byte[] passwordHash = HASH_HELPER.sha256(password);
     SecretKeySpec skeySpec = new SecretKeySpec(BYTE_ARR_HELPER.bSub(passwordHash, 0, 16), "AES");
     Cipher cipher = Cipher.getInstance("AES/CBC/NoPadding");
     cipher.init(Cipher.ENCRYPT_MODE, skeySpec, ivSpec);
     byte[] encryptedCommonSecret = cipher.doFinal(commonSecret);
-    String encryptedCommonSecretHash = BYTE_ARR_HELPER.hex(digest.digest(encryptedCommonSecret));
+    String encryptedCommonSecretHash = BYTE_ARR_HELPER.hex(HASH_HELPER.sha256(encryptedCommonSecret));
     return hashFromCard.equals(encryptedCommonSecretHash);
   }
 
   private boolean verifyHashOfEncryptedPassword(byte[] password, byte[] initialVector) throws Exception {
     String hashFromCard = BYTE_ARR_HELPER.hex(getHashOfEncryptedPassword().getData());
     IvParameterSpec ivSpec = new IvParameterSpec(initialVector);
-    byte[] passwordHash = digest.digest(password);
+    byte[] passwordHash = HASH_HELPER.sha256(password);
     SecretKeySpec skeySpec = new SecretKeySpec(BYTE_ARR_HELPER.bSub(passwordHash, 0, 16), "AES");
     Cipher cipher = Cipher.getInstance("AES/CBC/NoPadding");
     cipher.init(Cipher.ENCRYPT_MODE, skeySpec, ivSpec);
     byte[] encryptedPassword = cipher.doFinal(password);
-    String encryptedPasswordHash = BYTE_ARR_HELPER.hex(digest.digest(encryptedPassword));
+    String encryptedPasswordHash = BYTE_ARR_HELPER.hex(HASH_HELPER.sha256(encryptedPassword));
     return hashFromCard.equals(encryptedPasswordHash);
   }
 
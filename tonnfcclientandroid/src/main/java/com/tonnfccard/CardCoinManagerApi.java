@@ -13,7 +13,6 @@ import androidx.fragment.app.FragmentManager;
 
 import com.tonnfccard.callback.NfcCallback;
 import com.tonnfccard.helpers.CardApiInterface;
-import com.tonnfccard.nfc.NfcApduRunner;
 import com.tonnfccard.smartcard.ApduRunner;
 import com.tonnfccard.smartcard.RAPDU;
 import com.tonnfccard.smartcard.CAPDU;
@@ -65,11 +64,11 @@ public final class CardCoinManagerApi extends TonWalletApi {
   private static final String TAG = "CardCoinManagerNfcApi";
 
 
-  public CardCoinManagerApi(Context activity, NfcApduRunner apduRunner) {
+  public CardCoinManagerApi(Context activity, ApduRunner apduRunner) {
     super(activity, apduRunner);
   }
 
-  public CardCoinManagerApi(NfcApduRunner apduRunner) {
+  public CardCoinManagerApi(ApduRunner apduRunner) {
     super(apduRunner);
   }
 
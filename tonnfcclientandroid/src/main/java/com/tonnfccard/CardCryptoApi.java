@@ -5,7 +5,6 @@ import android.util.Log;
 
 import com.tonnfccard.callback.NfcCallback;
 import com.tonnfccard.helpers.CardApiInterface;
-import com.tonnfccard.nfc.NfcApduRunner;
 import com.tonnfccard.smartcard.ApduRunner;
 import com.tonnfccard.smartcard.RAPDU;
 import com.tonnfccard.utils.ByteArrayUtil;
@@ -46,11 +45,11 @@ import static com.tonnfccard.smartcard.TonWalletAppletApduCommands.getVerifyPinA
 public final class CardCryptoApi extends TonWalletApi {
   private static final String TAG = "CardCryptoNfcApi";
 
-  public CardCryptoApi(Context activity, NfcApduRunner apduRunner) {
+  public CardCryptoApi(Context activity, ApduRunner apduRunner) {
     super(activity, apduRunner);
   }
 
-  public CardCryptoApi(NfcApduRunner apduRunner) {
+  public CardCryptoApi(ApduRunner apduRunner) {
     super(apduRunner);
   }
 
@@ -534,43 +533,33 @@ public final class CardCryptoApi extends TonWalletApi {
   }
 
   private RAPDU verifyPin(byte[] pinBytes) throws Exception {
-    reselectKeyForHmac();
-    byte[] sault = getSaultBytes();
-    return apduRunner.sendAPDU(getVerifyPinAPDU(pinBytes, sault));
+    return sendApduWithHmac((sault, hmacHelper) -> getVerifyPinAPDU(pinBytes, sault, hmacHelper));
   }
 
   private RAPDU verifyPinAndSignForDefaultHdPath(byte[] dataForSigning, byte[] pinBytes) throws Exception {
-    reselectKeyForHmac();
+    sendApduWithHmac((sault, hmacHelper) -> getVerifyPinAPDU(pinBytes, sault, hmacHelper));
     byte[] sault = getSaultBytes();
-    apduRunner.sendAPDU(getVerifyPinAPDU(pinBytes, sault));
-    sault = getSaultBytes();
-    RAPDU rapdu = apduRunner.sendAPDU(getSignShortMessageWithDefaultPathAPDU(dataForSigning, sault));
+    RAPDU rapdu = apduRunner.sendAPDU(getSignShortMessageWithDefaultPathAPDU(dataForSigning, sault, getApduHmacHelper()));
     if (rapdu == null || rapdu.getData() == null || rapdu.getData().length != SIG_LEN) throw new Exception(ERROR_MSG_SIG_RESPONSE_LEN_INCORRECT);
     return rapdu;
   }
 
   private RAPDU signForDefaultPath(byte[] dataForSigning) throws Exception {
-    reselectKeyForHmac();
-    byte[] sault = getSaultBytes();
-    RAPDU rapdu = apduRunner.sendAPDU(getSignShortMessageWithDefaultPathAPDU(dataForSigning, sault));
+    RAPDU rapdu = sendApduWithHmac((sault, hmacHelper) -> getSignShortMessageWithDefaultPathAPDU(dataForSigning, sault, hmacHelper));
     if (rapdu == null || rapdu.getData() == null || rapdu.getData().length != SIG_LEN) throw new Exception(ERROR_MSG_SIG_RESPONSE_LEN_INCORRECT);
     return rapdu;
   }
 
   private RAPDU verifyPinAndSign(byte[] dataForSigning, byte[] ind, byte[] pinBytes) throws Exception {
-    reselectKeyForHmac();
+    sendApduWithHmac((sault, hmacHelper) -> getVerifyPinAPDU(pinBytes, sault, hmacHelper));
     byte[] sault = getSaultBytes();
-    apduRunner.sendAPDU(getVerifyPinAPDU(pinBytes, sault));
-    sault = getSaultBytes();
-    RAPDU rapdu = apduRunner.sendAPDU(getSignShortMessageAPDU(dataForSigning, ind, sault));
+    RAPDU rapdu = apduRunner.sendAPDU(getSignShortMessageAPDU(dataForSigning, ind, sault, getApduHmacHelper()));
     if (rapdu == null || rapdu.getData() == null || rapdu.getData().length != SIG_LEN) throw new Exception(ERROR_MSG_SIG_RESPONSE_LEN_INCORRECT);
     return rapdu;
   }
 
   private RAPDU sign(byte[] dataForSigning, byte[] ind) throws Exception {
-    reselectKeyForHmac();
-    byte[] sault = getSaultBytes();
-    RAPDU rapdu = apduRunner.sendAPDU(getSignShortMessageAPDU(dataForSigning, ind, sault));
+    RAPDU rapdu = sendApduWithHmac((sault, hmacHelper) -> getSignShortMessageAPDU(dataForSigning, ind, sault, hmacHelper));
     if (rapdu == null || rapdu.getData() == null || rapdu.getData().length != SIG_LEN) throw new Exception(ERROR_MSG_SIG_RESPONSE_LEN_INCORRECT);
     return rapdu;
   }
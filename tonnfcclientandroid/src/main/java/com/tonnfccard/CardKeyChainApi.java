@@ -5,9 +5,9 @@ import android.util.Log;
 
 import com.tonnfccard.callback.NfcCallback;
 import com.tonnfccard.helpers.CardApiInterface;
-import com.tonnfccard.nfc.NfcApduRunner;
 import com.tonnfccard.smartcard.TonWalletAppletStates;
 import com.tonnfccard.smartcard.ApduRunner;
+import com.tonnfccard.smartcard.KeyChunkTransferPlan;
 import com.tonnfccard.smartcard.RAPDU;
 
 import org.json.JSONArray;
@@ -81,7 +81,6 @@ import static com.tonnfccard.smartcard.TonWalletAppletApduCommands.getInitiateCh
 import static com.tonnfccard.smartcard.TonWalletAppletApduCommands.getInitiateDeleteOfKeyAPDU;
 import static com.tonnfccard.smartcard.TonWalletAppletApduCommands.getNumberOfKeysAPDU;
 import static com.tonnfccard.smartcard.TonWalletAppletApduCommands.getResetKeyChainAPDU;
-import static com.tonnfccard.smartcard.TonWalletAppletApduCommands.getSendKeyChunkAPDU;
 
 
 /**
@@ -98,11 +97,11 @@ public final class CardKeyChainApi extends TonWalletApi {
 
   public static final String TAG = "CardKeyChainNfcApi";
 
-  public CardKeyChainApi(Context activity, NfcApduRunner apduRunner) {
+  public CardKeyChainApi(Context activity, ApduRunner apduRunner) {
     super(activity, apduRunner);
   }
 
-  public CardKeyChainApi(NfcApduRunner apduRunner) {
+  public CardKeyChainApi(ApduRunner apduRunner) {
     super(apduRunner);
   }
 
@@ -723,15 +722,11 @@ public final class CardKeyChainApi extends TonWalletApi {
   }
 
   private RAPDU resetKeyChain() throws Exception {
-    reselectKeyForHmac();
-    byte[] sault = getSaultBytes();
-    return apduRunner.sendAPDU(getResetKeyChainAPDU(sault));
+    return sendApduWithHmac((sault, hmacHelper) -> getResetKeyChainAPDU(sault, hmacHelper));
   }
 
   private int getNumberOfKeys() throws Exception {
-    reselectKeyForHmac();
-    byte[] sault = getSaultBytes();
-    RAPDU rapdu = apduRunner.sendAPDU(getNumberOfKeysAPDU(sault));
+    RAPDU rapdu = sendApduWithHmac((sault, hmacHelper) -> getNumberOfKeysAPDU(sault, hmacHelper));
     if (rapdu == null || rapdu.getData() == null || rapdu.getData().length != GET_NUMBER_OF_KEYS_LE)
       throw new Exception(ERROR_MSG_GET_NUMBER_OF_KEYS_RESPONSE_LEN_INCORRECT);
     byte[] response = rapdu.getData();
@@ -742,33 +737,25 @@ public final class CardKeyChainApi extends TonWalletApi {
   }
 
   private void checkKeyHmacConsistency(byte[] keyHmac) throws Exception {
-    reselectKeyForHmac();
-    byte[] sault = getSaultBytes();
-    apduRunner.sendAPDU(getCheckKeyHmacConsistencyAPDU(keyHmac, sault));
+    sendApduWithHmac((sault, hmacHelper) -> getCheckKeyHmacConsistencyAPDU(keyHmac, sault, hmacHelper));
   }
 
   private void checkAvailableVolForNewKey(short keySize) throws Exception {
     TonWalletAppletStates appletState = getTonAppletState();
     if (appletState != TonWalletAppletStates.PERSONALIZED)
       throw new Exception(ERROR_MSG_APPLET_IS_NOT_PERSONALIZED + appletState.getDescription() + ".");
-    reselectKeyForHmac();
-    byte[] sault = getSaultBytes();
-    apduRunner.sendAPDU(getCheckAvailableVolForNewKeyAPDU(keySize, sault));
+    sendApduWithHmac((sault, hmacHelper) -> getCheckAvailableVolForNewKeyAPDU(keySize, sault, hmacHelper));
   }
 
   private void initiateChangeOfKey(byte[] index) throws Exception {
     TonWalletAppletStates appletState = getTonAppletState();
     if (appletState != TonWalletAppletStates.PERSONALIZED)
       throw new Exception(ERROR_MSG_APPLET_IS_NOT_PERSONALIZED + appletState.getDescription() + ".");
-    reselectKeyForHmac();
-    byte[] sault = getSaultBytes();
-    apduRunner.sendAPDU(getInitiateChangeOfKeyAPDU(index, sault));
+    sendApduWithHmac((sault, hmacHelper) -> getInitiateChangeOfKeyAPDU(index, sault, hmacHelper));
   }
 
   private JSONObject getIndexAndLenOfKeyInKeyChain(byte[] keyHmac) throws Exception {
-    reselectKeyForHmac();
-    byte[] sault = getSaultBytes();
-    RAPDU rapdu =  apduRunner.sendAPDU(getGetIndexAndLenOfKeyInKeyChainAPDU(keyHmac, sault));
+    RAPDU rapdu =  sendApduWithHmac((sault, hmacHelper) -> getGetIndexAndLenOfKeyInKeyChainAPDU(keyHmac, sault, hmacHelper));
     if (rapdu == null || rapdu.getData() == null || rapdu.getData().length != GET_KEY_INDEX_IN_STORAGE_AND_LEN_LE)
       throw new Exception(ERROR_MSG_GET_KEY_INDEX_IN_STORAGE_AND_LEN_RESPONSE_LEN_INCORRECT);
     byte[] response = rapdu.getData();
@@ -825,9 +812,7 @@ public final class CardKeyChainApi extends TonWalletApi {
     TonWalletAppletStates appletState = getTonAppletState();
     if (appletState !=  TonWalletAppletStates.PERSONALIZED)
       throw new Exception(ERROR_MSG_APPLET_IS_NOT_PERSONALIZED + appletState.getDescription() + ".");
-    reselectKeyForHmac();
-    byte[] sault = getSaultBytes();
-    RAPDU rapdu = apduRunner.sendAPDU(getInitiateDeleteOfKeyAPDU(index, sault));
+    RAPDU rapdu = sendApduWithHmac((sault, hmacHelper) -> getInitiateDeleteOfKeyAPDU(index, sault, hmacHelper));
     if (rapdu == null || rapdu.getData() == null || rapdu.getData().length != INITIATE_DELETE_KEY_LE)
       throw new Exception(ERROR_MSG_INITIATE_DELETE_KEY_RESPONSE_LEN_INCORRECT);
     rapdu.getData();
@@ -835,7 +820,7 @@ public final class CardKeyChainApi extends TonWalletApi {
 
   private int deleteKeyChunk() throws Exception {
     byte[] sault = getSaultBytes();
-    RAPDU rapdu = apduRunner.sendAPDU(getDeleteKeyChunkAPDU(sault));
+    RAPDU rapdu = apduRunner.sendAPDU(getDeleteKeyChunkAPDU(sault, getApduHmacHelper()));
     if (rapdu == null || rapdu.getData() == null || rapdu.getData().length != DELETE_KEY_CHUNK_LE)
       throw new Exception(ERROR_MSG_DELETE_KEY_CHUNK_RESPONSE_LEN_INCORRECT);
     byte[] response = rapdu.getData();
@@ -847,7 +832,7 @@ public final class CardKeyChainApi extends TonWalletApi {
 
   private int deleteKeyRecord() throws Exception {
     byte[] sault = getSaultBytes();
-    RAPDU rapdu = apduRunner.sendAPDU(getDeleteKeyRecordAPDU(sault));
+    RAPDU rapdu = apduRunner.sendAPDU(getDeleteKeyRecordAPDU(sault, getApduHmacHelper()));
     if (rapdu == null || rapdu.getData() == null || rapdu.getData().length != DELETE_KEY_RECORD_LE)
       throw new Exception(ERROR_MSG_DELETE_KEY_RECORD_RESPONSE_LEN_INCORRECT);
     byte[] response = rapdu.getData();
@@ -861,9 +846,7 @@ public final class CardKeyChainApi extends TonWalletApi {
     TonWalletAppletStates appletState = getTonAppletState();
     if (appletState != TonWalletAppletStates.DELETE_KEY_FROM_KEYCHAIN_MODE)
       throw new Exception(ERROR_MSG_APPLET_DOES_NOT_WAIT_TO_DELETE_KEY + appletState.getDescription() + ".");
-    reselectKeyForHmac();
-    byte[] sault = getSaultBytes();
-    RAPDU rapdu = apduRunner.sendAPDU(getDeleteKeyChunkNumOfPacketsAPDU(sault));
+    RAPDU rapdu = sendApduWithHmac((sault, hmacHelper) -> getDeleteKeyChunkNumOfPacketsAPDU(sault, hmacHelper));
     if (rapdu == null || rapdu.getData() == null || rapdu.getData().length  != GET_DELETE_KEY_CHUNK_NUM_OF_PACKETS_LE)
       throw new Exception(ERROR_MSG_GET_DELETE_KEY_CHUNK_NUM_OF_PACKETS_RESPONSE_LEN_INCORRECT);
     byte[] response = rapdu.getData();
@@ -877,9 +860,7 @@ public final class CardKeyChainApi extends TonWalletApi {
     TonWalletAppletStates appletState = getTonAppletState();
     if (appletState != TonWalletAppletStates.DELETE_KEY_FROM_KEYCHAIN_MODE)
       throw new Exception(ERROR_MSG_APPLET_DOES_NOT_WAIT_TO_DELETE_KEY + appletState.getDescription() + ".");
-    reselectKeyForHmac();
-    byte[] sault = getSaultBytes();
-    RAPDU rapdu = apduRunner.sendAPDU(getDeleteKeyRecordNumOfPacketsAPDU(sault));
+    RAPDU rapdu = sendApduWithHmac((sault, hmacHelper) -> getDeleteKeyRecordNumOfPacketsAPDU(sault, hmacHelper));
     if (rapdu == null || rapdu.getData() == null || rapdu.getData().length != GET_DELETE_KEY_RECORD_NUM_OF_PACKETS_LE)
       throw new Exception(ERROR_MSG_GET_DELETE_KEY_RECORD_NUM_OF_PACKETS_RESPONSE_LEN_INCORRECT);
     byte[] response = rapdu.getData();
@@ -890,9 +871,7 @@ public final class CardKeyChainApi extends TonWalletApi {
   }
 
   private int getOccupiedStorageSize() throws Exception {
-    reselectKeyForHmac();
-    byte[] sault = getSaultBytes();
-    RAPDU rapdu = apduRunner.sendAPDU(getGetOccupiedSizeAPDU(sault));
+    RAPDU rapdu = sendApduWithHmac((sault, hmacHelper) -> getGetOccupiedSizeAPDU(sault, hmacHelper));
     if (rapdu == null || rapdu.getData() == null || rapdu.getData().length != GET_OCCUPIED_SIZE_LE)
       throw new Exception(ERROR_MSG_GET_OCCUPIED_SIZE_RESPONSE_LEN_INCORRECT);
     byte[] response = rapdu.getData();
@@ -903,9 +882,7 @@ public final class CardKeyChainApi extends TonWalletApi {
   }
 
   private int getFreeStorageSize() throws Exception {
-    reselectKeyForHmac();
-    byte[] sault = getSaultBytes();
-    RAPDU rapdu = apduRunner.sendAPDU(getGetFreeSizeAPDU(sault));
+    RAPDU rapdu = sendApduWithHmac((sault, hmacHelper) -> getGetFreeSizeAPDU(sault, hmacHelper));
     if (rapdu == null || rapdu.getData() == null || rapdu.getData().length != GET_FREE_SIZE_LE)
       throw new Exception(ERROR_MSG_GET_FREE_SIZE_RESPONSE_LEN_INCORRECT);
     byte[] response = rapdu.getData();
@@ -916,9 +893,7 @@ public final class CardKeyChainApi extends TonWalletApi {
   }
 
   private byte[] getHmac(byte[] ind) throws Exception {
-    reselectKeyForHmac();
-    byte[] sault = getSaultBytes();
-    RAPDU rapdu =  apduRunner.sendAPDU(getGetHmacAPDU(ind, sault));
+    RAPDU rapdu =  sendApduWithHmac((sault, hmacHelper) -> getGetHmacAPDU(ind, sault, hmacHelper));
     if (rapdu == null || rapdu.getData() == null || rapdu.getData().length != (HMAC_SHA_SIG_SIZE + 2))
       throw new Exception(ERROR_MSG_GET_HMAC_RESPONSE_LEN_INCORRECT);
     return rapdu.getData();
@@ -934,13 +909,17 @@ public final class CardKeyChainApi extends TonWalletApi {
   }
 
   private byte[] getKeyFromKeyChain(int keyLen, byte[] ind) throws Exception {
+    return apduRunner.runWithAppletStateCache(() -> readKeyFromKeyChain(keyLen, ind));
+  }
+
+  private byte[] readKeyFromKeyChain(int keyLen, byte[] ind) throws Exception {
     byte[] key = new byte[keyLen];
     byte[] sault;
     int numberOfPackets = keyLen / DATA_PORTION_MAX_SIZE;
     short startPos = 0;
     for (int i = 0; i < numberOfPackets; i++) {
       sault = getSaultBytes();
-      RAPDU rapdu = apduRunner.sendAPDU(getGetKeyChunkAPDU(ind, startPos, sault, (byte) DATA_PORTION_MAX_SIZE));
+      RAPDU rapdu = apduRunner.sendAPDU(getGetKeyChunkAPDU(ind, startPos, sault, (byte) DATA_PORTION_MAX_SIZE, getApduHmacHelper()));
       if (rapdu == null || rapdu.getData() == null || rapdu.getData().length != DATA_PORTION_MAX_SIZE) throw new Exception(ERROR_KEY_DATA_PORTION_INCORRECT_LEN + DATA_PORTION_MAX_SIZE);
       byte[] res = rapdu.getData();
       BYTE_ARR_HELPER.arrayCopy(res, 0, key, startPos, DATA_PORTION_MAX_SIZE);
@@ -949,7 +928,7 @@ public final class CardKeyChainApi extends TonWalletApi {
     int tailLen = keyLen % DATA_PORTION_MAX_SIZE;
     if (tailLen > 0) {
       sault = getSaultBytes();
-      RAPDU rapdu = apduRunner.sendAPDU(getGetKeyChunkAPDU(ind, startPos, sault, (byte) tailLen));
+      RAPDU rapdu = apduRunner.sendAPDU(getGetKeyChunkAPDU(ind, startPos, sault, (byte) tailLen, getApduHmacHelper()));
       if (rapdu == null || rapdu.getData() == null || rapdu.getData().length != tailLen) throw new Exception(ERROR_KEY_DATA_PORTION_INCORRECT_LEN + tailLen);
       byte[] res = rapdu.getData();
       BYTE_ARR_HELPER.arrayCopy(res, 0, key, startPos, tailLen);
@@ -972,24 +951,16 @@ public final class CardKeyChainApi extends TonWalletApi {
   }
 
   private int sendKey(byte[] keyBytes, byte ins) throws Exception {
-    int numberOfPackets = keyBytes.length / DATA_PORTION_MAX_SIZE;
-    byte[] keyChunk, sault;
-    for (int i = 0; i < numberOfPackets; i++) {
-      sault = getSaultBytes();
-      keyChunk = BYTE_ARR_HELPER.bSub(keyBytes, i * DATA_PORTION_MAX_SIZE, DATA_PORTION_MAX_SIZE);
-      apduRunner.sendAPDU(getSendKeyChunkAPDU(ins, i == 0 ? (byte) 0x00 : (byte) 0x01, keyChunk, sault));
-    }
+    return apduRunner.runWithAppletStateCache(() -> sendKeyChunks(keyBytes, ins));
+  }
 
-    int tailLen = keyBytes.length % DATA_PORTION_MAX_SIZE;
-    if (tailLen > 0) {
-      sault = getSaultBytes();
-      keyChunk = BYTE_ARR_HELPER.bSub(keyBytes, numberOfPackets * DATA_PORTION_MAX_SIZE, tailLen);
-      apduRunner.sendAPDU(getSendKeyChunkAPDU(ins, numberOfPackets == 0 ? (byte) 0x00 : (byte) 0x01, keyChunk, sault));
+  private int sendKeyChunks(byte[] keyBytes, byte ins) throws Exception {
+    // hmac of all chunks is computed in advance, so between GET_SAULT and sending chunk only sault is hashed
+    KeyChunkTransferPlan plan = new KeyChunkTransferPlan(ins, keyBytes, getApduHmacHelper());
+    for (int i = 0; i < plan.size() - 1; i++) {
+      apduRunner.sendAPDU(plan.getApdu(i, getSaultBytes()));
     }
-
-    byte[] mac = HMAC_HELPER.computeMac(keyBytes);
-    sault = getSaultBytes();
-    RAPDU rapdu = apduRunner.sendAPDU(getSendKeyChunkAPDU(ins, (byte) 0x02, mac, sault));
+    RAPDU rapdu = apduRunner.sendAPDU(plan.getApdu(plan.size() - 1, getSaultBytes()));
 
     if (rapdu == null || rapdu.getData() == null || rapdu.getData().length != SEND_CHUNK_LE)
       throw new Exception(ERROR_MSG_SEND_CHUNK_RESPONSE_LEN_INCORRECT);
@@ -1003,7 +974,7 @@ public final class CardKeyChainApi extends TonWalletApi {
   private String addKeyIntoKeyChain(byte[] keyBytes) throws Exception {
     checkAvailableVolForNewKey((short) keyBytes.length);
     addKey(keyBytes);
-    return BYTE_ARR_HELPER.hex(HMAC_HELPER.computeMac(keyBytes));
+    return BYTE_ARR_HELPER.hex(getHmacHelper().computeMac(keyBytes));
   }
 
   private String changeKeyInKeyChain(byte[] newKeyBytes, byte[] macBytesOfOldKey) throws Exception {
@@ -1016,10 +987,14 @@ public final class CardKeyChainApi extends TonWalletApi {
     BYTE_ARR_HELPER.setShort(ind, 0, indVal);
     initiateChangeOfKey(ind);
     changeKey(newKeyBytes);
-    return BYTE_ARR_HELPER.hex(HMAC_HELPER.computeMac(newKeyBytes));
+    return BYTE_ARR_HELPER.hex(getHmacHelper().computeMac(newKeyBytes));
   }
 
   private Map<String, Short> getAllHmacsOfKeysFromCard() throws Exception {
+    return apduRunner.runWithAppletStateCache(this::readAllHmacsOfKeysFromCard);
+  }
+
+  private Map<String, Short> readAllHmacsOfKeysFromCard() throws Exception {
     Map<String, Short> hmacs = new LinkedHashMap<>();
     int numOfKeys = getNumberOfKeys();
     byte[] ind = new byte[2];
@@ -10,6 +10,8 @@ import androidx.appcompat.app.AlertDialog;
 import com.tonnfccard.callback.NfcCallback;
 import com.tonnfccard.helpers.CardApiInterface;
 import com.tonnfccard.helpers.ExceptionHelper;
+import com.tonnfccard.smartcard.ApduRunner;
+import com.tonnfccard.smartcard.CancellationToken;
 
 import java.util.List;
 
@@ -29,6 +31,7 @@ public class CardTask extends AsyncTask<Void, Void, String> {
     private final List<String> cardArgs;
     private final CardApiInterface<List<String>> cardOp;
     private final TonWalletApi tonWalletApi;
+    private final CancellationToken cancellationToken = new CancellationToken();
 
 
     public CardTask(TonWalletApi tonWalletApi, NfcCallback callBack, List<String> cardArgs, CardApiInterface<List<String>> cardOp, boolean showDialog) {
@@ -62,6 +65,7 @@ public class CardTask extends AsyncTask<Void, Void, String> {
     }
 
     private void cancel() {
+        cancellationToken.cancel();
         this.cancel(true);
     }
 
@@ -78,12 +82,16 @@ public class CardTask extends AsyncTask<Void, Void, String> {
     protected String doInBackground(Void... voids) {
         System.out.println("Start doInBackground");
         String json = null;
+        ApduRunner apduRunner = tonWalletApi.getApduRunner();
         try{
-            json = cardOp.accept(cardArgs);
+            // token is bound to this thread only, so cancelling this task does not stop operations of other tasks
+            json = apduRunner != null ? apduRunner.runWithCancellationToken(cancellationToken, () -> cardOp.accept(cardArgs))
+                    : cardOp.accept(cardArgs);
             System.out.println(json);
         } catch (Exception e){
             e.printStackTrace();
-            if(nfcCallback != null) {
+            // Interruption by user is already reported to callback from the dialog
+            if(nfcCallback != null && !cancellationToken.isCancelled()) {
                 EXCEPTION_HELPER.handleException(e, nfcCallback, TAG);
             }
         }
@@ -5,10 +5,11 @@ import android.util.Log;
 
 import com.tonnfccard.callback.NfcCallback;
 import com.tonnfccard.helpers.CardApiInterface;
-import com.tonnfccard.nfc.NfcApduRunner;
 import com.tonnfccard.smartcard.ApduRunner;
+import com.tonnfccard.smartcard.CAPDU;
 import com.tonnfccard.smartcard.RAPDU;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
@@ -36,11 +37,11 @@ import static com.tonnfccard.smartcard.TonWalletAppletApduCommands.getGetRecover
 public final class RecoveryDataApi extends TonWalletApi {
   private static final String TAG = "RecoveryDataApi";
 
-  public RecoveryDataApi(Context activity,  NfcApduRunner apduRunner) {
+  public RecoveryDataApi(Context activity,  ApduRunner apduRunner) {
     super(activity, apduRunner);
   }
 
-  public RecoveryDataApi(NfcApduRunner apduRunner) {
+  public RecoveryDataApi(ApduRunner apduRunner) {
     super(apduRunner);
   }
 
@@ -242,25 +243,25 @@ public final class RecoveryDataApi extends TonWalletApi {
    * Save recovery data into applet.
    */
   private void addRecoveryData(byte[] recoveryData) throws Exception {
+    List<CAPDU> apduList = new ArrayList<>();
     int numberOfPackets = recoveryData.length / DATA_RECOVERY_PORTION_MAX_SIZE;
     for (int i = 0; i < numberOfPackets; i++) {
-      System.out.println("packet#" + i);
       byte[] chunk = BYTE_ARR_HELPER.bSub(recoveryData, i * DATA_RECOVERY_PORTION_MAX_SIZE, DATA_RECOVERY_PORTION_MAX_SIZE);
       byte p1 = i == 0 ? (byte) 0x00 : (byte) 0x01;
-      apduRunner.sendTonWalletAppletAPDU(getAddRecoveryDataPartAPDU(p1, chunk));
+      apduList.add(getAddRecoveryDataPartAPDU(p1, chunk));
     }
 
     int tailLen = recoveryData.length % DATA_RECOVERY_PORTION_MAX_SIZE;
 
     if (tailLen > 0) {
-      System.out.println("tail#");
       byte[] chunk = BYTE_ARR_HELPER.bSub(recoveryData, numberOfPackets * DATA_RECOVERY_PORTION_MAX_SIZE, tailLen);
       byte p1 = numberOfPackets == 0 ? (byte) 0x00 : (byte) 0x01;
-      apduRunner.sendTonWalletAppletAPDU(getAddRecoveryDataPartAPDU(p1, chunk));
+      apduList.add(getAddRecoveryDataPartAPDU(p1, chunk));
     }
 
-    byte[] hash = digest.digest(recoveryData);
-    apduRunner.sendTonWalletAppletAPDU(getAddRecoveryDataPartAPDU((byte) 0x02, hash));
+    byte[] hash = HASH_HELPER.sha256(recoveryData);
+    apduList.add(getAddRecoveryDataPartAPDU((byte) 0x02, hash));
+    apduRunner.sendTonWalletAppletAPDUBatch(apduList).getResponsesOrThrow();
   }
 
   /**
@@ -296,6 +297,10 @@ public final class RecoveryDataApi extends TonWalletApi {
   }
 
   private byte[] getRecoveryData() throws Exception {
+    return apduRunner.runWithAppletStateCache(this::readRecoveryData);
+  }
+
+  private byte[] readRecoveryData() throws Exception {
     int len = getRecoveryDataLen();
     byte[] recoveryData = new byte[len];
     int numberOfPackets = len / DATA_RECOVERY_PORTION_MAX_SIZE;
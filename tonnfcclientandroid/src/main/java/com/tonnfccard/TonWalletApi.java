@@ -2,16 +2,20 @@ package com.tonnfccard;
 
 import android.content.Context;
 import android.content.Intent;
-import android.security.keystore.KeyProperties;
-import android.security.keystore.KeyProtection;
 import android.util.Log;
 
 import com.tonnfccard.callback.NfcCallback;
 import com.tonnfccard.helpers.CardApiInterface;
 import com.tonnfccard.helpers.ExceptionHelper;
+import com.tonnfccard.helpers.HashHelper;
 import com.tonnfccard.helpers.JsonHelper;
+import com.tonnfccard.helpers.KeyProvider;
 import com.tonnfccard.helpers.StringHelper;
-import com.tonnfccard.nfc.NfcApduRunner;
+import com.tonnfccard.smartcard.ApduRunner;
+import com.tonnfccard.smartcard.CAPDU;
+import com.tonnfccard.smartcard.CardIdCache;
+import com.tonnfccard.smartcard.CardSession;
+import com.tonnfccard.smartcard.TonWalletAppletApduCommands;
 import com.tonnfccard.smartcard.TonWalletAppletStates;
 import com.tonnfccard.helpers.HmacHelper;
 import com.tonnfccard.smartcard.RAPDU;
@@ -20,16 +24,9 @@ import com.tonnfccard.utils.ByteArrayUtil;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
-import java.security.KeyStore;
-import java.security.MessageDigest;
-import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Enumeration;
 import java.util.List;
 
-import javax.crypto.SecretKey;
-import javax.crypto.spec.SecretKeySpec;
-
 import static com.tonnfccard.TonWalletConstants.*;
 import static com.tonnfccard.helpers.ResponsesConstants.ERROR_MSG_COMMON_SECRET_LEN_INCORRECT;
 import static com.tonnfccard.helpers.ResponsesConstants.ERROR_MSG_COMMON_SECRET_NOT_HEX;
@@ -55,13 +52,11 @@ public class TonWalletApi {
   protected static final JsonHelper JSON_HELPER = JsonHelper.getInstance();
   protected static final ByteArrayUtil BYTE_ARR_HELPER = ByteArrayUtil.getInstance();
   protected static final ExceptionHelper EXCEPTION_HELPER = ExceptionHelper.getInstance();
+  protected static final HashHelper HASH_HELPER = HashHelper.getInstance();
 
   protected static HmacHelper HMAC_HELPER = HmacHelper.getInstance();
 
-  static MessageDigest digest;
-  static String currentSerialNumber = EMPTY_SERIAL_NUMBER;
-
-  public void setApduRunner(NfcApduRunner apduRunner) {
+  public void setApduRunner(ApduRunner apduRunner) {
     this.apduRunner = apduRunner;
   }
 
@@ -75,26 +70,26 @@ public class TonWalletApi {
 
   protected static Context activity;
 
-  protected NfcApduRunner apduRunner;
+  protected ApduRunner apduRunner;
 
-  public NfcApduRunner getApduRunner() {
+  public ApduRunner getApduRunner() {
     return apduRunner;
   }
 
-  static {
-    try {
-      digest = MessageDigest.getInstance("SHA-256");
-    } catch (Exception e) {
-      e.printStackTrace();
-    }
+  /**
+   * Open session of several operations with the current card, see ApduRunner.openCardSession. All API objects sharing the same
+   * ApduRunner run inside it until it is closed.
+   */
+  public CardSession openCardSession() {
+    return apduRunner.openCardSession();
   }
 
-  TonWalletApi(Context activity, NfcApduRunner apduRunner) {
+  TonWalletApi(Context activity, ApduRunner apduRunner) {
     TonWalletApi.activity = activity;
     this.apduRunner = apduRunner;
   }
 
-  TonWalletApi(NfcApduRunner apduRunner) {
+  TonWalletApi(ApduRunner apduRunner) {
     this.apduRunner = apduRunner;
   }
 
@@ -467,12 +462,48 @@ public class TonWalletApi {
    * Get serial number of currently active key (card). In fact this is a serialNumber of the card with which your app communicated last time.
    */
   public String getCurrentSerialNumberAndGetJson() throws Exception {
-    return JSON_HELPER.createResponseJson(currentSerialNumber);
+    return JSON_HELPER.createResponseJson(getCurrentSerialNumber());
   }
 
   public void setCurrentSerialNumber(final String currentSerialNumber) {
-    TonWalletApi.currentSerialNumber = currentSerialNumber;
-    HMAC_HELPER.setCurrentSerialNumber(currentSerialNumber);
+    getHmacHelper().setCurrentSerialNumber(currentSerialNumber);
+  }
+
+  String getCurrentSerialNumber() {
+    return getHmacHelper().getCurrentSerialNumber();
+  }
+
+  /**
+   * HMAC context of the card: own context of apduRunner if it has one, otherwise shared context.
+   */
+  HmacHelper getHmacHelper() {
+    HmacHelper runnerHmacHelper = getRunnerHmacHelper();
+    return runnerHmacHelper != null ? runnerHmacHelper : HMAC_HELPER;
+  }
+
+  /**
+   * HMAC context signing APDU commands: own context of apduRunner if it has one, otherwise shared context of APDU builders.
+   */
+  HmacHelper getApduHmacHelper() {
+    HmacHelper runnerHmacHelper = getRunnerHmacHelper();
+    return runnerHmacHelper != null ? runnerHmacHelper : TonWalletAppletApduCommands.getHmacHelper();
+  }
+
+  // Drop key of serial number loaded from keystore by HMAC contexts over key providers of this card (it is dropped for HMAC
+  // contexts of other card readers over the same providers too)
+  private void invalidateKeyForHmac(String serialNumber) {
+    HmacHelper hmacHelper = getHmacHelper();
+    hmacHelper.invalidateKey(serialNumber);
+    HmacHelper apduHmacHelper = getApduHmacHelper();
+    if (apduHmacHelper != hmacHelper) apduHmacHelper.invalidateKey(serialNumber);
+  }
+
+  private KeyProvider getKeyProvider() {
+    return getHmacHelper().getKeyProvider();
+  }
+
+  private HmacHelper getRunnerHmacHelper() {
+    return apduRunner == null ? null : apduRunner.getHmacHelper();
   }
 
   void resolveJson(String json, NfcCallback callback){
@@ -481,35 +512,96 @@ public class TonWalletApi {
   }
 
   void createKeyForHmac(byte[] password, byte[] commonSecret, String serialNumber) throws Exception {
-    byte[] key = HMAC_HELPER.computeMac(digest.digest(password), commonSecret);
-    final SecretKey hmacSha256Key = new SecretKeySpec(key, 0, key.length, KeyProperties.KEY_ALGORITHM_HMAC_SHA256);
-    final KeyStore keyStore = KeyStore.getInstance("AndroidKeyStore");
-    String keyAlias = HmacHelper.HMAC_KEY_ALIAS + serialNumber;
-    Log.d(TAG, "keyAlias = " + keyAlias);
-    keyStore.load(null);
-    if (keyStore.containsAlias(keyAlias)) keyStore.deleteEntry(keyAlias);
-    keyStore.setEntry(keyAlias,
-      new KeyStore.SecretKeyEntry(hmacSha256Key),
-      new KeyProtection.Builder(KeyProperties.PURPOSE_SIGN)
-        .setBlockModes(KeyProperties.BLOCK_MODE_GCM)
-        .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_NONE)
-        .build());
+    HmacHelper hmacHelper = getHmacHelper();
+    byte[] key = hmacHelper.computeMac(HASH_HELPER.sha256(password), commonSecret);
+    Log.d(TAG, "keyAlias = " + HmacHelper.HMAC_KEY_ALIAS + serialNumber);
+    try {
+      hmacHelper.getKeyProvider().setKey(serialNumber, key);
+    } finally {
+      invalidateKeyForHmac(serialNumber);
+    }
     setCurrentSerialNumber(serialNumber);
   }
 
+  /**
+   * Select HMAC key of the card in the field. If card identifier is bound to serial number in CardIdCache, its key is selected
+   * right away without reading serial number of the card and looking up the key in keystore. The binding is verified lazily:
+   * if card rejects HMAC (8F03) or the key is not in keystore anymore, the binding is dropped and the key is resolved again by
+   * serial number of the card (see sendApduWithHmac). Serial number is read once per card session (unless prefetch or other
+   * operation has read it already).
+   */
   void reselectKeyForHmac() throws Exception {
-    String serialNumber = STR_HELPER.makeDigitalString(getSerialNumber());
+    CardSession session = apduRunner.getCardSession();
+    if (session != null && session.getHmacKeySerialNumber() != null) {
+      setCurrentSerialNumber(session.getHmacKeySerialNumber());
+      return;
+    }
+    CardIdCache cardIdCache = apduRunner.getCardIdCache();
+    byte[] cardId = cardIdCache == null ? null : apduRunner.getCardId();
+    String cachedSerialNumber = cardId == null ? null : cardIdCache.getSerialNumber(cardId);
+    if (cachedSerialNumber != null) {
+      setCurrentSerialNumber(cachedSerialNumber);
+      if (session != null) session.setHmacKeySerialNumber(cachedSerialNumber);
+      return;
+    }
+    byte[] serialNumberBytes = apduRunner.getCardSerialNumber();
+    if (serialNumberBytes == null) serialNumberBytes = apduRunner.getPrefetchedSerialNumber();
+    if (serialNumberBytes == null) serialNumberBytes = getSerialNumber();
+    String serialNumber = STR_HELPER.makeDigitalString(serialNumberBytes);
     selectKeyForHmac(serialNumber);
+    if (cardId != null) cardIdCache.put(cardId, serialNumber);
+    if (session != null) session.setHmacKeySerialNumber(serialNumber);
+  }
+
+  interface HmacApduBuilder {
+    CAPDU build(byte[] sault, HmacHelper hmacHelper) throws Exception;
+  }
+
+  /**
+   * Select HMAC key of the card and send APDU signed by it. If card rejects HMAC (8F03), key resolved for the card is dropped
+   * (see ApduRunner), so it is resolved from keystore again and the command is sent once more with new sault. The same is done
+   * if the key bound to the card is not in keystore anymore.
+   */
+  RAPDU sendApduWithHmac(HmacApduBuilder builder) throws Exception {
+    reselectKeyForHmac();
+    long hmacRejections = apduRunner.getHmacRejectionCount();
+    try {
+      return apduRunner.sendAPDU(builder.build(getSaultBytes(), getApduHmacHelper()));
+    } catch (Exception e) {
+      if (apduRunner.getHmacRejectionCount() == hmacRejections) {
+        if (!ERROR_MSG_KEY_FOR_HMAC_DOES_NOT_EXIST_IN_ANDROID_KEYSTORE.equals(e.getMessage())) throw e;
+        Log.d(TAG, "Key for hmac bound to the card does not exist, resolve key for hmac again.");
+        dropKeyBindingForHmac();
+      }
+      else Log.d(TAG, "Apdu hmac is rejected, resolve key for hmac again.");
+      invalidateKeyForHmac(getCurrentSerialNumber());
+      reselectKeyForHmac();
+      return apduRunner.sendAPDU(builder.build(getSaultBytes(), getApduHmacHelper()));
+    }
+  }
+
+  // Drop key for hmac bound to the card in the field (by card identifier and in card session)
+  private void dropKeyBindingForHmac() {
+    CardIdCache cardIdCache = apduRunner.getCardIdCache();
+    if (cardIdCache != null) cardIdCache.remove(apduRunner.getCardId());
+    CardSession session = apduRunner.getCardSession();
+    if (session != null) session.setHmacKeySerialNumber(null);
   }
 
   private void deleteKeyForHmac(String serialNumber) throws Exception {
-    final KeyStore keyStore = KeyStore.getInstance("AndroidKeyStore");
-    keyStore.load(null);
-    String keyAlias = HmacHelper.HMAC_KEY_ALIAS + serialNumber;
-    Log.d(TAG, "delete keyAlias  = " + keyAlias);
-    if (keyStore.containsAlias(keyAlias))  {
-      keyStore.deleteEntry(keyAlias);
-      if (currentSerialNumber.equals(serialNumber)) {
+    Log.d(TAG, "delete keyAlias  = " + HmacHelper.HMAC_KEY_ALIAS + serialNumber);
+    boolean deleted;
+    try {
+      deleted = getKeyProvider().deleteKey(serialNumber);
+    } finally {
+      invalidateKeyForHmac(serialNumber);
+    }
+    if (deleted)  {
+      CardSession session = apduRunner.getCardSession();
+      if (session != null && serialNumber.equals(session.getHmacKeySerialNumber())) session.setHmacKeySerialNumber(null);
+      CardIdCache cardIdCache = apduRunner.getCardIdCache();
+      if (cardIdCache != null) cardIdCache.removeSerialNumber(serialNumber);
+      if (getCurrentSerialNumber().equals(serialNumber)) {
         setCurrentSerialNumber(EMPTY_SERIAL_NUMBER);
       }
     }
@@ -517,33 +609,18 @@ public class TonWalletApi {
   }
 
   private void selectKeyForHmac(String serialNumber) throws Exception {
-    final KeyStore keyStore = KeyStore.getInstance("AndroidKeyStore");
-    keyStore.load(null);
-    String keyAlias = HmacHelper.HMAC_KEY_ALIAS + serialNumber;
-    if (keyStore.containsAlias(keyAlias))  {
+    if (getKeyProvider().containsKey(serialNumber))  {
       setCurrentSerialNumber(serialNumber);
     }
     else throw new Exception(ERROR_MSG_KEY_FOR_HMAC_DOES_NOT_EXIST_IN_ANDROID_KEYSTORE);
   }
 
   private boolean isKeyForHmacExist(String serialNumber) throws Exception {
-    final KeyStore keyStore = KeyStore.getInstance("AndroidKeyStore");
-    keyStore.load(null);
-    String keyAlias = HmacHelper.HMAC_KEY_ALIAS + serialNumber;
-    return keyStore.containsAlias(keyAlias);
+    return getKeyProvider().containsKey(serialNumber);
   }
 
   private List<String> getAllSerialNumbers() throws Exception {
-    final KeyStore keyStore = KeyStore.getInstance("AndroidKeyStore");
-    keyStore.load(null);
-    Enumeration<String> aliases = keyStore.aliases();
-    List<String> serialNumbers = new ArrayList<>();
-    while (aliases.hasMoreElements()) {
-      String alias = aliases.nextElement();
-      if (alias.startsWith(HmacHelper.HMAC_KEY_ALIAS))
-        serialNumbers.add(alias.substring(HmacHelper.HMAC_KEY_ALIAS.length()));
-    }
-    return serialNumbers;
+    return getKeyProvider().getSerialNumbers();
   }
 
   private String getSaultHex() throws Exception {
@@ -557,12 +634,18 @@ public class TonWalletApi {
   }
 
   byte[] getSerialNumber() throws Exception {
+    CardSession session = apduRunner.getCardSession();
+    byte[] serialNumber = session == null ? null : session.getSerialNumber();
+    if (serialNumber != null) return serialNumber;
     RAPDU rapdu = apduRunner.sendTonWalletAppletAPDU(GET_SERIAL_NUMBER_APDU);
     if (rapdu == null || rapdu.getData() == null || rapdu.getData().length != SERIAL_NUMBER_SIZE) throw new Exception(ERROR_MSG_GET_SERIAL_NUMBER_RESPONSE_LEN_INCORRECT);
+    if (session != null) session.setSerialNumber(rapdu.getData());
     return rapdu.getData();
   }
 
   byte[] getSaultBytes() throws Exception {
+    byte[] prefetchedSault = apduRunner.takePrefetchedSault();
+    if (prefetchedSault != null) return prefetchedSault;
     RAPDU rapdu = getSault();
     if (rapdu == null || rapdu.getData() == null || rapdu.getData().length != SAULT_LENGTH) throw new Exception(ERROR_MSG_SAULT_RESPONSE_LEN_INCORRECT);
     return rapdu.getData();
@@ -0,0 +1,87 @@
+package com.tonnfccard.helpers;
+
+import android.security.keystore.KeyProperties;
+import android.security.keystore.KeyProtection;
+
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import static com.tonnfccard.helpers.HmacHelper.ANDROID_KEYSTORE;
+import static com.tonnfccard.helpers.HmacHelper.HMAC_KEY_ALIAS;
+import static com.tonnfccard.helpers.ResponsesConstants.ERROR_MSG_ERR_IS_NOT_SEC_KEY_ENTRY;
+
+/**
+ * Keys living in Android keystore under aliases HMAC_KEY_ALIAS + serial number. Key material can not be exported from keystore,
+ * it may be used only for signing.
+ */
+public class AndroidKeyStoreKeyProvider implements KeyProvider {
+  private static AndroidKeyStoreKeyProvider instance;
+
+  public static AndroidKeyStoreKeyProvider getInstance() {
+    if (instance == null) instance = new AndroidKeyStoreKeyProvider();
+    return instance;
+  }
+
+  private AndroidKeyStoreKeyProvider() {}
+
+  @Override
+  public void setKey(String serialNumber, byte[] key) throws Exception {
+    final SecretKey hmacSha256Key = new SecretKeySpec(key, 0, key.length, KeyProperties.KEY_ALGORITHM_HMAC_SHA256);
+    final KeyStore keyStore = loadKeyStore();
+    String keyAlias = HMAC_KEY_ALIAS + serialNumber;
+    if (keyStore.containsAlias(keyAlias)) keyStore.deleteEntry(keyAlias);
+    keyStore.setEntry(keyAlias,
+      new KeyStore.SecretKeyEntry(hmacSha256Key),
+      new KeyProtection.Builder(KeyProperties.PURPOSE_SIGN)
+        .setBlockModes(KeyProperties.BLOCK_MODE_GCM)
+        .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_NONE)
+        .build());
+  }
+
+  @Override
+  public SecretKey getKey(String serialNumber) throws Exception {
+    final KeyStore keyStore = loadKeyStore();
+    String keyAlias = HMAC_KEY_ALIAS + serialNumber;
+    if (!keyStore.containsAlias(keyAlias)) return null;
+    KeyStore.Entry entry = keyStore.getEntry(keyAlias, null);
+    if (!(entry instanceof KeyStore.SecretKeyEntry)) throw new Exception(ERROR_MSG_ERR_IS_NOT_SEC_KEY_ENTRY);
+    return ((KeyStore.SecretKeyEntry) entry).getSecretKey();
+  }
+
+  @Override
+  public boolean containsKey(String serialNumber) throws Exception {
+    return loadKeyStore().containsAlias(HMAC_KEY_ALIAS + serialNumber);
+  }
+
+  @Override
+  public boolean deleteKey(String serialNumber) throws Exception {
+    final KeyStore keyStore = loadKeyStore();
+    String keyAlias = HMAC_KEY_ALIAS + serialNumber;
+    if (!keyStore.containsAlias(keyAlias)) return false;
+    keyStore.deleteEntry(keyAlias);
+    return true;
+  }
+
+  @Override
+  public List<String> getSerialNumbers() throws Exception {
+    Enumeration<String> aliases = loadKeyStore().aliases();
+    List<String> serialNumbers = new ArrayList<>();
+    while (aliases.hasMoreElements()) {
+      String alias = aliases.nextElement();
+      if (alias.startsWith(HMAC_KEY_ALIAS))
+        serialNumbers.add(alias.substring(HMAC_KEY_ALIAS.length()));
+    }
+    return serialNumbers;
+  }
+
+  private KeyStore loadKeyStore() throws Exception {
+    final KeyStore keyStore = KeyStore.getInstance(ANDROID_KEYSTORE);
+    keyStore.load(null);
+    return keyStore;
+  }
+}
@@ -0,0 +1,46 @@
+package com.tonnfccard.helpers;
+
+import androidx.annotation.RestrictTo;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import static com.tonnfccard.helpers.ResponsesConstants.ERROR_MSG_DATA_TO_HASH_IS_NULL;
+
+/**
+ * SHA-256 hashing shared by all API classes. MessageDigest is not thread safe, so each thread gets its own instance, it allows to
+ * work with several cards from different threads at the same time without locking.
+ */
+@RestrictTo(RestrictTo.Scope.LIBRARY)
+public class HashHelper {
+  public static final String SHA_256_ALG = "SHA-256";
+
+  private static HashHelper instance;
+
+  private final ThreadLocal<MessageDigest> sha256Digest = new ThreadLocal<MessageDigest>() {
+    @Override
+    protected MessageDigest initialValue() {
+      try {
+        return MessageDigest.getInstance(SHA_256_ALG);
+      } catch (NoSuchAlgorithmException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+  };
+
+  public static HashHelper getInstance() {
+    if (instance == null) {
+      instance = new HashHelper();
+    }
+    return instance;
+  }
+
+  private HashHelper(){}
+
+  public byte[] sha256(byte[] data) {
+    if (data == null) throw new IllegalArgumentException(ERROR_MSG_DATA_TO_HASH_IS_NULL);
+    MessageDigest digest = sha256Digest.get();
+    digest.reset();
+    return digest.digest(data);
+  }
+}
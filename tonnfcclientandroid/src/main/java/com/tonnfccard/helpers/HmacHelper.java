@@ -1,8 +1,13 @@
 package com.tonnfccard.helpers;
 
-import java.security.KeyStore;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.crypto.Mac;
+import javax.crypto.SecretKey;
 import javax.crypto.spec.SecretKeySpec;
 
 import static com.tonnfccard.TonWalletConstants.DEFAULT_SERIAL_NUMBER;
@@ -11,10 +16,10 @@ import static com.tonnfccard.TonWalletConstants.SHA_HASH_SIZE;
 import static com.tonnfccard.helpers.ResponsesConstants.ERROR_MSG_CURRENT_SERIAL_NUMBER_IS_NOT_SET_IN_ANDROID_KEYSTORE;
 import static com.tonnfccard.helpers.ResponsesConstants.ERROR_MSG_ERR_CURRENT_SERIAL_NUMBER_IS_NULL;
 import static com.tonnfccard.helpers.ResponsesConstants.ERROR_MSG_ERR_DATA_BYTES_FOR_HMAC_SHA256_IS_NULL;
-import static com.tonnfccard.helpers.ResponsesConstants.ERROR_MSG_ERR_IS_NOT_SEC_KEY_ENTRY;
 import static com.tonnfccard.helpers.ResponsesConstants.ERROR_MSG_ERR_KEY_BYTES_FOR_HMAC_SHA256_IS_NULL;
 import static com.tonnfccard.helpers.ResponsesConstants.ERROR_MSG_ERR_KEY_BYTES_FOR_HMAC_SHA256_IS_TOO_SHORT;
 import static com.tonnfccard.helpers.ResponsesConstants.ERROR_MSG_KEY_FOR_HMAC_DOES_NOT_EXIST_IN_ANDROID_KEYSTORE;
+import static com.tonnfccard.helpers.ResponsesConstants.ERROR_MSG_KEY_PROVIDER_IS_NULL;
 
 import androidx.annotation.RestrictTo;
 
@@ -31,14 +36,114 @@ public class HmacHelper {
     // serial number of currently active security card
     private String currentSerialNumber = DEFAULT_SERIAL_NUMBER;
 
+    // storage of HMAC keys, it is chosen when HmacHelper is created
+    private final KeyProvider keyProvider;
+
     private static HmacHelper hmacHelper;
 
+    // Keys loaded from key provider are shared by all HmacHelpers over this provider (each card reader has its own HmacHelper),
+    // so key created or deleted through one of them is dropped for all of them
+    private static final Map<KeyProvider, KeyCache> KEY_CACHES = Collections.synchronizedMap(new WeakHashMap<KeyProvider, KeyCache>());
+
+    private final KeyCache keyCache;
+
+    private static class KeyCache {
+        // Keys already loaded from keyProvider by serial number, they must be dropped when key of serial number is created or deleted
+        private final Map<String, KeyHandle> keyHandles = new ConcurrentHashMap<>();
+
+        // Number of invalidations, key loaded while it changed may be old one, so it is not cached
+        private final AtomicLong keyGeneration = new AtomicLong();
+    }
+
+    private static KeyCache getKeyCache(KeyProvider keyProvider) {
+        synchronized (KEY_CACHES) {
+            KeyCache keyCache = KEY_CACHES.get(keyProvider);
+            if (keyCache == null) {
+                keyCache = new KeyCache();
+                KEY_CACHES.put(keyProvider, keyCache);
+            }
+            return keyCache;
+        }
+    }
+
+    // Key loaded from keystore with Mac instance initialized by it for each thread (Mac is not thread safe)
+    private static class KeyHandle {
+        private final SecretKey key;
+        private final ThreadLocal<Mac> mac = new ThreadLocal<>();
+        private volatile Boolean cloneable = null;
+
+        KeyHandle(SecretKey key) {
+            this.key = key;
+        }
+
+        private Mac getMac() throws Exception {
+            Mac sha256_HMAC = mac.get();
+            if (sha256_HMAC == null) {
+                sha256_HMAC = Mac.getInstance(HMAC_SHA256_ALG);
+                sha256_HMAC.init(key);
+                mac.set(sha256_HMAC);
+            }
+            return sha256_HMAC;
+        }
+
+        // Separate Mac in initial state, cloning skips key setup (not every provider supports it)
+        Mac newMac() throws Exception {
+            if (cloneable != Boolean.FALSE) {
+                try {
+                    Mac clone = (Mac) getMac().clone();
+                    cloneable = true;
+                    return clone;
+                } catch (CloneNotSupportedException e) {
+                    cloneable = false;
+                }
+            }
+            Mac sha256_HMAC = Mac.getInstance(HMAC_SHA256_ALG);
+            sha256_HMAC.init(key);
+            return sha256_HMAC;
+        }
+
+        boolean isCloneable() throws Exception {
+            if (cloneable == null) newMac();
+            return cloneable;
+        }
+
+        byte[] computeMac(byte[] data) throws Exception {
+            Mac sha256_HMAC = getMac();
+            try {
+                return sha256_HMAC.doFinal(data);
+            } catch (Exception e) {
+                mac.remove();
+                throw e;
+            }
+        }
+    }
+
     public static HmacHelper getInstance() {
-        if (hmacHelper == null) hmacHelper = new HmacHelper();
+        if (hmacHelper == null) hmacHelper = new HmacHelper(AndroidKeyStoreKeyProvider.getInstance());
         return hmacHelper;
     }
 
-    private HmacHelper(){}
+    // Separate HMAC context (with its own current serial number) for one more card reader
+    public static HmacHelper newInstance() {
+        return newInstance(AndroidKeyStoreKeyProvider.getInstance());
+    }
+
+    // Separate HMAC context taking keys from given provider (for example InMemoryKeyProvider to run on JVM)
+    public static HmacHelper newInstance(KeyProvider keyProvider) {
+        if (keyProvider == null) throw new IllegalArgumentException(ERROR_MSG_KEY_PROVIDER_IS_NULL);
+        HmacHelper newHmacHelper = new HmacHelper(keyProvider);
+        newHmacHelper.currentSerialNumber = EMPTY_SERIAL_NUMBER;
+        return newHmacHelper;
+    }
+
+    private HmacHelper(KeyProvider keyProvider) {
+        this.keyProvider = keyProvider;
+        this.keyCache = getKeyCache(keyProvider);
+    }
+
+    public KeyProvider getKeyProvider() {
+        return keyProvider;
+    }
 
     public String getCurrentSerialNumber() {
       return currentSerialNumber;
@@ -48,6 +153,19 @@ public class HmacHelper {
       this.currentSerialNumber = currentSerialNumber;
     }
 
+    // Forget key of serial number loaded from keystore, must be called after this key is created or deleted in keystore.
+    // The key is dropped for all HmacHelpers over the same key provider
+    public void invalidateKey(String serialNumber) {
+        if (serialNumber == null) return;
+        keyCache.keyGeneration.incrementAndGet();
+        keyCache.keyHandles.remove(serialNumber);
+    }
+
+    public void invalidateAllKeys() {
+        keyCache.keyGeneration.incrementAndGet();
+        keyCache.keyHandles.clear();
+    }
+
     //Calculate symmetric key for HMAC SHA256 signature for the first time. Then it goes into Android keystore
     public byte[] computeMac(byte[] key, byte[] data) throws Exception {
         if (key == null) throw new IllegalArgumentException(ERROR_MSG_ERR_KEY_BYTES_FOR_HMAC_SHA256_IS_NULL);
@@ -59,21 +177,52 @@ public class HmacHelper {
         return sha256_HMAC.doFinal(data);
     }
 
-    // Calculate hmac of data using key living in Android keystore
-    // Key for currentSerialNumber must exits in keystore
+    // Calculate hmac of data using key living in key provider (Android keystore by default)
+    // Key for currentSerialNumber must exits in key provider
     public byte[] computeMac(byte[] data) throws Exception {
         if (data == null) throw new IllegalArgumentException(ERROR_MSG_ERR_DATA_BYTES_FOR_HMAC_SHA256_IS_NULL);
+        return getKeyHandle().computeMac(data);
+    }
+
+    // Start hmac of data using the same key as computeMac(data): prefix of data is absorbed now,
+    // the rest of data (for example sault which is not known yet) is fed in by PreparedMac.doFinal
+    public PreparedMac prepareMac(byte[] prefix) throws Exception {
+        if (prefix == null) throw new IllegalArgumentException(ERROR_MSG_ERR_DATA_BYTES_FOR_HMAC_SHA256_IS_NULL);
+        final Mac sha256_HMAC = getKeyHandle().newMac();
+        sha256_HMAC.update(prefix);
+        return suffix -> {
+            if (suffix == null) throw new IllegalArgumentException(ERROR_MSG_ERR_DATA_BYTES_FOR_HMAC_SHA256_IS_NULL);
+            return sha256_HMAC.doFinal(suffix);
+        };
+    }
+
+    // Whether Mac of current key may be cloned. If not (AndroidKeyStore), each prepared Mac is a separate keystore operation,
+    // and number of such operations open at once is limited, so only a few Macs must be prepared ahead
+    public boolean isMacCloneable() throws Exception {
+        return getKeyHandle().isCloneable();
+    }
+
+    // Hmac state which has already absorbed prefix of data, it may be finished only once
+    public interface PreparedMac {
+        byte[] doFinal(byte[] suffix) throws Exception;
+    }
+
+    private KeyHandle getKeyHandle() throws Exception {
         if (currentSerialNumber == null) throw new IllegalArgumentException(ERROR_MSG_ERR_CURRENT_SERIAL_NUMBER_IS_NULL);
         if (currentSerialNumber.equals(EMPTY_SERIAL_NUMBER)) throw new IllegalArgumentException(ERROR_MSG_CURRENT_SERIAL_NUMBER_IS_NOT_SET_IN_ANDROID_KEYSTORE);
-        Mac sha256_HMAC = Mac.getInstance(HMAC_SHA256_ALG);
-        KeyStore keyStore = KeyStore.getInstance(ANDROID_KEYSTORE);
-        keyStore.load(null);
-        String keyAlias = HmacHelper.HMAC_KEY_ALIAS + currentSerialNumber;
-        if (!keyStore.containsAlias(keyAlias)) throw new Exception(ERROR_MSG_KEY_FOR_HMAC_DOES_NOT_EXIST_IN_ANDROID_KEYSTORE);
-        KeyStore.Entry entry = keyStore.getEntry(keyAlias, null);
-        if (!(entry instanceof KeyStore.SecretKeyEntry)) throw new Exception(ERROR_MSG_ERR_IS_NOT_SEC_KEY_ENTRY);
-        sha256_HMAC.init(((KeyStore.SecretKeyEntry) entry).getSecretKey());
-        return sha256_HMAC.doFinal(data);
+        String serialNumber = currentSerialNumber;
+        Map<String, KeyHandle> keyHandles = keyCache.keyHandles;
+        KeyHandle keyHandle = keyHandles.get(serialNumber);
+        if (keyHandle == null) {
+            AtomicLong keyGeneration = keyCache.keyGeneration;
+            long generation = keyGeneration.get();
+            SecretKey key = keyProvider.getKey(serialNumber);
+            if (key == null) throw new Exception(ERROR_MSG_KEY_FOR_HMAC_DOES_NOT_EXIST_IN_ANDROID_KEYSTORE);
+            keyHandle = new KeyHandle(key);
+            keyHandles.put(serialNumber, keyHandle);
+            if (keyGeneration.get() != generation) keyHandles.remove(serialNumber, keyHandle);
+        }
+        return keyHandle;
     }
 }
 
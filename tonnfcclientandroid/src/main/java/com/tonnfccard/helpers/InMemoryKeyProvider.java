@@ -0,0 +1,44 @@
+package com.tonnfccard.helpers;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import static com.tonnfccard.helpers.HmacHelper.HMAC_SHA256_ALG;
+
+/**
+ * Keys kept as plain JCE SecretKeySpec in memory of the process, they are lost when the process ends. It is intended for tests,
+ * benchmarks and stress runs on JVM, do not use it in production application.
+ */
+public class InMemoryKeyProvider implements KeyProvider {
+  private final Map<String, SecretKey> keys = new LinkedHashMap<>();
+
+  @Override
+  public synchronized void setKey(String serialNumber, byte[] key) {
+    keys.put(serialNumber, new SecretKeySpec(key, HMAC_SHA256_ALG));
+  }
+
+  @Override
+  public synchronized SecretKey getKey(String serialNumber) {
+    return keys.get(serialNumber);
+  }
+
+  @Override
+  public synchronized boolean containsKey(String serialNumber) {
+    return keys.containsKey(serialNumber);
+  }
+
+  @Override
+  public synchronized boolean deleteKey(String serialNumber) {
+    return keys.remove(serialNumber) != null;
+  }
+
+  @Override
+  public synchronized List<String> getSerialNumbers() {
+    return new ArrayList<>(keys.keySet());
+  }
+}
@@ -0,0 +1,150 @@
+package com.tonnfccard.helpers;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.crypto.SecretKey;
+
+import static com.tonnfccard.helpers.ResponsesConstants.ERROR_MSG_CAN_NOT_WRITE_FILE;
+import static com.tonnfccard.helpers.ResponsesConstants.ERROR_MSG_KEY_PROVIDER_IS_NULL;
+
+/**
+ * KeyProvider decorator keeping index of serial numbers having HMAC keys in a file, so that getSerialNumbers and containsKey
+ * (isKeyForHmacExist, selectKeyForHmac, getAllSerialNumbers) do not load and enumerate the whole keystore.
+ *
+ * Index is written through on each setKey/deleteKey: the entry is added before the key is written and removed after the key is
+ * deleted, so a key in the keystore is never missing from the index if the process dies in between. If index file does not exist
+ * yet, it is built from the keystore once. Each indexed serial number is checked against the keystore when it is requested for
+ * the first time after the index is loaded, keys that disappeared from the keystore are dropped from the index. If a serial number
+ * is not in the index, the keystore is asked for it, and found key is added to the index (for example if the key was written
+ * bypassing this provider).
+ */
+public class IndexedKeyProvider implements KeyProvider {
+  private final KeyProvider keyProvider;
+  private final File indexFile;
+
+  private Set<String> serialNumbers = null;
+  private final Set<String> verifiedSerialNumbers = new HashSet<>();
+
+  public IndexedKeyProvider(KeyProvider keyProvider, File indexFile) {
+    if (keyProvider == null) throw new IllegalArgumentException(ERROR_MSG_KEY_PROVIDER_IS_NULL);
+    this.keyProvider = keyProvider;
+    this.indexFile = indexFile;
+  }
+
+  public KeyProvider getKeyProvider() {
+    return keyProvider;
+  }
+
+  @Override
+  public synchronized void setKey(String serialNumber, byte[] key) throws Exception {
+    if (getIndex().add(serialNumber)) store();
+    keyProvider.setKey(serialNumber, key);
+    verifiedSerialNumbers.add(serialNumber);
+  }
+
+  @Override
+  public synchronized SecretKey getKey(String serialNumber) throws Exception {
+    if (!getIndex().contains(serialNumber) && !addMissingToIndex(serialNumber)) return null;
+    SecretKey key = keyProvider.getKey(serialNumber);
+    if (key == null) removeFromIndex(serialNumber);
+    else verifiedSerialNumbers.add(serialNumber);
+    return key;
+  }
+
+  @Override
+  public synchronized boolean containsKey(String serialNumber) throws Exception {
+    if (!getIndex().contains(serialNumber)) return addMissingToIndex(serialNumber);
+    return verify(serialNumber);
+  }
+
+  @Override
+  public synchronized boolean deleteKey(String serialNumber) throws Exception {
+    boolean deleted = keyProvider.deleteKey(serialNumber);
+    removeFromIndex(serialNumber);
+    return deleted;
+  }
+
+  @Override
+  public synchronized List<String> getSerialNumbers() throws Exception {
+    List<String> result = new ArrayList<>();
+    for (String serialNumber : new ArrayList<>(getIndex())) {
+      if (verify(serialNumber)) result.add(serialNumber);
+    }
+    return result;
+  }
+
+  /**
+   * Build index from the keystore again (for example if keys were changed bypassing this provider).
+   */
+  public synchronized void rebuild() throws Exception {
+    serialNumbers = new LinkedHashSet<>(keyProvider.getSerialNumbers());
+    verifiedSerialNumbers.clear();
+    verifiedSerialNumbers.addAll(serialNumbers);
+    store();
+  }
+
+  private boolean verify(String serialNumber) throws Exception {
+    if (verifiedSerialNumbers.contains(serialNumber)) return true;
+    if (!keyProvider.containsKey(serialNumber)) {
+      removeFromIndex(serialNumber);
+      return false;
+    }
+    verifiedSerialNumbers.add(serialNumber);
+    return true;
+  }
+
+  // Index miss: key could be written bypassing this provider or index update could be lost, so ask the keystore
+  private boolean addMissingToIndex(String serialNumber) throws Exception {
+    if (!keyProvider.containsKey(serialNumber)) return false;
+    getIndex().add(serialNumber);
+    verifiedSerialNumbers.add(serialNumber);
+    store();
+    return true;
+  }
+
+  private void removeFromIndex(String serialNumber) throws Exception {
+    verifiedSerialNumbers.remove(serialNumber);
+    if (getIndex().remove(serialNumber)) store();
+  }
+
+  private Set<String> getIndex() throws Exception {
+    if (serialNumbers != null) return serialNumbers;
+    if (!indexFile.exists()) {
+      rebuild();
+      return serialNumbers;
+    }
+    Set<String> index = new LinkedHashSet<>();
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), StandardCharsets.UTF_8))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        line = line.trim();
+        if (!line.isEmpty()) index.add(line);
+      }
+    }
+    serialNumbers = index;
+    return serialNumbers;
+  }
+
+  // Write index into temporary file and replace the old one by it, so that the file is never left half written. Rename replaces
+  // the file atomically on Android (Files.move is not available before API 26)
+  private void store() throws Exception {
+    File parent = indexFile.getAbsoluteFile().getParentFile();
+    File tmpFile = new File(parent, indexFile.getName() + ".tmp");
+    try (Writer writer = new OutputStreamWriter(new FileOutputStream(tmpFile), StandardCharsets.UTF_8)) {
+      for (String serialNumber : serialNumbers) writer.write(serialNumber + "\n");
+    }
+    if (!tmpFile.renameTo(indexFile)) throw new Exception(ERROR_MSG_CAN_NOT_WRITE_FILE + indexFile);
+  }
+}
@@ -0,0 +1,35 @@
+package com.tonnfccard.helpers;
+
+import java.util.List;
+
+import javax.crypto.SecretKey;
+
+/**
+ * Storage of HMAC-SHA256 keys used to sign APDU commands, one key per card serial number. HmacHelper and TonWalletApi work with
+ * keys only through it. Provider is selected when HmacHelper is created (see HmacHelper.newInstance(KeyProvider)), by default
+ * it is AndroidKeyStoreKeyProvider. InMemoryKeyProvider and Pkcs12KeyProvider allow to use the library on plain JVM
+ * (tests, benchmarks) with real HMAC computation.
+ */
+public interface KeyProvider {
+  /**
+   * Save key for serial number replacing existing one.
+   */
+  void setKey(String serialNumber, byte[] key) throws Exception;
+
+  /**
+   * @return key for serial number or null if it does not exist
+   */
+  SecretKey getKey(String serialNumber) throws Exception;
+
+  boolean containsKey(String serialNumber) throws Exception;
+
+  /**
+   * @return false if key for serial number does not exist
+   */
+  boolean deleteKey(String serialNumber) throws Exception;
+
+  /**
+   * @return serial numbers having keys
+   */
+  List<String> getSerialNumbers() throws Exception;
+}
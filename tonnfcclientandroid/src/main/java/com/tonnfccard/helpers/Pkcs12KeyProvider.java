@@ -0,0 +1,104 @@
+package com.tonnfccard.helpers;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import static com.tonnfccard.helpers.HmacHelper.HMAC_KEY_ALIAS;
+import static com.tonnfccard.helpers.HmacHelper.HMAC_SHA256_ALG;
+import static com.tonnfccard.helpers.ResponsesConstants.ERROR_MSG_CAN_NOT_WRITE_FILE;
+import static com.tonnfccard.helpers.ResponsesConstants.ERROR_MSG_ERR_IS_NOT_SEC_KEY_ENTRY;
+
+/**
+ * Keys kept in PKCS12 keystore file protected by password under aliases HMAC_KEY_ALIAS + serial number. Keystore is loaded
+ * once when provider is created and written back to the file after each change. It allows to keep keys between JVM runs
+ * (benchmarks, stress tests against the same cards).
+ *
+ * It is intended for JVM only: PKCS12 keystore of Android can not keep SecretKeyEntry, use AndroidKeyStoreKeyProvider there.
+ */
+public class Pkcs12KeyProvider implements KeyProvider {
+  public static final String PKCS12 = "PKCS12";
+
+  private final File file;
+  private final char[] password;
+  private final KeyStore keyStore;
+
+  public Pkcs12KeyProvider(File file, char[] password) throws Exception {
+    this.file = file;
+    this.password = password.clone();
+    keyStore = KeyStore.getInstance(PKCS12);
+    if (file.exists()) {
+      try (InputStream in = new FileInputStream(file)) {
+        keyStore.load(in, this.password);
+      }
+    }
+    else keyStore.load(null, this.password);
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  @Override
+  public synchronized void setKey(String serialNumber, byte[] key) throws Exception {
+    keyStore.setEntry(HMAC_KEY_ALIAS + serialNumber,
+      new KeyStore.SecretKeyEntry(new SecretKeySpec(key, HMAC_SHA256_ALG)),
+      new KeyStore.PasswordProtection(password));
+    store();
+  }
+
+  @Override
+  public synchronized SecretKey getKey(String serialNumber) throws Exception {
+    String keyAlias = HMAC_KEY_ALIAS + serialNumber;
+    if (!keyStore.containsAlias(keyAlias)) return null;
+    KeyStore.Entry entry = keyStore.getEntry(keyAlias, new KeyStore.PasswordProtection(password));
+    if (!(entry instanceof KeyStore.SecretKeyEntry)) throw new Exception(ERROR_MSG_ERR_IS_NOT_SEC_KEY_ENTRY);
+    return ((KeyStore.SecretKeyEntry) entry).getSecretKey();
+  }
+
+  @Override
+  public synchronized boolean containsKey(String serialNumber) throws Exception {
+    return keyStore.containsAlias(HMAC_KEY_ALIAS + serialNumber);
+  }
+
+  @Override
+  public synchronized boolean deleteKey(String serialNumber) throws Exception {
+    String keyAlias = HMAC_KEY_ALIAS + serialNumber;
+    if (!keyStore.containsAlias(keyAlias)) return false;
+    keyStore.deleteEntry(keyAlias);
+    store();
+    return true;
+  }
+
+  @Override
+  public synchronized List<String> getSerialNumbers() throws Exception {
+    Enumeration<String> aliases = keyStore.aliases();
+    List<String> serialNumbers = new ArrayList<>();
+    while (aliases.hasMoreElements()) {
+      String alias = aliases.nextElement();
+      if (alias.startsWith(HMAC_KEY_ALIAS))
+        serialNumbers.add(alias.substring(HMAC_KEY_ALIAS.length()));
+    }
+    return serialNumbers;
+  }
+
+  // Write keystore into temporary file and replace the old one by it, so that the file is never left half written. Rename replaces
+  // the file atomically on POSIX file systems, the same way as in IndexedKeyProvider
+  private void store() throws Exception {
+    File parent = file.getAbsoluteFile().getParentFile();
+    File tmpFile = new File(parent, file.getName() + ".tmp");
+    try (OutputStream out = new FileOutputStream(tmpFile)) {
+      keyStore.store(out, password);
+    }
+    if (!tmpFile.renameTo(file)) throw new Exception(ERROR_MSG_CAN_NOT_WRITE_FILE + file);
+  }
+}
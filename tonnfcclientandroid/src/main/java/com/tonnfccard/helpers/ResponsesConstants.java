@@ -132,6 +132,23 @@ public class ResponsesConstants {
   public static final String ERROR_MSG_RECOVERY_DATA_MAC_BYTES_SIZE_INCORRECT = "Mac (byte array) of recovery data portion must have length " + HMAC_SHA_SIG_SIZE + ".";
   public static final String ERROR_MSG_START_POSITION_BYTES_SIZE_INCORRECT =  "Start position byte array must have length = 2.";
   public static final String ERROR_MSG_APDU_RESPONSE_IS_NULL =  "APDU response is null.";
+  public static final String ERROR_MSG_CARD_CHANNEL_IS_NULL =  "Card channel is null.";
+  public static final String ERROR_MSG_APDU_LE_INCORRECT =  "APDU Le must be >= 0 and <= 65535.";
+  public static final String ERROR_MSG_APDU_RUNNER_ID_IS_NULL =  "Apdu runner id is null.";
+  public static final String ERROR_MSG_APDU_RUNNER_IS_NULL =  "Apdu runner is null.";
+  public static final String ERROR_MSG_LOGICAL_CHANNEL_INCORRECT =  "Logical channel number must be >= 0 and <= 3.";
+  public static final String ERROR_MSG_APDU_LIST_EMPTY =  "Apdu command list is empty.";
+  public static final String ERROR_MSG_TRACE_LINE_INCORRECT =  "Apdu trace line must contain command and response in hex and optional latency.";
+  public static final String ERROR_MSG_TRACE_MISMATCH =  "Apdu command is not found in trace: ";
+  public static final String ERROR_MSG_KEY_PROVIDER_IS_NULL =  "Key provider is null.";
+  public static final String ERROR_MSG_DATA_TO_HASH_IS_NULL =  "Data to hash by SHA-256 algorithm is null.";
+  public static final String ERROR_MSG_CARD_PROCESSOR_IS_NULL =  "Card processor is null.";
+  public static final String ERROR_MSG_PREFETCH_NOT_FINISHED =  "Prefetch of card data is not finished in time.";
+  public static final String ERROR_MSG_PREFETCH_WAIT_TIMEOUT_INCORRECT =  "Prefetch wait timeout must be positive.";
+  public static final String ERROR_MSG_CAN_NOT_WRITE_FILE =  "Can not write file ";
+  public static final String ERROR_MSG_KEY_CHUNK_APDU_IS_ALREADY_USED =  "Apdu command for this key chunk is already used.";
+  public static final String ERROR_MSG_PREFETCH_CARD_SESSION_IS_OVER =  "Prefetch is stopped since card session it was started for is over.";
+  public static final String ERROR_MSG_TRANSCEIVE_LENGTH_EXCEEDED =  "Transceive length exceeds supported maximum.";
 
   public static final List<String> ANDROID_INTERNAL_ERRORS = Arrays.asList(
     ERROR_MSG_APDU_EMPTY,
@@ -187,7 +204,24 @@ public class ResponsesConstants {
           ERROR_MSG_RECOVER_DATA_PORTION_SIZE_INCORRECT,
           ERROR_MSG_RECOVERY_DATA_MAC_BYTES_SIZE_INCORRECT,
           ERROR_MSG_START_POSITION_BYTES_SIZE_INCORRECT,
-          ERROR_MSG_APDU_RESPONSE_IS_NULL
+          ERROR_MSG_APDU_RESPONSE_IS_NULL,
+          ERROR_MSG_CARD_CHANNEL_IS_NULL,
+          ERROR_MSG_APDU_LE_INCORRECT,
+          ERROR_MSG_APDU_RUNNER_ID_IS_NULL,
+          ERROR_MSG_APDU_RUNNER_IS_NULL,
+          ERROR_MSG_LOGICAL_CHANNEL_INCORRECT,
+          ERROR_MSG_APDU_LIST_EMPTY,
+          ERROR_MSG_TRACE_LINE_INCORRECT,
+          ERROR_MSG_TRACE_MISMATCH,
+          ERROR_MSG_KEY_PROVIDER_IS_NULL,
+          ERROR_MSG_DATA_TO_HASH_IS_NULL,
+          ERROR_MSG_CARD_PROCESSOR_IS_NULL,
+          ERROR_MSG_PREFETCH_NOT_FINISHED,
+          ERROR_MSG_PREFETCH_WAIT_TIMEOUT_INCORRECT,
+          ERROR_MSG_CAN_NOT_WRITE_FILE,
+          ERROR_MSG_KEY_CHUNK_APDU_IS_ALREADY_USED,
+          ERROR_MSG_PREFETCH_CARD_SESSION_IS_OVER,
+          ERROR_MSG_TRANSCEIVE_LENGTH_EXCEEDED
   );
 
 
@@ -196,7 +230,9 @@ public class ResponsesConstants {
    */
   public static final String ERROR_NFC_CONNECTION_INTERRUPTED = "Nfc connection was interrupted by user.";
 
-  public static final List<String>  NFC_INTERUPTION_ERRORS = Arrays.asList(ERROR_NFC_CONNECTION_INTERRUPTED);
+  public static final String ERROR_MSG_OPERATION_DEADLINE_EXCEEDED = "Nfc card operation deadline is exceeded.";
+
+  public static final List<String>  NFC_INTERUPTION_ERRORS = Arrays.asList(ERROR_NFC_CONNECTION_INTERRUPTED, ERROR_MSG_OPERATION_DEADLINE_EXCEEDED);
 
 
   /**
@@ -209,6 +245,8 @@ public class ResponsesConstants {
   public static final String ERROR_MSG_NFC_DISCONNECT = "Error happened during NFC tag disconnection.";
   public static final String ERROR_TRANSCEIVE = "Data transfer via NFC failed. Probably NFC connection was lost.";
   public static final String ERROR_BAD_RESPONSE = "Response from the card is too short. It must contain at least 2 bytes.";
+  public static final String ERROR_MSG_EXTENDED_APDU_NOT_SUPPORTED = "Extended length APDU is not supported by NFC tag.";
+  public static final String ERROR_MSG_NFC_CARD_CHANGED = "Another card was tapped while waiting for the card to be returned into NFC field.";
 
 
   public static final List<String>  ANDROID_NFC_ERRORS = Arrays.asList(
@@ -218,7 +256,9 @@ public class ResponsesConstants {
     ERROR_MSG_NO_TAG,
     ERROR_MSG_NFC_DISCONNECT,
     ERROR_TRANSCEIVE,
-    ERROR_BAD_RESPONSE
+    ERROR_BAD_RESPONSE,
+    ERROR_MSG_EXTENDED_APDU_NOT_SUPPORTED,
+    ERROR_MSG_NFC_CARD_CHANGED
   );
 
   /**
@@ -0,0 +1,137 @@
+package com.tonnfccard.loopback;
+
+import com.tonnfccard.utils.ByteArrayUtil;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static com.tonnfccard.helpers.ResponsesConstants.ERROR_MSG_APDU_EMPTY;
+import static com.tonnfccard.helpers.ResponsesConstants.ERROR_MSG_TRACE_LINE_INCORRECT;
+
+/**
+ * Recorded APDU session: ordered list of command/response pairs with optional latency of each exchange.
+ *
+ * Text format is one exchange per line: COMMAND_HEX RESPONSE_HEX [LATENCY_MICROS]. Response contains DATA | SW1 | SW2.
+ * Empty lines and lines starting with # are ignored. Trace may be recorded by RecordingCardChannel and replayed by
+ * TraceReplayCardChannel. Recorded trace contains PIN and keys in plain text (see RecordingCardChannel).
+ */
+
+public class ApduTrace {
+  public static final long NO_LATENCY = -1;
+  private static final String COMMENT_PREFIX = "#";
+  private static final ByteArrayUtil BYTE_ARRAY_HELPER = ByteArrayUtil.getInstance();
+
+  public static class Exchange {
+    private final byte[] command;
+    private final byte[] response;
+    private final long latencyMicros;
+
+    public Exchange(byte[] command, byte[] response, long latencyMicros) {
+      if (command == null || response == null) throw new IllegalArgumentException(ERROR_MSG_APDU_EMPTY);
+      this.command = command.clone();
+      this.response = response.clone();
+      this.latencyMicros = latencyMicros;
+    }
+
+    public byte[] getCommand() {
+      return command.clone();
+    }
+
+    public byte[] getResponse() {
+      return response.clone();
+    }
+
+    /**
+     * Latency of exchange (microseconds) or NO_LATENCY if it was not recorded.
+     */
+    public long getLatencyMicros() {
+      return latencyMicros;
+    }
+
+    byte[] command() {
+      return command;
+    }
+
+    byte[] response() {
+      return response;
+    }
+  }
+
+  private final List<Exchange> exchanges = new ArrayList<>();
+
+  public synchronized void add(byte[] command, byte[] response, long latencyMicros) {
+    exchanges.add(new Exchange(command, response, latencyMicros));
+  }
+
+  public synchronized void add(byte[] command, byte[] response) {
+    add(command, response, NO_LATENCY);
+  }
+
+  public synchronized int size() {
+    return exchanges.size();
+  }
+
+  public synchronized Exchange get(int index) {
+    return exchanges.get(index);
+  }
+
+  public synchronized List<Exchange> getExchanges() {
+    return Collections.unmodifiableList(new ArrayList<>(exchanges));
+  }
+
+  public synchronized void clear() {
+    exchanges.clear();
+  }
+
+  /**
+   * Parse trace from text. Stream is not closed.
+   */
+  public static ApduTrace load(InputStream inputStream) throws IOException {
+    ApduTrace trace = new ApduTrace();
+    BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8));
+    String line;
+    while ((line = reader.readLine()) != null) {
+      line = line.trim();
+      if (line.isEmpty() || line.startsWith(COMMENT_PREFIX)) continue;
+      String[] fields = line.split("\\s+");
+      if (fields.length < 2 || fields.length > 3) throw new IllegalArgumentException(ERROR_MSG_TRACE_LINE_INCORRECT);
+      long latencyMicros = NO_LATENCY;
+      if (fields.length == 3) {
+        try {
+          latencyMicros = Long.parseLong(fields[2]);
+        } catch (NumberFormatException e) {
+          throw new IllegalArgumentException(ERROR_MSG_TRACE_LINE_INCORRECT, e);
+        }
+      }
+      trace.add(BYTE_ARRAY_HELPER.bytes(fields[0]), BYTE_ARRAY_HELPER.bytes(fields[1]), latencyMicros);
+    }
+    return trace;
+  }
+
+  /**
+   * Write trace as text. Stream is flushed, but not closed.
+   */
+  public synchronized void save(OutputStream outputStream) throws IOException {
+    Writer writer = new OutputStreamWriter(outputStream, StandardCharsets.UTF_8);
+    for (Exchange exchange : exchanges) {
+      writer.write(BYTE_ARRAY_HELPER.hex(exchange.command));
+      writer.write(' ');
+      writer.write(BYTE_ARRAY_HELPER.hex(exchange.response));
+      if (exchange.latencyMicros != NO_LATENCY) {
+        writer.write(' ');
+        writer.write(Long.toString(exchange.latencyMicros));
+      }
+      writer.write('\n');
+    }
+    writer.flush();
+  }
+}
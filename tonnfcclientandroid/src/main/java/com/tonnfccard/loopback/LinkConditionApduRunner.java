@@ -0,0 +1,68 @@
+package com.tonnfccard.loopback;
+
+import android.content.Intent;
+
+import com.tonnfccard.nfc.RetryPolicy;
+import com.tonnfccard.smartcard.ApduRunner;
+import com.tonnfccard.smartcard.CAPDU;
+import com.tonnfccard.smartcard.RAPDU;
+
+import static com.tonnfccard.helpers.ResponsesConstants.ERROR_MSG_APDU_RUNNER_IS_NULL;
+
+/**
+ * ApduRunner decorator sending APDU commands of inner runner through LinkConditionCardChannel and retrying failed
+ * transmissions by RetryPolicy in the same way as NfcApduRunner does (setNumberOfRetries, setRetryTimeOut). It allows to measure
+ * duration of operations with given retry settings under simulated RF conditions without phone and card.
+ */
+
+public class LinkConditionApduRunner extends ApduRunner {
+  private final ApduRunner innerRunner;
+  private final LinkConditionCardChannel cardChannel;
+  private RetryPolicy retryPolicy = new RetryPolicy();
+
+  public LinkConditionApduRunner(ApduRunner innerRunner, long seed) {
+    super();
+    if (innerRunner == null) throw new IllegalArgumentException(ERROR_MSG_APDU_RUNNER_IS_NULL);
+    this.innerRunner = innerRunner;
+    this.cardChannel = new LinkConditionCardChannel(innerRunner.getCardChannel(), seed);
+  }
+
+  public LinkConditionApduRunner(ApduRunner innerRunner) {
+    this(innerRunner, System.nanoTime());
+  }
+
+  public ApduRunner getInnerRunner() {
+    return innerRunner;
+  }
+
+  @Override
+  public LinkConditionCardChannel getCardChannel() {
+    return cardChannel;
+  }
+
+  @Override
+  public boolean setCardTag(Intent intent) throws Exception {
+    return innerRunner.setCardTag(intent);
+  }
+
+  public RetryPolicy getRetryPolicy() {
+    return retryPolicy;
+  }
+
+  public void setRetryPolicy(RetryPolicy retryPolicy) {
+    this.retryPolicy = retryPolicy == null ? new RetryPolicy() : retryPolicy;
+  }
+
+  public void setNumberOfRetries(int numberOfRetries) {
+    retryPolicy.setMaxAttempts(numberOfRetries);
+  }
+
+  public void setRetryTimeOut(int retryTimeOut) {
+    retryPolicy.setMaxBackoff(retryTimeOut);
+  }
+
+  @Override
+  public RAPDU transmitCommand(CAPDU commandAPDU) throws Exception {
+    return retryPolicy.execute(() -> super.transmitCommand(commandAPDU), getCancellationToken());
+  }
+}
@@ -0,0 +1,168 @@
+package com.tonnfccard.loopback;
+
+import android.nfc.TagLostException;
+
+import com.tonnfccard.smartcard.CardChannel;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static com.tonnfccard.helpers.ResponsesConstants.ERROR_BAD_RESPONSE;
+import static com.tonnfccard.helpers.ResponsesConstants.ERROR_MSG_CARD_CHANNEL_IS_NULL;
+import static com.tonnfccard.helpers.ResponsesConstants.ERROR_MSG_NFC_CONNECT;
+import static com.tonnfccard.helpers.ResponsesConstants.ERROR_TRANSCEIVE;
+
+/**
+ * Card channel decorator simulating bad RF link on top of any channel (for example LoopbackCardChannel or
+ * TraceReplayCardChannel). For each exchange it adds latency drawn from LatencyModel and with given probabilities:
+ * - drops exchange: transceive fails with IOException as a cause, like IsoDep timeout;
+ * - truncates response: part of response bytes is lost, if 1 byte or less is left transceive fails with ERROR_BAD_RESPONSE;
+ * - removes tag: transceive fails with TagLostException as a cause, and the channel stays disconnected (connect fails) until
+ *   tag absence time passes, like user has to tap the card again.
+ *
+ * Failures are reported in the same way as NfcApduRunner does, so RetryPolicy classifies them as real NFC failures. Random
+ * generator is seeded, so the same seed gives the same sequence of conditions.
+ */
+
+public class LinkConditionCardChannel implements CardChannel {
+  public static final int DEFAULT_TAG_ABSENCE_TIME = 500;
+
+  /**
+   * Distribution of one exchange latency.
+   */
+  public interface LatencyModel {
+    /**
+     * @return latency (ms) of exchange of given APDU command
+     */
+    long nextLatency(Random random, byte[] apduCommandBytes);
+  }
+
+  public static final LatencyModel NO_LATENCY = (random, apduCommandBytes) -> 0;
+
+  public static LatencyModel fixedLatency(long latency) {
+    return (random, apduCommandBytes) -> latency;
+  }
+
+  public static LatencyModel uniformLatency(long minLatency, long maxLatency) {
+    return (random, apduCommandBytes) -> minLatency + (long) (random.nextDouble() * (maxLatency - minLatency));
+  }
+
+  /**
+   * Normal distribution cut at zero.
+   */
+  public static LatencyModel normalLatency(double meanLatency, double latencyDeviation) {
+    return (random, apduCommandBytes) -> Math.max(0, Math.round(meanLatency + random.nextGaussian() * latencyDeviation));
+  }
+
+  private final CardChannel cardChannel;
+  private final Random random;
+  private LatencyModel latencyModel = NO_LATENCY;
+  private double dropProbability = 0;
+  private double truncationProbability = 0;
+  private double tagLossProbability = 0;
+  private long tagAbsenceTime = DEFAULT_TAG_ABSENCE_TIME;
+  private long tagReturnTime = 0;
+
+  public LinkConditionCardChannel(CardChannel cardChannel, long seed) {
+    if (cardChannel == null) throw new IllegalArgumentException(ERROR_MSG_CARD_CHANNEL_IS_NULL);
+    this.cardChannel = cardChannel;
+    this.random = new Random(seed);
+  }
+
+  public LinkConditionCardChannel(CardChannel cardChannel) {
+    this(cardChannel, System.nanoTime());
+  }
+
+  public synchronized void setLatencyModel(LatencyModel latencyModel) {
+    this.latencyModel = latencyModel == null ? NO_LATENCY : latencyModel;
+  }
+
+  public synchronized void setDropProbability(double dropProbability) {
+    this.dropProbability = toProbability(dropProbability);
+  }
+
+  public synchronized void setTruncationProbability(double truncationProbability) {
+    this.truncationProbability = toProbability(truncationProbability);
+  }
+
+  public synchronized void setTagLossProbability(double tagLossProbability) {
+    this.tagLossProbability = toProbability(tagLossProbability);
+  }
+
+  /**
+   * Time (ms) after tag loss during which the card is out of the field.
+   */
+  public synchronized void setTagAbsenceTime(long tagAbsenceTime) {
+    this.tagAbsenceTime = Math.max(0, tagAbsenceTime);
+  }
+
+  public synchronized boolean isTagPresent() {
+    return System.currentTimeMillis() >= tagReturnTime;
+  }
+
+  @Override
+  public void connect() throws Exception {
+    if (!isTagPresent()) throw new Exception(ERROR_MSG_NFC_CONNECT, new TagLostException());
+    cardChannel.connect();
+  }
+
+  @Override
+  public void close() throws Exception {
+    cardChannel.close();
+  }
+
+  @Override
+  public boolean isConnected() {
+    return isTagPresent() && cardChannel.isConnected();
+  }
+
+  @Override
+  public int getMaxTransceiveLength() {
+    return cardChannel.getMaxTransceiveLength();
+  }
+
+  @Override
+  public boolean isExtendedLengthApduSupported() {
+    return cardChannel.isExtendedLengthApduSupported();
+  }
+
+  @Override
+  public byte[] transceive(byte[] apduCommandBytes) throws Exception {
+    long latency;
+    boolean dropped;
+    boolean tagLost;
+    boolean truncated;
+    synchronized (this) {
+      latency = latencyModel.nextLatency(random, apduCommandBytes);
+      tagLost = random.nextDouble() < tagLossProbability;
+      dropped = random.nextDouble() < dropProbability;
+      truncated = random.nextDouble() < truncationProbability;
+    }
+    if (latency > 0) Thread.sleep(latency);
+    if (!isTagPresent() || tagLost) {
+      synchronized (this) {
+        if (tagLost) tagReturnTime = System.currentTimeMillis() + tagAbsenceTime;
+      }
+      cardChannel.close();
+      throw new Exception(ERROR_TRANSCEIVE + ", More details: Tag was lost.", new TagLostException());
+    }
+    if (dropped) {
+      throw new Exception(ERROR_TRANSCEIVE + ", More details: Transceive failed.", new IOException());
+    }
+    byte[] response = cardChannel.transceive(apduCommandBytes);
+    if (truncated) {
+      int length;
+      synchronized (this) {
+        length = random.nextInt(response.length);
+      }
+      if (length <= 1) throw new Exception(ERROR_BAD_RESPONSE);
+      response = Arrays.copyOf(response, length);
+    }
+    return response;
+  }
+
+  private static double toProbability(double probability) {
+    return Math.max(0, Math.min(1, probability));
+  }
+}
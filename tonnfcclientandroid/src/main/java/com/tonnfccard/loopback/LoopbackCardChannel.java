@@ -0,0 +1,86 @@
+package com.tonnfccard.loopback;
+
+import com.tonnfccard.smartcard.CAPDU;
+import com.tonnfccard.smartcard.CardChannel;
+
+import java.io.IOException;
+
+import static com.tonnfccard.helpers.ResponsesConstants.ERROR_BAD_RESPONSE;
+import static com.tonnfccard.helpers.ResponsesConstants.ERROR_MSG_APDU_EMPTY;
+import static com.tonnfccard.helpers.ResponsesConstants.ERROR_MSG_APDU_RESPONSE_TOO_LONG;
+import static com.tonnfccard.helpers.ResponsesConstants.ERROR_MSG_CARD_PROCESSOR_IS_NULL;
+import static com.tonnfccard.helpers.ResponsesConstants.ERROR_MSG_NO_TAG;
+import static com.tonnfccard.helpers.ResponsesConstants.ERROR_MSG_TRANSCEIVE_LENGTH_EXCEEDED;
+import static com.tonnfccard.smartcard.RAPDU.MAX_EXTENDED_LENGTH;
+import static com.tonnfccard.smartcard.RAPDU.MAX_LENGTH;
+
+/**
+ * In-JVM card channel. APDU commands are not sent anywhere, they are passed directly into CardProcessor (applet simulator)
+ * living in the same process. It is used to run the whole API stack (APDU building, HMAC, state checks, parsing) without
+ * phone and NFC, for example in unit tests and benchmarks. As IsoDep, it fails with IOException on APDU command longer
+ * than max transceive length.
+ */
+
+public class LoopbackCardChannel implements CardChannel {
+
+  /**
+   * Simulator of the card side. Gets raw bytes of APDU command, returns raw bytes of response: DATA | SW1 | SW2.
+   */
+  public interface CardProcessor {
+    byte[] process(byte[] apduCommandBytes) throws Exception;
+  }
+
+  private final CardProcessor cardProcessor;
+  private final int maxTransceiveLength;
+  private final boolean extendedLengthApduSupported;
+  private boolean connected = false;
+
+  public LoopbackCardChannel(CardProcessor cardProcessor) {
+    this(cardProcessor, CAPDU.MAX_LENGTH, false);
+  }
+
+  public LoopbackCardChannel(CardProcessor cardProcessor, int maxTransceiveLength, boolean extendedLengthApduSupported) {
+    if (cardProcessor == null) throw new IllegalArgumentException(ERROR_MSG_CARD_PROCESSOR_IS_NULL);
+    this.cardProcessor = cardProcessor;
+    this.maxTransceiveLength = maxTransceiveLength;
+    this.extendedLengthApduSupported = extendedLengthApduSupported;
+  }
+
+  @Override
+  public void connect() {
+    connected = true;
+  }
+
+  @Override
+  public void close() {
+    connected = false;
+  }
+
+  @Override
+  public boolean isConnected() {
+    return connected;
+  }
+
+  @Override
+  public int getMaxTransceiveLength() {
+    return maxTransceiveLength;
+  }
+
+  @Override
+  public boolean isExtendedLengthApduSupported() {
+    return extendedLengthApduSupported;
+  }
+
+  @Override
+  public byte[] transceive(byte[] apduCommandBytes) throws Exception {
+    if (apduCommandBytes == null) throw new Exception(ERROR_MSG_APDU_EMPTY);
+    if (!connected) throw new Exception(ERROR_MSG_NO_TAG);
+    if (apduCommandBytes.length > maxTransceiveLength) throw new IOException(ERROR_MSG_TRANSCEIVE_LENGTH_EXCEEDED);
+    byte[] response = cardProcessor.process(apduCommandBytes);
+    if (response == null || response.length <= 1) {
+      throw new Exception(ERROR_BAD_RESPONSE);
+    }
+    if (response.length > (extendedLengthApduSupported ? MAX_EXTENDED_LENGTH : MAX_LENGTH)) throw new IllegalArgumentException(ERROR_MSG_APDU_RESPONSE_TOO_LONG);
+    return response;
+  }
+}
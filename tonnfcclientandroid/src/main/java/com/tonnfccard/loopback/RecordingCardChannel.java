@@ -0,0 +1,65 @@
+package com.tonnfccard.loopback;
+
+import com.tonnfccard.smartcard.CardChannel;
+
+import static com.tonnfccard.helpers.ResponsesConstants.ERROR_MSG_CARD_CHANNEL_IS_NULL;
+
+/**
+ * Card channel decorator writing each successful exchange of wrapped channel (for example NfcApduRunner) into ApduTrace
+ * together with its latency. Failed exchanges are not recorded.
+ *
+ * Trace keeps raw bytes of APDU commands and responses in plain text, including PIN, HMAC keys, keys of keychain and
+ * signatures sent to or received from the card. Record only test cards and never ship or upload traces of real ones.
+ */
+
+public class RecordingCardChannel implements CardChannel {
+  private final CardChannel cardChannel;
+  private final ApduTrace trace;
+
+  public RecordingCardChannel(CardChannel cardChannel, ApduTrace trace) {
+    if (cardChannel == null) throw new IllegalArgumentException(ERROR_MSG_CARD_CHANNEL_IS_NULL);
+    this.cardChannel = cardChannel;
+    this.trace = trace == null ? new ApduTrace() : trace;
+  }
+
+  public RecordingCardChannel(CardChannel cardChannel) {
+    this(cardChannel, null);
+  }
+
+  public ApduTrace getTrace() {
+    return trace;
+  }
+
+  @Override
+  public void connect() throws Exception {
+    cardChannel.connect();
+  }
+
+  @Override
+  public void close() throws Exception {
+    cardChannel.close();
+  }
+
+  @Override
+  public boolean isConnected() {
+    return cardChannel.isConnected();
+  }
+
+  @Override
+  public byte[] transceive(byte[] apduCommandBytes) throws Exception {
+    long start = System.nanoTime();
+    byte[] response = cardChannel.transceive(apduCommandBytes);
+    trace.add(apduCommandBytes, response, (System.nanoTime() - start) / 1000);
+    return response;
+  }
+
+  @Override
+  public int getMaxTransceiveLength() {
+    return cardChannel.getMaxTransceiveLength();
+  }
+
+  @Override
+  public boolean isExtendedLengthApduSupported() {
+    return cardChannel.isExtendedLengthApduSupported();
+  }
+}
@@ -0,0 +1,23 @@
+package com.tonnfccard.loopback;
+
+import com.tonnfccard.smartcard.CardChannelApduRunner;
+
+/**
+ * ApduRunner replaying recorded ApduTrace, see TraceReplayCardChannel. It can be passed into any API class (CardKeyChainApi,
+ * TonWalletApi etc) to run the whole flow of recorded session deterministically, for example in performance regression tests.
+ */
+
+public class TraceReplayApduRunner extends CardChannelApduRunner {
+  public TraceReplayApduRunner(ApduTrace trace) {
+    this(new TraceReplayCardChannel(trace));
+  }
+
+  public TraceReplayApduRunner(TraceReplayCardChannel cardChannel) {
+    super(cardChannel);
+  }
+
+  @Override
+  public TraceReplayCardChannel getCardChannel() {
+    return (TraceReplayCardChannel) super.getCardChannel();
+  }
+}
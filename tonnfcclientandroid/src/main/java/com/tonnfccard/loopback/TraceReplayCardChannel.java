@@ -0,0 +1,209 @@
+package com.tonnfccard.loopback;
+
+import com.tonnfccard.smartcard.CardChannel;
+import com.tonnfccard.utils.ByteArrayUtil;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static com.tonnfccard.TonWalletConstants.HMAC_SHA_SIG_SIZE;
+import static com.tonnfccard.TonWalletConstants.SAULT_LENGTH;
+import static com.tonnfccard.helpers.ResponsesConstants.ERROR_MSG_APDU_EMPTY;
+import static com.tonnfccard.helpers.ResponsesConstants.ERROR_MSG_NO_TAG;
+import static com.tonnfccard.helpers.ResponsesConstants.ERROR_MSG_TRACE_MISMATCH;
+import static com.tonnfccard.smartcard.RAPDU.MAX_LENGTH;
+import static com.tonnfccard.smartcard.TonWalletAppletApduCommands.INS_GET_SAULT;
+import static com.tonnfccard.smartcard.TonWalletAppletApduCommands.WALLET_APPLET_CLA;
+
+/**
+ * Card channel serving responses from recorded ApduTrace instead of the card. It allows to replay real sessions (recorded by
+ * RecordingCardChannel) at full speed or with recorded timing, without phone and card.
+ *
+ * Each command must match the next exchange of the trace, so repeated commands (GET_APP_INFO, GET_SAULT) get their responses in
+ * recorded order. If skipping is allowed, command is searched in the rest of the trace instead, and exchanges passed over are
+ * counted (see getSkippedExchanges). Commands of TonWalletApplet protected by sault and HMAC (DATA | SAULT | MAC)
+ * are matched ignoring MAC, because MAC depends on HMAC key of the phone that recorded the trace. Such commands are detected
+ * when trace is loaded: sault in them must be equal to the one returned by last GET_SAULT of the trace. MAC is not verified.
+ *
+ * If command does not match, transceive throws Exception with ERROR_MSG_TRACE_MISMATCH.
+ */
+
+public class TraceReplayCardChannel implements CardChannel {
+  private static final byte CLA_CHANNEL_MASK = 0x03;
+  private static final int SHORT_DATA_OFFSET = 5;
+  private static final int EXTENDED_DATA_OFFSET = 7;
+  private static final int NO_MAC = -1;
+  private static final ByteArrayUtil BYTE_ARRAY_HELPER = ByteArrayUtil.getInstance();
+
+  private final List<ApduTrace.Exchange> exchanges;
+  private final int[] macOffsets;
+  private final int maxTransceiveLength;
+  private final boolean extendedLengthApduSupported;
+  private int position = 0;
+  private int skippedExchanges = 0;
+  private boolean skippingAllowed = false;
+  private boolean connected = false;
+  private volatile boolean timingSimulated = false;
+
+  public TraceReplayCardChannel(ApduTrace trace) {
+    this(trace, MAX_LENGTH, false);
+  }
+
+  /**
+   * @param maxTransceiveLength and extendedLengthApduSupported must be the same as for channel that recorded the trace,
+   *                            otherwise long data is split into APDU commands in a different way and they are not found
+   */
+  public TraceReplayCardChannel(ApduTrace trace, int maxTransceiveLength, boolean extendedLengthApduSupported) {
+    if (trace == null) throw new IllegalArgumentException(ERROR_MSG_APDU_EMPTY);
+    this.exchanges = trace.getExchanges();
+    this.macOffsets = findMacOffsets(exchanges);
+    this.maxTransceiveLength = maxTransceiveLength;
+    this.extendedLengthApduSupported = extendedLengthApduSupported;
+  }
+
+  public boolean isTimingSimulated() {
+    return timingSimulated;
+  }
+
+  /**
+   * If true, each response is returned after recorded latency of exchange. By default responses are returned immediately.
+   */
+  public void setTimingSimulated(boolean timingSimulated) {
+    this.timingSimulated = timingSimulated;
+  }
+
+  public synchronized boolean isSkippingAllowed() {
+    return skippingAllowed;
+  }
+
+  /**
+   * If true, exchanges of the trace not matching the command are skipped (for example if replayed flow sends fewer APDUs than
+   * the recorded one). By default the first mismatch fails.
+   */
+  public synchronized void setSkippingAllowed(boolean skippingAllowed) {
+    this.skippingAllowed = skippingAllowed;
+  }
+
+  /**
+   * @return number of trace exchanges skipped since the start of replay
+   */
+  public synchronized int getSkippedExchanges() {
+    return skippedExchanges;
+  }
+
+  /**
+   * Index of the trace exchange to match the next command with.
+   */
+  public synchronized int getPosition() {
+    return position;
+  }
+
+  public synchronized boolean isExhausted() {
+    return position >= exchanges.size();
+  }
+
+  /**
+   * Start replay from the beginning of the trace.
+   */
+  public synchronized void rewind() {
+    position = 0;
+    skippedExchanges = 0;
+  }
+
+  @Override
+  public synchronized void connect() {
+    connected = true;
+  }
+
+  @Override
+  public synchronized void close() {
+    connected = false;
+  }
+
+  @Override
+  public synchronized boolean isConnected() {
+    return connected;
+  }
+
+  @Override
+  public int getMaxTransceiveLength() {
+    return maxTransceiveLength;
+  }
+
+  @Override
+  public boolean isExtendedLengthApduSupported() {
+    return extendedLengthApduSupported;
+  }
+
+  @Override
+  public byte[] transceive(byte[] apduCommandBytes) throws Exception {
+    if (apduCommandBytes == null) throw new Exception(ERROR_MSG_APDU_EMPTY);
+    ApduTrace.Exchange exchange;
+    synchronized (this) {
+      if (!connected) throw new Exception(ERROR_MSG_NO_TAG);
+      int index = position;
+      while (index < exchanges.size() && !matches(apduCommandBytes, exchanges.get(index).command(), macOffsets[index])) {
+        index = skippingAllowed ? index + 1 : exchanges.size();
+      }
+      if (index == exchanges.size()) throw new Exception(ERROR_MSG_TRACE_MISMATCH + BYTE_ARRAY_HELPER.hex(apduCommandBytes));
+      skippedExchanges += index - position;
+      position = index + 1;
+      exchange = exchanges.get(index);
+    }
+    long latencyMicros = exchange.getLatencyMicros();
+    if (timingSimulated && latencyMicros > 0) {
+      Thread.sleep(latencyMicros / 1000, (int) (latencyMicros % 1000) * 1000);
+    }
+    return exchange.getResponse();
+  }
+
+  private static boolean matches(byte[] command, byte[] recordedCommand, int macOffset) {
+    if (command.length != recordedCommand.length) return false;
+    if (macOffset == NO_MAC) return Arrays.equals(command, recordedCommand);
+    for (int i = 0; i < command.length; i++) {
+      if ((i < macOffset || i >= macOffset + HMAC_SHA_SIG_SIZE) && command[i] != recordedCommand[i]) return false;
+    }
+    return true;
+  }
+
+  private static int[] findMacOffsets(List<ApduTrace.Exchange> exchanges) {
+    int[] macOffsets = new int[exchanges.size()];
+    byte[] sault = null;
+    for (int i = 0; i < exchanges.size(); i++) {
+      macOffsets[i] = NO_MAC;
+      byte[] command = exchanges.get(i).command();
+      byte[] response = exchanges.get(i).response();
+      if (command.length < SHORT_DATA_OFFSET || (command[0] & ~CLA_CHANNEL_MASK) != WALLET_APPLET_CLA) continue;
+      if (command[1] == INS_GET_SAULT) {
+        if (response.length == SAULT_LENGTH + 2) sault = Arrays.copyOf(response, SAULT_LENGTH);
+        continue;
+      }
+      int dataEnd = getDataEnd(command);
+      int saultOffset = dataEnd - HMAC_SHA_SIG_SIZE - SAULT_LENGTH;
+      if (sault != null && saultOffset >= SHORT_DATA_OFFSET
+        && Arrays.equals(Arrays.copyOfRange(command, saultOffset, saultOffset + SAULT_LENGTH), sault)) {
+        macOffsets[i] = dataEnd - HMAC_SHA_SIG_SIZE;
+      }
+    }
+    return macOffsets;
+  }
+
+  /**
+   * End of data field in raw APDU command bytes, 0 if command has no data.
+   */
+  private static int getDataEnd(byte[] command) {
+    if (command.length <= SHORT_DATA_OFFSET) return 0;
+    int lc;
+    int dataOffset;
+    if (command[4] != 0) {
+      lc = command[4] & 0xFF;
+      dataOffset = SHORT_DATA_OFFSET;
+    } else if (command.length > EXTENDED_DATA_OFFSET) {
+      lc = ((command[5] & 0xFF) << 8) | (command[6] & 0xFF);
+      dataOffset = EXTENDED_DATA_OFFSET;
+    } else {
+      return 0;
+    }
+    return dataOffset + lc <= command.length ? dataOffset + lc : 0;
+  }
+}
@@ -1,23 +1,35 @@
 package com.tonnfccard.nfc;
 
+import android.app.Activity;
 import android.content.Context;
 import android.content.Intent;
 import android.nfc.NfcAdapter;
 import android.nfc.Tag;
+import android.nfc.TagLostException;
 import android.nfc.tech.IsoDep;
+import android.os.Bundle;
 import android.util.Log;
 
 import androidx.annotation.RestrictTo;
 
+import com.tonnfccard.helpers.HmacHelper;
+import com.tonnfccard.helpers.JsonHelper;
 import com.tonnfccard.smartcard.ApduRunner;
 import com.tonnfccard.smartcard.CAPDU;
+import com.tonnfccard.smartcard.CancellationToken;
+import com.tonnfccard.smartcard.CardChannel;
+import com.tonnfccard.smartcard.CardSession;
 import com.tonnfccard.smartcard.RAPDU;
 
+import java.util.Arrays;
+
 import static android.nfc.NfcAdapter.EXTRA_TAG;
 import static com.tonnfccard.helpers.ResponsesConstants.ERROR_BAD_RESPONSE;
 import static com.tonnfccard.helpers.ResponsesConstants.ERROR_MSG_APDU_EMPTY;
 import static com.tonnfccard.helpers.ResponsesConstants.ERROR_MSG_APDU_RESPONSE_TOO_LONG;
+import static com.tonnfccard.helpers.ResponsesConstants.ERROR_MSG_EXTENDED_APDU_NOT_SUPPORTED;
 import static com.tonnfccard.helpers.ResponsesConstants.ERROR_MSG_INTENT_EMPTY;
+import static com.tonnfccard.helpers.ResponsesConstants.ERROR_MSG_NFC_CARD_CHANGED;
 import static com.tonnfccard.helpers.ResponsesConstants.ERROR_MSG_NFC_CONNECT;
 import static com.tonnfccard.helpers.ResponsesConstants.ERROR_MSG_NFC_DISABLED;
 import static com.tonnfccard.helpers.ResponsesConstants.ERROR_MSG_NFC_DISCONNECT;
@@ -25,70 +37,183 @@ import static com.tonnfccard.helpers.ResponsesConstants.ERROR_MSG_NO_CONTEXT;
 import static com.tonnfccard.helpers.ResponsesConstants.ERROR_MSG_NO_NFC_HARDWARE;
 import static com.tonnfccard.helpers.ResponsesConstants.ERROR_MSG_NO_TAG;
 import static com.tonnfccard.helpers.ResponsesConstants.ERROR_TRANSCEIVE;
+import static com.tonnfccard.smartcard.RAPDU.MAX_EXTENDED_LENGTH;
 import static com.tonnfccard.smartcard.RAPDU.MAX_LENGTH;
+import static com.tonnfccard.smartcard.TonWalletAppletApduCommands.GET_SERIAL_NUMBER_APDU;
+import static com.tonnfccard.smartcard.TonWalletAppletApduCommands.SELECT_TON_WALLET_APPLET_APDU;
 
 //@RestrictTo(RestrictTo.Scope.LIBRARY)
 
 /**
  * This class is responsible for connecting NFC cards (tags), transmitting APDU commands via NFC and getting responses from the card.
  */
-public class NfcApduRunner extends ApduRunner {
+public class NfcApduRunner extends ApduRunner implements CardChannel {
   public static final int TIME_OUT = 60000;
-  public static final int NUMBER_OF_RETRIES_ATTEMPTS = 10;
-  public static final int RETRY_TIME_OUT = 3000;
+  public static final int NUMBER_OF_RETRIES_ATTEMPTS = RetryPolicy.DEFAULT_MAX_ATTEMPTS;
+  public static final int RETRY_TIME_OUT = RetryPolicy.DEFAULT_MAX_BACKOFF;
+  public static final int DEFAULT_PRESENCE_CHECK_DELAY = 1000;
+  private static final int READER_MODE_FLAGS = NfcAdapter.FLAG_READER_NFC_A | NfcAdapter.FLAG_READER_NFC_B
+    | NfcAdapter.FLAG_READER_SKIP_NDEF_CHECK;
+  private static final String TAG = "NfcApduRunner";
+  private static final JsonHelper JSON_HELPER = JsonHelper.getInstance();
+  private static final int RE_TAP_POLL_INTERVAL = 100;
+  private static final byte SELECT_INS = (byte) 0xA4;
+  private static final int SINGLE_SIZE_UID_LENGTH = 4;
   private static NfcApduRunner nfcApduRunner;
-  private static Context apiContext;
+  private final Context apiContext;
 
   private NfcAdapter nfcAdapter;
-  private IsoDep nfcTag = null;
+  private volatile IsoDep nfcTag = null;
   private CAPDU lastSentAPDU = null;
+  private CAPDU lastSelectAPDU = null;
+  private final Object reTapLock = new Object();
+  private boolean reTapRecoveryEnabled = true;
+  private boolean reTapWaiting = false;
+
+  private RetryPolicy retryPolicy = new RetryPolicy();
+  private TimeoutPolicy timeoutPolicy = new TimeoutPolicy();
 
-  private int numberOfRetries = NUMBER_OF_RETRIES_ATTEMPTS;
+  /**
+   * State of NFC session with current tag. Adapter is checked, IsoDep is connected and its timeout is set only on transition
+   * to CONNECTED. Any transport failure, new tag or disconnect moves state back to DISCONNECTED, so next APDU re-validates
+   * the connection. While CONNECTED, APDUs go straight to IsoDep.transceive without extra calls into NFC service.
+   */
+  private enum ConnectionState {
+    DISCONNECTED,
+    CONNECTED
+  }
 
-  private int retryTimeOut = RETRY_TIME_OUT;
+  private volatile ConnectionState connectionState = ConnectionState.DISCONNECTED;
+  private boolean extendedLengthApduSupported = false;
+  private int maxTransceiveLength = 0;
+  private int currentTimeout = TIME_OUT;
 
   private NfcApduRunner(Context context) {
     super();
-    apiContext = context;
+    this.apiContext = context;
   }
 
   public CAPDU getLastSentAPDU() {
     return lastSentAPDU;
   }
 
+  public boolean isReTapRecoveryEnabled() {
+    return reTapRecoveryEnabled;
+  }
+
+  /**
+   * If enabled, operation is not retried blindly when card leaves NFC field (TagLostException). Runner waits for the card to be
+   * tapped again (new tag comes via setCardTag), checks that it is the same card by serial number (or by tag UID if serial
+   * number was not read yet and UID is not single size), selects the applet that was selected before and sends the failed APDU again. Waiting is limited by deadline of RetryPolicy and by cancellation token.
+   */
+  public void setReTapRecoveryEnabled(boolean reTapRecoveryEnabled) {
+    this.reTapRecoveryEnabled = reTapRecoveryEnabled;
+  }
+
+  public RetryPolicy getRetryPolicy() {
+    return retryPolicy;
+  }
+
+  public void setRetryPolicy(RetryPolicy retryPolicy) {
+    this.retryPolicy = retryPolicy == null ? new RetryPolicy() : retryPolicy;
+  }
+
+  public TimeoutPolicy getTimeoutPolicy() {
+    return timeoutPolicy;
+  }
+
+  public void setTimeoutPolicy(TimeoutPolicy timeoutPolicy) {
+    this.timeoutPolicy = timeoutPolicy == null ? new TimeoutPolicy() : timeoutPolicy;
+  }
+
   public void setNumberOfRetries(int numberOfRetries) {
-    this.numberOfRetries = numberOfRetries;
+    retryPolicy.setMaxAttempts(numberOfRetries);
   }
 
+  /**
+   * Set upper bound (ms) for delay between retries.
+   */
   public void setRetryTimeOut(int retryTimeOut) {
-    this.retryTimeOut = retryTimeOut;
+    retryPolicy.setMaxBackoff(retryTimeOut);
   }
 
   public synchronized static NfcApduRunner getInstance(Context context) throws Exception{
     if (context == null) throw new Exception(ERROR_MSG_NO_CONTEXT);
-    if (nfcApduRunner == null || apiContext == null) nfcApduRunner = new NfcApduRunner(context);
+    if (nfcApduRunner == null) nfcApduRunner = new NfcApduRunner(context);
     return nfcApduRunner;
   }
 
+  /**
+   * Create independent runner with its own tag, adapter, retry/timeout settings and HMAC context (unlike getInstance that
+   * returns shared default runner). To use it from several places register it in ApduRunnerRegistry.
+   */
+  public static NfcApduRunner newInstance(Context context) throws Exception {
+    if (context == null) throw new Exception(ERROR_MSG_NO_CONTEXT);
+    NfcApduRunner runner = new NfcApduRunner(context);
+    runner.setHmacHelper(HmacHelper.newInstance());
+    return runner;
+  }
+
   @RestrictTo(RestrictTo.Scope.TESTS)
   public void setCardTag(IsoDep nfcTag) {
-    this.nfcTag = nfcTag;
+    replaceTag(nfcTag);
   }
 
   @RestrictTo(RestrictTo.Scope.TESTS)
   public void setNfcAdapter(NfcAdapter nfcAdapter){
     this.nfcAdapter = nfcAdapter;
+    connectionState = ConnectionState.DISCONNECTED;
+  }
+
+  @Override
+  public CardChannel getCardChannel() {
+    return this;
   }
 
   public boolean setCardTag(Intent intent) throws Exception{
     if (intent == null) throw new Exception(ERROR_MSG_INTENT_EMPTY);
     Tag tag = intent.getParcelableExtra(EXTRA_TAG);
     if (tag == null) return false;
-    nfcTag = IsoDep.get(tag);
+    replaceTag(IsoDep.get(tag));
     return true;
   }
 
-  public void connect() throws Exception {
+  /**
+   * Receive tags through NfcAdapter reader mode instead of foreground dispatch (setCardTag(Intent)): tag goes into runner
+   * directly from NFC service without intent delivery. Only ISO-DEP tags are accepted, NDEF check is skipped.
+   * Call it from onResume of activity and call disableReaderMode from onPause.
+   * @param presenceCheckDelay interval (ms) of platform presence check, it is increased comparing to default one to avoid
+   *                           collisions of presence check with long APDU commands
+   * @param listener is notified after tag is set into runner, may be null
+   */
+  public void enableReaderMode(Activity activity, int presenceCheckDelay, NfcAdapter.ReaderCallback listener) throws Exception {
+    if (activity == null) throw new Exception(ERROR_MSG_NO_CONTEXT);
+    Bundle extras = new Bundle();
+    extras.putInt(NfcAdapter.EXTRA_READER_PRESENCE_CHECK_DELAY, presenceCheckDelay);
+    getNfcAdapter().enableReaderMode(activity, tag -> {
+      IsoDep isoDep = IsoDep.get(tag);
+      if (isoDep == null) return;
+      replaceTag(isoDep);
+      if (listener != null) listener.onTagDiscovered(tag);
+    }, READER_MODE_FLAGS, extras);
+  }
+
+  public void enableReaderMode(Activity activity, NfcAdapter.ReaderCallback listener) throws Exception {
+    enableReaderMode(activity, DEFAULT_PRESENCE_CHECK_DELAY, listener);
+  }
+
+  /**
+   * Call it from onPause of activity. It does nothing if there is no NFC hardware or NFC is disabled (reader mode is off then).
+   */
+  public void disableReaderMode(Activity activity) throws Exception {
+    if (activity == null) throw new Exception(ERROR_MSG_NO_CONTEXT);
+    if (nfcAdapter == null) nfcAdapter = NfcAdapter.getDefaultAdapter(apiContext);
+    NfcAdapter adapter = nfcAdapter;
+    if (adapter == null || !adapter.isEnabled()) return;
+    adapter.disableReaderMode(activity);
+  }
+
+  private NfcAdapter getNfcAdapter() throws Exception {
     if (nfcAdapter == null) {
       nfcAdapter = NfcAdapter.getDefaultAdapter(apiContext);
     }
@@ -96,24 +221,77 @@ public class NfcApduRunner extends ApduRunner {
       throw new Exception(ERROR_MSG_NO_NFC_HARDWARE);
     } else if (!nfcAdapter.isEnabled()) {
       throw new Exception(ERROR_MSG_NFC_DISABLED);
-    } else if (nfcTag == null) {
+    }
+    return nfcAdapter;
+  }
+
+  private void replaceTag(IsoDep newTag) {
+    boolean resumingOperation;
+    synchronized (reTapLock) {
+      nfcTag = newTag;
+      connectionState = ConnectionState.DISCONNECTED;
+      resumingOperation = reTapWaiting;
+      // New tag means new card session. Parked operation checks that the same card is tapped again and keeps its session data
+      if (resumingOperation) resetCardState();
+      else resetCardSession();
+      reTapLock.notifyAll();
+    }
+    // Parked operation continues with the new tag by itself, prefetch would interfere with it
+    if (newTag != null && isPrefetchEnabled() && !resumingOperation) startPrefetch();
+  }
+
+  @Override
+  public void connect() throws Exception {
+    if (connectionState == ConnectionState.CONNECTED && nfcTag != null) return;
+    getNfcAdapter();
+    if (nfcTag == null) {
       throw new Exception(ERROR_MSG_NO_TAG);
     }
     try {
       if (!nfcTag.isConnected()) {
         nfcTag.connect();
-        nfcTag.setTimeout(TIME_OUT);
       }
+      nfcTag.setTimeout(TIME_OUT);
+      currentTimeout = TIME_OUT;
+      extendedLengthApduSupported = nfcTag.isExtendedLengthApduSupported();
+      maxTransceiveLength = nfcTag.getMaxTransceiveLength();
+      connectionState = ConnectionState.CONNECTED;
     } catch (Exception e) {
-        throw new Exception(ERROR_MSG_NFC_CONNECT);
+        throw new Exception(ERROR_MSG_NFC_CONNECT, e);
     }
   }
 
+  @Override
+  public boolean isConnected() {
+    return nfcTag != null && connectionState == ConnectionState.CONNECTED;
+  }
+
+  @Override
+  public int getMaxTransceiveLength() {
+    if (nfcTag == null) return 0;
+    return connectionState == ConnectionState.CONNECTED ? maxTransceiveLength : nfcTag.getMaxTransceiveLength();
+  }
+
+  @Override
+  public boolean isExtendedLengthApduSupported() {
+    if (nfcTag == null) return false;
+    return connectionState == ConnectionState.CONNECTED ? extendedLengthApduSupported : nfcTag.isExtendedLengthApduSupported();
+  }
+
+  @Override
+  public void close() throws Exception {
+    disconnectCard();
+  }
+
   @Override
   public void disconnectCard() throws Exception {
+    CardSession session = getCardSession();
+    if (session != null) session.close();
     if (nfcTag == null) {
       throw new Exception(ERROR_MSG_NO_TAG);
     }
+    connectionState = ConnectionState.DISCONNECTED;
+    resetCardSession();
     try {
       nfcTag.close();
     } catch (Exception e) {
@@ -123,31 +301,153 @@ public class NfcApduRunner extends ApduRunner {
 
   @Override
   public RAPDU transmitCommand(CAPDU commandAPDU) throws  Exception {
-    Log.d("TAG","-1");
-    String lastErrorMsg = "";
-    for (int i = 0 ; i < numberOfRetries ; i++) {
-      Log.d("TAG", String.valueOf(i));
+    CancellationToken cancellationToken = getCancellationToken();
+    return retryPolicy.execute(new RetryPolicy.Attempt<RAPDU>() {
+      private IsoDep attemptTag;
+
+      @Override
+      public RAPDU run() throws Exception {
+        attemptTag = nfcTag;
+        return transmitOnce(commandAPDU, cancellationToken);
+      }
+
+      @Override
+      public boolean recover(Exception e, long deadline) throws Exception {
+        if (!isReTapNeeded(e, commandAPDU)) return false;
+        byte[] expectedSerialNumber = getCardSerialNumber();
+        if (!awaitReTap(attemptTag, deadline, cancellationToken)) throw e;
+        CAPDU selectedAPDU = verifyCardAfterReTap(attemptTag, expectedSerialNumber);
+        reselectAfterReTap(commandAPDU, selectedAPDU);
+        return true;
+      }
+    }, commandAPDU == null ? 0 : timeoutPolicy.getTimeout(commandAPDU), cancellationToken);
+  }
+
+  private RAPDU transmitOnce(CAPDU commandAPDU, CancellationToken cancellationToken) throws Exception {
+    if (nfcTag == null) {
+      throw new Exception(ERROR_MSG_NO_TAG);
+    }
+    if (commandAPDU == null) {
+      throw new Exception(ERROR_MSG_APDU_EMPTY);
+    }
+    connect();
+    if (commandAPDU.isExtended() && !extendedLengthApduSupported) {
+      throw new Exception(ERROR_MSG_EXTENDED_APDU_NOT_SUPPORTED);
+    }
+    int timeout = TimeoutPolicy.limitByRemainingTime(timeoutPolicy.getTimeout(commandAPDU), cancellationToken.getRemainingTime());
+    if (timeout != currentTimeout) {
+      nfcTag.setTimeout(timeout);
+      currentTimeout = timeout;
+    }
+    long start = System.nanoTime();
+    byte[] response;
+    try {
+      response = transceive(commandAPDU.getBytes());
+    } catch (Exception e) {
+      timeoutPolicy.onFailure(commandAPDU);
+      throw e;
+    }
+    timeoutPolicy.onSuccess(commandAPDU, (System.nanoTime() - start) / 1000000);
+    RAPDU res = new RAPDU(response, extendedLengthApduSupported);
+    lastSentAPDU = commandAPDU;
+    if (commandAPDU.getIns() == SELECT_INS && commandAPDU.getLogicalChannel() == 0 && RAPDU.isSuccess(res)) {
+      lastSelectAPDU = commandAPDU;
+    }
+    return res;
+  }
+
+  private boolean isReTapNeeded(Exception e, CAPDU commandAPDU) {
+    // Logical channels do not survive card reset, so APDU sent over logical channel can not be resumed
+    return reTapRecoveryEnabled && e.getCause() instanceof TagLostException && commandAPDU.getLogicalChannel() == 0;
+  }
+
+  /**
+   * Wait until new tag comes via setCardTag, but not longer than deadline.
+   * @return true if a card is tapped again, false if time is over
+   */
+  private boolean awaitReTap(IsoDep lostTag, long deadline, CancellationToken cancellationToken) throws Exception {
+    Log.d(TAG, "Tag is lost, wait for the card to be tapped again.");
+    IsoDep newTag;
+    synchronized (reTapLock) {
+      reTapWaiting = true;
       try {
-        if (nfcTag == null) {
-          throw new Exception(ERROR_MSG_NO_TAG);
+        long remaining;
+        while (nfcTag == lostTag && (remaining = deadline - System.currentTimeMillis()) > 0) {
+          cancellationToken.throwIfCancelled();
+          reTapLock.wait(Math.min(remaining, RE_TAP_POLL_INTERVAL));
         }
-        if (commandAPDU == null) {
-          throw new Exception(ERROR_MSG_APDU_EMPTY);
-        }
-        RAPDU res = new RAPDU(transceive(commandAPDU.getBytes()));
-        lastSentAPDU = commandAPDU;
-        return res;
-      } catch (Exception e) {
-        lastErrorMsg = e.getMessage();
-        Thread.sleep(retryTimeOut);
+        newTag = nfcTag;
+      } finally {
+        reTapWaiting = false;
       }
     }
-    throw new Exception(lastErrorMsg);
+    cancellationToken.throwIfCancelled();
+    return newTag != lostTag;
+  }
+
+  /**
+   * Check that the card tapped again is the one whose operation was interrupted. UID alone can not prove it (it may be random
+   * or a non unique 4-byte NUID), so if serial number of the card was read before, TonWallet applet is selected and serial number
+   * is read again and compared. Otherwise only the same non random UID is accepted.
+   * @return SELECT command sent to the card or null
+   */
+  private CAPDU verifyCardAfterReTap(IsoDep lostTag, byte[] expectedSerialNumber) throws Exception {
+    if (expectedSerialNumber == null) {
+      if (!isSameUid(lostTag, nfcTag)) throw new Exception(ERROR_MSG_NFC_CARD_CHANGED);
+      Log.d(TAG, "Card is tapped again, resume operation.");
+      return null;
+    }
+    byte[] serialNumber;
+    try {
+      transceiveSuccessfully(SELECT_TON_WALLET_APPLET_APDU);
+      serialNumber = transceiveSuccessfully(GET_SERIAL_NUMBER_APDU).getData();
+    } catch (Exception e) {
+      Log.d(TAG, "Serial number can not be read after re-tap: " + e.getMessage());
+      throw new Exception(ERROR_MSG_NFC_CARD_CHANGED, e);
+    }
+    if (!Arrays.equals(serialNumber, expectedSerialNumber)) throw new Exception(ERROR_MSG_NFC_CARD_CHANGED);
+    Log.d(TAG, "Card is tapped again, resume operation.");
+    return SELECT_TON_WALLET_APPLET_APDU;
+  }
+
+  private static boolean isSameUid(IsoDep lostTag, IsoDep newTag) {
+    byte[] lostId = getUniqueTagId(lostTag);
+    return lostId != null && Arrays.equals(lostId, getUniqueTagId(newTag));
+  }
+
+  /**
+   * UID of current tag, null if there is no tag or UID is single size (4 bytes): it is either random or NUID that is not unique.
+   */
+  @Override
+  public byte[] getCardId() {
+    return getUniqueTagId(nfcTag);
+  }
+
+  private static byte[] getUniqueTagId(IsoDep isoDep) {
+    if (isoDep == null || isoDep.getTag() == null) return null;
+    byte[] id = isoDep.getTag().getId();
+    return id == null || id.length == SINGLE_SIZE_UID_LENGTH ? null : id;
   }
 
-  private byte[] transceive(byte[] apduCommandBytes) throws Exception {
+  /**
+   * Applet is deselected after card reset, so the last SELECT is repeated before resuming operation (unless verifyCardAfterReTap
+   * has just sent it).
+   */
+  private void reselectAfterReTap(CAPDU commandAPDU, CAPDU selectedAPDU) throws Exception {
+    CAPDU selectAPDU = lastSelectAPDU;
+    if (selectAPDU == null || commandAPDU.getIns() == SELECT_INS || selectAPDU.equals(selectedAPDU)) return;
+    transceiveSuccessfully(selectAPDU);
+  }
+
+  private RAPDU transceiveSuccessfully(CAPDU commandAPDU) throws Exception {
+    RAPDU rapdu = new RAPDU(transceive(commandAPDU.getBytes()), extendedLengthApduSupported);
+    if (!RAPDU.isSuccess(rapdu)) throw new Exception(JSON_HELPER.createErrorJsonForCardException(rapdu.prepareSwFormatted(), commandAPDU));
+    return rapdu;
+  }
+
+  @Override
+  public byte[] transceive(byte[] apduCommandBytes) throws Exception {
     connect();
-    nfcTag.setTimeout(TIME_OUT);
     byte[] response;
     try {
      // long start = System.currentTimeMillis();
@@ -156,12 +456,14 @@ public class NfcApduRunner extends ApduRunner {
       //Log.d("TAG", "APDU = " + ByteArrayUtil.getInstance().hex(apduCommandBytes));
       //Log.d("TAG", "Time = " + String.valueOf(end - start) );
     } catch (Exception e) {
-        throw new Exception(ERROR_TRANSCEIVE + ", More details: " + e.getMessage());
+        connectionState = ConnectionState.DISCONNECTED;
+        throw new Exception(ERROR_TRANSCEIVE + ", More details: " + e.getMessage(), e);
     }
     if (response == null || response.length <= 1) {
+      connectionState = ConnectionState.DISCONNECTED;
       throw new Exception(ERROR_BAD_RESPONSE);
     }
-    if (response.length > MAX_LENGTH ) throw new IllegalArgumentException(ERROR_MSG_APDU_RESPONSE_TOO_LONG);
+    if (response.length > (extendedLengthApduSupported ? MAX_EXTENDED_LENGTH : MAX_LENGTH)) throw new IllegalArgumentException(ERROR_MSG_APDU_RESPONSE_TOO_LONG);
     return response;
   }
 }
@@ -0,0 +1,173 @@
+package com.tonnfccard.nfc;
+
+import android.nfc.TagLostException;
+import android.util.Log;
+
+import com.tonnfccard.smartcard.CancellationToken;
+
+import java.io.IOException;
+import java.util.Random;
+
+import static com.tonnfccard.helpers.ResponsesConstants.ERROR_BAD_RESPONSE;
+import static com.tonnfccard.helpers.ResponsesConstants.ERROR_MSG_NFC_CONNECT;
+import static com.tonnfccard.helpers.ResponsesConstants.ERROR_TRANSCEIVE;
+
+/**
+ * Describes how NfcApduRunner retries failed APDU transmission.
+ *
+ * Failures are classified: transport problems (tag lost, IO timeout, transceive failure, bad response) are retried with exponential
+ * backoff and jitter, any other failure (no tag, no APDU, NFC is off, programming errors) is never retried. Total time spent in
+ * retries is limited by deadline, by default it is derived from timeout of the command. Retry loop itself is execute, it is shared
+ * by all runners retrying transmissions.
+ */
+public class RetryPolicy {
+  private static final String TAG = "RetryPolicy";
+  public static final int DEFAULT_MAX_ATTEMPTS = 10;
+  public static final int DEFAULT_INITIAL_BACKOFF = 20;
+  public static final int DEFAULT_MAX_BACKOFF = 3000;
+  public static final int MIN_DEADLINE = 10000;
+  public static final int DEADLINE_TIMEOUT_MULTIPLIER = 2;
+  public static final double BACKOFF_MULTIPLIER = 2.0;
+
+  public enum FailureType {
+    TAG_LOST,
+    IO_TIMEOUT,
+    BAD_RESPONSE,
+    FATAL
+  }
+
+  /**
+   * One attempt of the operation retried by execute.
+   */
+  public interface Attempt<T> {
+    T run() throws Exception;
+
+    /**
+     * Called after retriable failure if there are attempts left. It may restore the connection (for example wait for the card to
+     * be tapped again) or throw to stop retrying.
+     * @return true if failure is recovered and the next attempt must start at once with new deadline, false to retry after backoff
+     */
+    default boolean recover(Exception e, long deadline) throws Exception {
+      return false;
+    }
+  }
+
+  private final Random random = new Random();
+
+  private int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+  private int initialBackoff = DEFAULT_INITIAL_BACKOFF;
+  private int maxBackoff = DEFAULT_MAX_BACKOFF;
+  private int deadline = 0;
+
+  public int getMaxAttempts() {
+    return maxAttempts;
+  }
+
+  public void setMaxAttempts(int maxAttempts) {
+    this.maxAttempts = Math.max(1, maxAttempts);
+  }
+
+  public int getInitialBackoff() {
+    return initialBackoff;
+  }
+
+  public void setInitialBackoff(int initialBackoff) {
+    this.initialBackoff = Math.max(0, initialBackoff);
+  }
+
+  public int getMaxBackoff() {
+    return maxBackoff;
+  }
+
+  public void setMaxBackoff(int maxBackoff) {
+    this.maxBackoff = Math.max(0, maxBackoff);
+  }
+
+  /**
+   * Total time (ms) available for all attempts of one APDU transmission, 0 means it is derived from timeout of the command.
+   */
+  public int getDeadline() {
+    return deadline;
+  }
+
+  /**
+   * Deadline (ms) of transmission of command with given timeout: deadline set by setDeadline, else DEADLINE_TIMEOUT_MULTIPLIER
+   * timeouts of the command, so that timed out attempt is retried at least once, but not less than MIN_DEADLINE.
+   */
+  public long getDeadline(int timeout) {
+    if (deadline > 0) return deadline;
+    return Math.max(MIN_DEADLINE, (long) DEADLINE_TIMEOUT_MULTIPLIER * timeout);
+  }
+
+  public void setDeadline(int deadline) {
+    this.deadline = Math.max(0, deadline);
+  }
+
+  public FailureType classify(Exception e) {
+    if (e == null || e instanceof IllegalArgumentException) return FailureType.FATAL;
+    Throwable cause = e.getCause();
+    if (e instanceof TagLostException || cause instanceof TagLostException) return FailureType.TAG_LOST;
+    if (e instanceof IOException || cause instanceof IOException) return FailureType.IO_TIMEOUT;
+    String msg = e.getMessage();
+    if (msg == null) return FailureType.FATAL;
+    if (msg.equals(ERROR_BAD_RESPONSE)) return FailureType.BAD_RESPONSE;
+    if (msg.startsWith(ERROR_MSG_NFC_CONNECT)) return FailureType.TAG_LOST;
+    if (msg.startsWith(ERROR_TRANSCEIVE)) return FailureType.IO_TIMEOUT;
+    // Unknown failure (card error, bad data, programming error) is not fixed by sending the same command again
+    return FailureType.FATAL;
+  }
+
+  public boolean isRetriable(FailureType failureType) {
+    return failureType != FailureType.FATAL;
+  }
+
+  public <T> T execute(Attempt<T> attempt, CancellationToken cancellationToken) throws Exception {
+    return execute(attempt, 0, cancellationToken);
+  }
+
+  /**
+   * Run attempt until it succeeds, fails with not retriable failure, attempts are over or deadline (see getDeadline(int), it is
+   * limited by cancellation token) is exceeded. Backoff sleep is interrupted by cancellation. If all attempts fail, Exception with
+   * message of the last failure is thrown, the failure itself is its cause.
+   * @param timeout timeout (ms) of one attempt
+   */
+  public <T> T execute(Attempt<T> attempt, int timeout, CancellationToken cancellationToken) throws Exception {
+    long attemptsDeadline = getDeadline(timeout);
+    long endTime = System.currentTimeMillis() + Math.min(attemptsDeadline, cancellationToken.getRemainingTime());
+    Exception lastException = null;
+    for (int i = 1; i <= maxAttempts; i++) {
+      cancellationToken.throwIfCancelled();
+      FailureType failureType;
+      try {
+        return attempt.run();
+      } catch (Exception e) {
+        lastException = e;
+        cancellationToken.throwIfCancelled();
+        failureType = classify(e);
+        if (!isRetriable(failureType)) throw e;
+        if (i < maxAttempts && attempt.recover(e, endTime)) {
+          endTime = System.currentTimeMillis() + Math.min(attemptsDeadline, cancellationToken.getRemainingTime());
+          continue;
+        }
+      }
+      if (i == maxAttempts) break;
+      long backoff = getBackoff(i);
+      if (System.currentTimeMillis() + backoff > endTime) break;
+      Log.d(TAG, "Attempt " + i + " failed (" + failureType + "), retry in " + backoff + " ms.");
+      cancellationToken.sleep(backoff);
+    }
+    throw new Exception(lastException.getMessage(), lastException);
+  }
+
+  /**
+   * Delay (ms) before next attempt: exponential backoff capped by maxBackoff, randomized in [delay/2, delay] ("equal jitter")
+   * to avoid retrying in lockstep with periodic field disturbances.
+   * @param attempt number of already failed attempts, starting from 1
+   */
+  public long getBackoff(int attempt) {
+    double delay = initialBackoff * Math.pow(BACKOFF_MULTIPLIER, Math.max(0, attempt - 1));
+    long cappedDelay = (long) Math.min(maxBackoff, delay);
+    long half = cappedDelay / 2;
+    return half + (long) (random.nextDouble() * (cappedDelay - half));
+  }
+}
@@ -0,0 +1,166 @@
+package com.tonnfccard.nfc;
+
+import com.tonnfccard.smartcard.CAPDU;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.tonnfccard.smartcard.CAPDU.MAX_LOGICAL_CHANNEL;
+import static com.tonnfccard.smartcard.CoinManagerApduCommands.COIN_MANAGER_CLA;
+import static com.tonnfccard.smartcard.CoinManagerApduCommands.GET_APPLET_LIST_APDU;
+import static com.tonnfccard.smartcard.CoinManagerApduCommands.GET_AVAILABLE_MEMORY_APDU;
+import static com.tonnfccard.smartcard.CoinManagerApduCommands.GET_CSN_APDU;
+import static com.tonnfccard.smartcard.CoinManagerApduCommands.GET_DEVICE_LABEL_APDU;
+import static com.tonnfccard.smartcard.CoinManagerApduCommands.GET_PIN_RTL_APDU;
+import static com.tonnfccard.smartcard.CoinManagerApduCommands.GET_PIN_TLT_APDU;
+import static com.tonnfccard.smartcard.CoinManagerApduCommands.GET_ROOT_KEY_STATUS_APDU;
+import static com.tonnfccard.smartcard.CoinManagerApduCommands.GET_SE_VERSION_APDU;
+import static com.tonnfccard.smartcard.CoinManagerApduCommands.SELECT_COIN_MANAGER_APDU;
+import static com.tonnfccard.smartcard.TonWalletAppletApduCommands.*;
+
+/**
+ * Chooses IsoDep timeout for each APDU command.
+ *
+ * Until enough latency samples are collected for a command, its timeout is default one: value given in setDefaultTimeout,
+ * else built-in budget of its class (FAST_READ_TIMEOUT for SELECT and simple getters, CRYPTO_OPERATION_TIMEOUT for signing,
+ * PIN/password verification and keychain changes), else MAX_TIMEOUT. After that timeout is learned from observed latency in
+ * the same way as TCP retransmission timeout: smoothed latency (EWMA) plus 4 smoothed deviations, multiplied by SAFETY_FACTOR
+ * and limited by [MIN_TIMEOUT, MAX_TIMEOUT].
+ * Each timeout of command doubles its budget for the next attempt, first success resets it.
+ *
+ * Commands are distinguished by CLA (without logical channel bits) | INS. CoinManager commands share the same CLA | INS and differ
+ * by TLV tag in the beginning of data, so for them the first COIN_MANAGER_TAG_LENGTH bytes of data are taken into account too.
+ */
+public class TimeoutPolicy {
+  public static final int MIN_TIMEOUT = 300;
+  public static final int MAX_TIMEOUT = NfcApduRunner.TIME_OUT;
+  public static final int MIN_SAMPLES = 5;
+  public static final int SAFETY_FACTOR = 2;
+  public static final int FAST_READ_TIMEOUT = 3000;
+  public static final int CRYPTO_OPERATION_TIMEOUT = 20000;
+  public static final int DEADLINE_TIMEOUT_STEP = 1000;
+  private static final int COIN_MANAGER_TAG_LENGTH = 5;
+  private static final double ALPHA = 0.125;
+  private static final double BETA = 0.25;
+  private static final int DEVIATION_MULTIPLIER = 4;
+
+  private static final byte[] FAST_READ_INS = {INS_GET_APP_INFO, INS_GET_SERIAL_NUMBER, INS_GET_SAULT,
+    INS_GET_HASH_OF_ENCRYPTED_PASSWORD, INS_GET_HASH_OF_ENCRYPTED_COMMON_SECRET, INS_GET_KEY_INDEX_IN_STORAGE_AND_LEN,
+    INS_GET_KEY_CHUNK, INS_CHECK_AVAILABLE_VOL_FOR_NEW_KEY, INS_GET_NUMBER_OF_KEYS, INS_GET_FREE_STORAGE_SIZE,
+    INS_GET_OCCUPIED_STORAGE_SIZE, INS_GET_HMAC, INS_GET_RECOVERY_DATA_PART, INS_GET_RECOVERY_DATA_HASH,
+    INS_GET_RECOVERY_DATA_LEN, INS_IS_RECOVERY_DATA_SET};
+  private static final byte[] CRYPTO_OPERATION_INS = {INS_FINISH_PERS, INS_SET_ENCRYPTED_PASSWORD_FOR_CARD_AUTHENTICATION,
+    INS_SET_ENCRYPTED_COMMON_SECRET, INS_SET_SERIAL_NUMBER, INS_VERIFY_PASSWORD, INS_GET_PUBLIC_KEY,
+    INS_GET_PUBLIC_KEY_WITH_DEFAULT_HD_PATH, INS_VERIFY_PIN, INS_SIGN_SHORT_MESSAGE, INS_SIGN_SHORT_MESSAGE_WITH_DEFAULT_PATH,
+    INS_CHECK_KEY_HMAC_CONSISTENCY, INS_ADD_KEY_CHUNK, INS_INITIATE_CHANGE_OF_KEY, INS_CHANGE_KEY_CHUNK, INS_INITIATE_DELETE_KEY,
+    INS_RESET_KEYCHAIN, INS_DELETE_KEY_CHUNK, INS_DELETE_KEY_RECORD, INS_ADD_RECOVERY_DATA_PART, INS_RESET_RECOVERY_DATA};
+  private static final CAPDU[] FAST_READ_APDUS = {SELECT_COIN_MANAGER_APDU, GET_ROOT_KEY_STATUS_APDU, GET_PIN_RTL_APDU,
+    GET_PIN_TLT_APDU, GET_AVAILABLE_MEMORY_APDU, GET_APPLET_LIST_APDU, GET_SE_VERSION_APDU, GET_CSN_APDU, GET_DEVICE_LABEL_APDU};
+
+  private static final Map<Long, Integer> CLASS_TIMEOUTS = new HashMap<>();
+
+  static {
+    for (byte ins : FAST_READ_INS) CLASS_TIMEOUTS.put(getKey(WALLET_APPLET_CLA, ins), FAST_READ_TIMEOUT);
+    for (byte ins : CRYPTO_OPERATION_INS) CLASS_TIMEOUTS.put(getKey(WALLET_APPLET_CLA, ins), CRYPTO_OPERATION_TIMEOUT);
+    for (CAPDU commandAPDU : FAST_READ_APDUS) CLASS_TIMEOUTS.put(getKey(commandAPDU), FAST_READ_TIMEOUT);
+  }
+
+  private static class LatencyStats {
+    double smoothedLatency;
+    double latencyDeviation;
+    int samples = 0;
+    int backoff = 1;
+  }
+
+  private final Map<Long, LatencyStats> stats = new HashMap<>();
+  private final Map<Long, Integer> defaultTimeouts = new HashMap<>();
+  private boolean adaptive = true;
+
+  public synchronized boolean isAdaptive() {
+    return adaptive;
+  }
+
+  /**
+   * If adaptive mode is off, default timeouts are always used.
+   */
+  public synchronized void setAdaptive(boolean adaptive) {
+    this.adaptive = adaptive;
+  }
+
+  /**
+   * Set timeout used for command before its latency is learned (instead of built-in budget of its class).
+   * @param commandAPDU command, only its CLA | INS (and TLV tag for CoinManager commands) matter
+   */
+  public synchronized void setDefaultTimeout(CAPDU commandAPDU, int timeout) {
+    defaultTimeouts.put(getKey(commandAPDU), Math.max(MIN_TIMEOUT, Math.min(MAX_TIMEOUT, timeout)));
+  }
+
+  public synchronized int getTimeout(CAPDU commandAPDU) {
+    Long key = getKey(commandAPDU);
+    Integer defaultTimeout = defaultTimeouts.get(key);
+    if (defaultTimeout == null) defaultTimeout = CLASS_TIMEOUTS.get(key);
+    int timeout = defaultTimeout == null ? MAX_TIMEOUT : defaultTimeout;
+    LatencyStats latencyStats = stats.get(key);
+    if (!adaptive || latencyStats == null || latencyStats.samples < MIN_SAMPLES) return timeout;
+    long learnedTimeout = (long) (SAFETY_FACTOR * (latencyStats.smoothedLatency + DEVIATION_MULTIPLIER * latencyStats.latencyDeviation))
+      * latencyStats.backoff;
+    return (int) Math.max(MIN_TIMEOUT, Math.min(MAX_TIMEOUT, learnedTimeout));
+  }
+
+  /**
+   * Limit timeout of command by time (ms) left until deadline of operation. Remaining time is rounded down to DEADLINE_TIMEOUT_STEP,
+   * so that timeout (and IsoDep.setTimeout call) does not change on each command while deadline comes closer.
+   */
+  public static int limitByRemainingTime(int timeout, long remainingTime) {
+    if (remainingTime >= timeout) return timeout;
+    return (int) Math.max(MIN_TIMEOUT, remainingTime / DEADLINE_TIMEOUT_STEP * DEADLINE_TIMEOUT_STEP);
+  }
+
+  /**
+   * Register latency (ms) of successful transceive.
+   */
+  public synchronized void onSuccess(CAPDU commandAPDU, long latency) {
+    Long key = getKey(commandAPDU);
+    LatencyStats latencyStats = stats.get(key);
+    if (latencyStats == null) {
+      latencyStats = new LatencyStats();
+      latencyStats.smoothedLatency = latency;
+      latencyStats.latencyDeviation = latency / 2.0;
+      stats.put(key, latencyStats);
+    } else {
+      latencyStats.latencyDeviation = (1 - BETA) * latencyStats.latencyDeviation + BETA * Math.abs(latencyStats.smoothedLatency - latency);
+      latencyStats.smoothedLatency = (1 - ALPHA) * latencyStats.smoothedLatency + ALPHA * latency;
+    }
+    latencyStats.samples++;
+    latencyStats.backoff = 1;
+  }
+
+  /**
+   * Register failed (possibly timed out) transceive.
+   */
+  public synchronized void onFailure(CAPDU commandAPDU) {
+    LatencyStats latencyStats = stats.get(getKey(commandAPDU));
+    if (latencyStats != null && latencyStats.samples >= MIN_SAMPLES
+      && latencyStats.backoff < MAX_TIMEOUT / MIN_TIMEOUT) {
+      latencyStats.backoff *= 2;
+    }
+  }
+
+  public synchronized void reset() {
+    stats.clear();
+  }
+
+  private static long getKey(CAPDU commandAPDU) {
+    long key = getKey(commandAPDU.getCla(), commandAPDU.getIns());
+    if ((commandAPDU.getCla() & ~MAX_LOGICAL_CHANNEL) != COIN_MANAGER_CLA) return key;
+    byte[] data = commandAPDU.getData();
+    for (int i = 0; i < COIN_MANAGER_TAG_LENGTH; i++) {
+      key = (key << 8) | (i < data.length ? data[i] & 0xFF : 0);
+    }
+    return key;
+  }
+
+  private static long getKey(byte cla, byte ins) {
+    return ((cla & ~MAX_LOGICAL_CHANNEL & 0xFF) << 8) | (ins & 0xFF);
+  }
+}
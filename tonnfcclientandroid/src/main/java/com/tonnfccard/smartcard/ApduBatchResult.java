@@ -0,0 +1,47 @@
+package com.tonnfccard.smartcard;
+
+/**
+ * Result of ApduRunner.sendAPDUBatch: responses for all transmitted APDUs. Batch stops at the first failed APDU, then its index
+ * and error are available and responses starting from this index are null.
+ */
+public class ApduBatchResult {
+  public static final int NO_FAILURE = -1;
+
+  private final RAPDU[] responses;
+  private final int failedIndex;
+  private final Exception error;
+
+  ApduBatchResult(RAPDU[] responses) {
+    this(responses, NO_FAILURE, null);
+  }
+
+  ApduBatchResult(RAPDU[] responses, int failedIndex, Exception error) {
+    this.responses = responses;
+    this.failedIndex = failedIndex;
+    this.error = error;
+  }
+
+  public boolean isSuccess() {
+    return failedIndex == NO_FAILURE;
+  }
+
+  public RAPDU[] getResponses() {
+    return responses;
+  }
+
+  /**
+   * Index of the failed APDU in the batch or NO_FAILURE.
+   */
+  public int getFailedIndex() {
+    return failedIndex;
+  }
+
+  public Exception getError() {
+    return error;
+  }
+
+  public RAPDU[] getResponsesOrThrow() throws Exception {
+    if (error != null) throw error;
+    return responses;
+  }
+}
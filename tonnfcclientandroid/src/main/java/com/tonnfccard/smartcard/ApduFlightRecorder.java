@@ -0,0 +1,179 @@
+package com.tonnfccard.smartcard;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Always-on recorder of APDU exchange: each command and its response (or transport failure) are written as one fixed-size
+ * binary record into preallocated off-heap ring buffer, so that after failure in the field the last records can be dumped
+ * into a file. Recording does not allocate and does not format anything.
+ *
+ * Record layout (RECORD_SIZE bytes, big endian):
+ * 0 stamp (sequence number + 1, written last, 0 means empty or incomplete record) | 8 timestamp (ms) | 16 latency (us) |
+ * 20 Lc | 24 Le | 28 response data length | 32 SW | 34 CLA | 35 INS | 36 P1 | 37 P2 | 38 record type |
+ * 39 length of command payload prefix | 40 length of response payload prefix | 48 command payload prefix |
+ * 64 response payload prefix.
+ *
+ * Payload (APDU data) may contain PIN, keys and MACs, so by default it is not recorded at all (PayloadPolicy.NONE).
+ *
+ * Dump file: MAGIC | version (int) | RECORD_SIZE (int) | number of records (int) | records from oldest to newest.
+ */
+public class ApduFlightRecorder {
+  public static final int DEFAULT_CAPACITY = 256;
+  public static final int RECORD_SIZE = 80;
+  public static final int PAYLOAD_PREFIX_SIZE = 16;
+  public static final int VERSION = 1;
+  public static final byte[] MAGIC = {'A', 'P', 'D', 'R'};
+  public static final byte TYPE_RESPONSE = 0x01;
+  public static final byte TYPE_TRANSPORT_FAILURE = 0x02;
+
+  public static final int STAMP_OFFSET = 0;
+  public static final int TIMESTAMP_OFFSET = 8;
+  public static final int LATENCY_OFFSET = 16;
+  public static final int LC_OFFSET = 20;
+  public static final int LE_OFFSET = 24;
+  public static final int RESPONSE_LENGTH_OFFSET = 28;
+  public static final int SW_OFFSET = 32;
+  public static final int HEADER_OFFSET = 34;
+  public static final int TYPE_OFFSET = 38;
+  public static final int COMMAND_PAYLOAD_LENGTH_OFFSET = 39;
+  public static final int RESPONSE_PAYLOAD_LENGTH_OFFSET = 40;
+  public static final int COMMAND_PAYLOAD_OFFSET = 48;
+  public static final int RESPONSE_PAYLOAD_OFFSET = 64;
+
+  public enum PayloadPolicy {
+    NONE,
+    PREFIX
+  }
+
+  private final ByteBuffer buffer;
+  private final int capacity;
+  private final AtomicLong sequence = new AtomicLong();
+  private volatile PayloadPolicy payloadPolicy = PayloadPolicy.NONE;
+
+  public ApduFlightRecorder() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  /**
+   * @param capacity max number of records kept, older records are overwritten
+   */
+  public ApduFlightRecorder(int capacity) {
+    this.capacity = Math.max(1, capacity);
+    this.buffer = ByteBuffer.allocateDirect(this.capacity * RECORD_SIZE);
+  }
+
+  public int getCapacity() {
+    return capacity;
+  }
+
+  public PayloadPolicy getPayloadPolicy() {
+    return payloadPolicy;
+  }
+
+  /**
+   * PREFIX records first PAYLOAD_PREFIX_SIZE bytes of command and response data. Use it only for debugging, since data may be
+   * secret.
+   */
+  public void setPayloadPolicy(PayloadPolicy payloadPolicy) {
+    this.payloadPolicy = payloadPolicy == null ? PayloadPolicy.NONE : payloadPolicy;
+  }
+
+  /**
+   * Number of records written since creation (or clear), including overwritten ones.
+   */
+  public long getRecordCount() {
+    return sequence.get();
+  }
+
+  public void record(CAPDU commandAPDU, RAPDU responseAPDU, long latencyNanos) {
+    write(commandAPDU, responseAPDU, latencyNanos, TYPE_RESPONSE);
+  }
+
+  public void recordFailure(CAPDU commandAPDU, long latencyNanos) {
+    write(commandAPDU, null, latencyNanos, TYPE_TRANSPORT_FAILURE);
+  }
+
+  private void write(CAPDU commandAPDU, RAPDU responseAPDU, long latencyNanos, byte type) {
+    long seq = sequence.getAndIncrement();
+    int offset = (int) (seq % capacity) * RECORD_SIZE;
+    byte[] command = commandAPDU.getBytes();
+    buffer.putLong(offset + STAMP_OFFSET, 0);
+    buffer.putLong(offset + TIMESTAMP_OFFSET, System.currentTimeMillis());
+    buffer.putInt(offset + LATENCY_OFFSET, (int) Math.min(Integer.MAX_VALUE, latencyNanos / 1000));
+    buffer.putInt(offset + LC_OFFSET, commandAPDU.getLc());
+    buffer.putInt(offset + LE_OFFSET, commandAPDU.getLe());
+    for (int i = 0; i < CAPDU.HEADER_LENGTH; i++) {
+      buffer.put(offset + HEADER_OFFSET + i, command[i]);
+    }
+    buffer.put(offset + TYPE_OFFSET, type);
+    int responseLength = 0;
+    short sw = 0;
+    byte[] response = null;
+    if (responseAPDU != null) {
+      response = responseAPDU.getBytes();
+      responseLength = response.length - RAPDU.MIN_LENGTH;
+      sw = (short) (((response[responseLength] & 0xFF) << 8) | (response[responseLength + 1] & 0xFF));
+    }
+    buffer.putInt(offset + RESPONSE_LENGTH_OFFSET, responseLength);
+    buffer.putShort(offset + SW_OFFSET, sw);
+    int commandPayloadLength = 0;
+    int responsePayloadLength = 0;
+    if (payloadPolicy == PayloadPolicy.PREFIX) {
+      int dataOffset = commandAPDU.isExtended() ? CAPDU.HEADER_LENGTH + 3 : CAPDU.HEADER_LENGTH + 1;
+      commandPayloadLength = Math.min(PAYLOAD_PREFIX_SIZE, commandAPDU.getLc());
+      for (int i = 0; i < commandPayloadLength; i++) {
+        buffer.put(offset + COMMAND_PAYLOAD_OFFSET + i, command[dataOffset + i]);
+      }
+      responsePayloadLength = Math.min(PAYLOAD_PREFIX_SIZE, responseLength);
+      for (int i = 0; i < responsePayloadLength; i++) {
+        buffer.put(offset + RESPONSE_PAYLOAD_OFFSET + i, response[i]);
+      }
+    }
+    buffer.put(offset + COMMAND_PAYLOAD_LENGTH_OFFSET, (byte) commandPayloadLength);
+    buffer.put(offset + RESPONSE_PAYLOAD_LENGTH_OFFSET, (byte) responsePayloadLength);
+    buffer.putLong(offset + STAMP_OFFSET, seq + 1);
+  }
+
+  public void clear() {
+    for (int i = 0; i < capacity; i++) {
+      buffer.putLong(i * RECORD_SIZE + STAMP_OFFSET, 0);
+    }
+    sequence.set(0);
+  }
+
+  public void dump(File file) throws IOException {
+    try (OutputStream outputStream = new FileOutputStream(file)) {
+      dump(outputStream);
+    }
+  }
+
+  /**
+   * Write records from oldest to newest. Records being written at the moment of dump are skipped.
+   */
+  public void dump(OutputStream outputStream) throws IOException {
+    long last = sequence.get();
+    long first = Math.max(0, last - capacity);
+    ByteBuffer records = ByteBuffer.allocate((int) (last - first) * RECORD_SIZE);
+    byte[] record = new byte[RECORD_SIZE];
+    for (long seq = first; seq < last; seq++) {
+      int offset = (int) (seq % capacity) * RECORD_SIZE;
+      for (int i = 0; i < RECORD_SIZE; i++) {
+        record[i] = buffer.get(offset + i);
+      }
+      // Record is complete and was not overwritten while copying
+      if (ByteBuffer.wrap(record).getLong(STAMP_OFFSET) == seq + 1 && buffer.getLong(offset + STAMP_OFFSET) == seq + 1) {
+        records.put(record);
+      }
+    }
+    ByteBuffer header = ByteBuffer.allocate(MAGIC.length + 3 * 4);
+    header.put(MAGIC).putInt(VERSION).putInt(RECORD_SIZE).putInt(records.position() / RECORD_SIZE);
+    outputStream.write(header.array());
+    outputStream.write(records.array(), 0, records.position());
+    outputStream.flush();
+  }
+}
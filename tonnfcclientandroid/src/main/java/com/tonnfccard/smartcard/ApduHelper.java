@@ -38,6 +38,7 @@ public class ApduHelper {
   //Get the name of any APDU command, return null if command is not recognized
   public String getApduCommandName(CAPDU commandAPDU) {
     if (commandAPDU == null) throw new IllegalArgumentException(ERROR_MSG_CAPDU_IS_NULL);
+    if (commandAPDU.getLogicalChannel() != 0) commandAPDU = commandAPDU.withLogicalChannel(0);
     if (isSelectAPDU(commandAPDU)) {
       if (commandAPDU.getData().length == 0)
         return SELECT_COIN_MANAGER_APDU_NAME;
@@ -0,0 +1,46 @@
+package com.tonnfccard.smartcard;
+
+/**
+ * Receives APDU exchange of ApduRunner. Runner calls isLoggable before passing anything to logger, so while logging is
+ * disabled nothing is formatted or allocated. Commands and responses are passed as objects and only logger formats them.
+ */
+public interface ApduLogger {
+  enum Level {
+    NONE,
+    ERROR,
+    DEBUG
+  }
+
+  /**
+   * Logger that never logs.
+   */
+  ApduLogger NONE = new ApduLogger() {
+    @Override
+    public boolean isLoggable(Level level) {
+      return false;
+    }
+
+    @Override
+    public void logCommand(CAPDU commandAPDU) {
+    }
+
+    @Override
+    public void logResponse(CAPDU commandAPDU, RAPDU responseAPDU) {
+    }
+
+    @Override
+    public void log(Level level, String msg) {
+    }
+  };
+
+  boolean isLoggable(Level level);
+
+  void logCommand(CAPDU commandAPDU);
+
+  /**
+   * Called for each response with DEBUG level and for failed response (SW != 9000) with ERROR level.
+   */
+  void logResponse(CAPDU commandAPDU, RAPDU responseAPDU);
+
+  void log(Level level, String msg);
+}
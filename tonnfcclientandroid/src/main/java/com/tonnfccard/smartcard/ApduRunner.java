@@ -1,46 +1,513 @@
 package com.tonnfccard.smartcard;
 
 import android.content.Intent;
-import android.util.Log;
 
 import androidx.annotation.RestrictTo;
 
+import com.tonnfccard.helpers.HmacHelper;
 import com.tonnfccard.helpers.JsonHelper;
 import com.tonnfccard.utils.ByteArrayUtil;
 
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
 
+import static com.tonnfccard.TonWalletConstants.SAULT_LENGTH;
+import static com.tonnfccard.TonWalletConstants.SERIAL_NUMBER_SIZE;
 import static com.tonnfccard.helpers.ResponsesConstants.ERROR_MSG_APDU_EMPTY;
+import static com.tonnfccard.helpers.ResponsesConstants.ERROR_MSG_APDU_LIST_EMPTY;
 import static com.tonnfccard.helpers.ResponsesConstants.ERROR_MSG_APDU_NOT_SUPPORTED;
+import static com.tonnfccard.helpers.ResponsesConstants.ERROR_MSG_EXTENDED_APDU_NOT_SUPPORTED;
+import static com.tonnfccard.helpers.ResponsesConstants.ERROR_MSG_PREFETCH_CARD_SESSION_IS_OVER;
+import static com.tonnfccard.helpers.ResponsesConstants.ERROR_MSG_PREFETCH_NOT_FINISHED;
+import static com.tonnfccard.helpers.ResponsesConstants.ERROR_MSG_PREFETCH_WAIT_TIMEOUT_INCORRECT;
 import static com.tonnfccard.helpers.ResponsesConstants.ERROR_MSG_STATE_RESPONSE_LEN_INCORRECT;
+import static com.tonnfccard.smartcard.CommonConstants.GET_RESPONSE_INS;
+import static com.tonnfccard.smartcard.CommonConstants.MANAGE_CHANNEL_CLOSE_P1;
+import static com.tonnfccard.smartcard.CommonConstants.MANAGE_CHANNEL_INS;
+import static com.tonnfccard.smartcard.CommonConstants.MANAGE_CHANNEL_OPEN_P1;
 import static com.tonnfccard.smartcard.CommonConstants.SELECT_CLA;
 import static com.tonnfccard.smartcard.CommonConstants.SELECT_INS;
-import static com.tonnfccard.smartcard.ErrorCodes.getMsg;
+import static com.tonnfccard.smartcard.ErrorCodes.SW_CORRECT_EXPECTED_LENGTH;
+import static com.tonnfccard.smartcard.ErrorCodes.SW_INCORRECT_APDU_HMAC;
+import static com.tonnfccard.smartcard.ErrorCodes.SW_RESPONSE_BYTES_REMAINING;
+import static com.tonnfccard.smartcard.CoinManagerApduCommands.COIN_MANAGER_CLA;
 import static com.tonnfccard.smartcard.CoinManagerApduCommands.SELECT_COIN_MANAGER_APDU;
+import static com.tonnfccard.smartcard.TonWalletAppletApduCommands.GET_APP_INFO_APDU;
 import static com.tonnfccard.smartcard.TonWalletAppletApduCommands.GET_APPLET_STATE_APDU_LIST;
+import static com.tonnfccard.smartcard.TonWalletAppletApduCommands.GET_SAULT_APDU;
+import static com.tonnfccard.smartcard.TonWalletAppletApduCommands.GET_SERIAL_NUMBER_APDU;
 import static com.tonnfccard.smartcard.TonWalletAppletApduCommands.INS_GET_APP_INFO;
+import static com.tonnfccard.smartcard.TonWalletAppletApduCommands.INS_GET_SAULT;
+import static com.tonnfccard.smartcard.TonWalletAppletApduCommands.INS_GET_SERIAL_NUMBER;
 import static com.tonnfccard.smartcard.TonWalletAppletApduCommands.SELECT_TON_WALLET_APPLET_APDU;
+import static com.tonnfccard.smartcard.TonWalletAppletApduCommands.TON_WALLET_APPLET_AID;
+import static com.tonnfccard.smartcard.TonWalletAppletApduCommands.WALLET_APPLET_CLA;
 import static com.tonnfccard.smartcard.TonWalletAppletApduCommands.getTonWalletAppletApduCommandName;
 
 
 @RestrictTo(RestrictTo.Scope.LIBRARY)
 public abstract class ApduRunner {
-  private static final String TAG = "ApduRunner";
   private static final JsonHelper JSON_HELPER = JsonHelper.getInstance();
-  private static final ApduHelper APDU_HELPER = ApduHelper.getInstance();
   private static final ByteArrayUtil BYTE_ARRAY_HELPER = ByteArrayUtil.getInstance();
+  private static final byte SW1_RESPONSE_BYTES_REMAINING = (byte) (SW_RESPONSE_BYTES_REMAINING >> 8);
+  private static final byte SW1_CORRECT_EXPECTED_LENGTH = (byte) (SW_CORRECT_EXPECTED_LENGTH >> 8);
+  private static final byte LOGICAL_CHANNEL_MASK = 0x03;
+  private static final int MAX_GET_RESPONSE_COUNT = 256;
+  private static final byte BASIC_CHANNEL = 0x00;
+  private static final int PREFETCH_WAIT_TIME_OUT = 10000;
+  private static final CAPDU MANAGE_CHANNEL_OPEN_APDU = new CAPDU(SELECT_CLA, MANAGE_CHANNEL_INS, MANAGE_CHANNEL_OPEN_P1, BASIC_CHANNEL, (byte) 0x01);
+
+  private volatile ApduLogger apduLogger = new LogcatApduLogger(ApduLogger.Level.DEBUG);
+  private volatile ApduFlightRecorder flightRecorder = new ApduFlightRecorder();
+  private volatile CancellationToken cancellationToken = new CancellationToken();
+  private final ThreadLocal<CancellationToken> operationCancellationToken = new ThreadLocal<>();
+  private HmacHelper hmacHelper = null;
+  private boolean logicalChannelsEnabled = false;
+  private boolean logicalChannelsSupported = true;
+  private byte tonWalletChannel = BASIC_CHANNEL;
+  private byte coinManagerChannel = BASIC_CHANNEL;
+  private boolean prefetchEnabled = false;
+  private volatile PrefetchThread prefetchThread = null;
+  // Incremented each time state of the card is reset (new tag, disconnect, re-tap), prefetch is valid only for the card state it is started for
+  private final AtomicLong cardStateGeneration = new AtomicLong();
+  private int prefetchWaitTimeout = PREFETCH_WAIT_TIME_OUT;
+  private volatile PrefetchedCardData prefetchedData = null;
+  private volatile byte[] cardSerialNumber = null;
+  private boolean appletStateCacheEnabled = false;
+  private int appletStateCacheScopes = 0;
+  private volatile RAPDU cachedAppletState = null;
+  private volatile CardSession cardSession = null;
+  private volatile CardIdCache cardIdCache = new CardIdCache();
+  private final AtomicLong hmacRejectionCount = new AtomicLong();
 
   public ApduRunner() {
   }
 
+  /**
+   * Own HMAC context (current serial number and its key) of this runner. Null means that runner uses shared context, as
+   * default NfcApduRunner does.
+   */
+  public HmacHelper getHmacHelper() {
+    return hmacHelper;
+  }
+
+  public void setHmacHelper(HmacHelper hmacHelper) {
+    this.hmacHelper = hmacHelper;
+  }
+
+  public ApduLogger getApduLogger() {
+    return apduLogger;
+  }
+
+  /**
+   * Set logger of APDU exchange. By default all APDUs are logged into logcat, null (or ApduLogger.NONE) turns logging off.
+   */
+  public void setApduLogger(ApduLogger apduLogger) {
+    this.apduLogger = apduLogger == null ? ApduLogger.NONE : apduLogger;
+  }
+
+  public ApduFlightRecorder getFlightRecorder() {
+    return flightRecorder;
+  }
+
+  /**
+   * Set recorder of APDU exchange, null turns recording off.
+   */
+  public void setFlightRecorder(ApduFlightRecorder flightRecorder) {
+    this.flightRecorder = flightRecorder;
+  }
+
+  private void logDebug(String msg) {
+    ApduLogger logger = apduLogger;
+    if (logger.isLoggable(ApduLogger.Level.DEBUG)) logger.log(ApduLogger.Level.DEBUG, msg);
+  }
+
+  /**
+   * @return token of operation running in the current thread (see runWithCancellationToken), else token of the runner
+   */
+  public CancellationToken getCancellationToken() {
+    CancellationToken token = operationCancellationToken.get();
+    return token != null ? token : cancellationToken;
+  }
+
+  /**
+   * Set token checked before each APDU of all operations which are not run with their own token. Null resets it to a fresh
+   * (never cancelled) token.
+   */
+  public void setCancellationToken(CancellationToken cancellationToken) {
+    this.cancellationToken = cancellationToken == null ? new CancellationToken() : cancellationToken;
+  }
+
+  /**
+   * Run operation checking given token before each APDU instead of token of the runner. Token is bound to the current thread
+   * only, so cancelling it does not affect operations run by other threads with the same runner.
+   */
+  public <T> T runWithCancellationToken(CancellationToken token, Callable<T> operation) throws Exception {
+    CancellationToken previousToken = operationCancellationToken.get();
+    operationCancellationToken.set(token);
+    try {
+      return operation.call();
+    } finally {
+      if (previousToken == null) operationCancellationToken.remove();
+      else operationCancellationToken.set(previousToken);
+    }
+  }
+
+  /**
+   * Throw ERROR_NFC_CONNECTION_INTERRUPTED (or ERROR_MSG_OPERATION_DEADLINE_EXCEEDED) if current operation is cancelled.
+   */
+  public void checkCancelled() throws Exception {
+    getCancellationToken().throwIfCancelled();
+  }
+
+  public boolean isLogicalChannelsEnabled() {
+    return logicalChannelsEnabled;
+  }
+
+  /**
+   * If enabled, TonWallet applet and CoinManager get their own logical channels (opened by MANAGE CHANNEL) and stay selected
+   * there until card session is over, so flows switching between applets do not repeat SELECT. CLA channel bits of their
+   * APDUs are set automatically. If card does not support logical channels, runner falls back to SELECT on basic channel.
+   */
+  public void setLogicalChannelsEnabled(boolean logicalChannelsEnabled) {
+    this.logicalChannelsEnabled = logicalChannelsEnabled;
+    resetLogicalChannels();
+  }
+
+  /**
+   * Forget logical channels opened on the card. Must be called when card session is over (new tag or disconnect).
+   */
+  public void resetLogicalChannels() {
+    tonWalletChannel = BASIC_CHANNEL;
+    coinManagerChannel = BASIC_CHANNEL;
+    logicalChannelsSupported = true;
+  }
+
+  /**
+   * Start new card session: forget logical channels, prefetched data, applet state and CardSession data of previous one.
+   * It is called when new tag is attached and when card is disconnected, but not on reconnect to the same tag after transient
+   * transport failure, since the card keeps its state then.
+   */
+  public void resetCardSession() {
+    resetCardState();
+    cardSerialNumber = null;
+    CardSession session = cardSession;
+    if (session != null) session.clear();
+  }
+
+  /**
+   * @return serial number read from the card in current card session (by any operation or prefetch) or null
+   */
+  public byte[] getCardSerialNumber() {
+    byte[] serialNumber = cardSerialNumber;
+    if (serialNumber == null) {
+      CardSession session = cardSession;
+      serialNumber = session == null ? null : session.getSerialNumber();
+    }
+    return serialNumber == null ? null : serialNumber.clone();
+  }
+
+  /**
+   * Forget state kept by the card itself (logical channels, selected applet and its state, prefetched sault), for example when
+   * the same card is tapped again and its operation is resumed. CardSession data stays valid for the same card.
+   */
+  protected void resetCardState() {
+    cardStateGeneration.incrementAndGet();
+    resetLogicalChannels();
+    prefetchedData = null;
+    cachedAppletState = null;
+  }
+
+  /**
+   * Open session for a sequence of operations with the same card, so that serial number, TonWallet applet state and HMAC key
+   * resolved by the first operation are reused by the next ones instead of being read again (applet state cache works as inside
+   * runWithAppletStateCache). Session opened before is closed. Use it in try-with-resources, disconnectCard closes it too.
+   */
+  public synchronized CardSession openCardSession() {
+    CardSession session = cardSession;
+    if (session != null) session.close();
+    session = new CardSession(this);
+    cardSession = session;
+    return session;
+  }
+
+  /**
+   * @return open card session or null
+   */
+  public CardSession getCardSession() {
+    return cardSession;
+  }
+
+  synchronized void closeCardSession(CardSession session) {
+    if (session != cardSession) return;
+    session.markClosed();
+    cardSession = null;
+    if (appletStateCacheScopes == 0 && !appletStateCacheEnabled) cachedAppletState = null;
+  }
+
+  public boolean isAppletStateCacheEnabled() {
+    return appletStateCacheEnabled;
+  }
+
+  /**
+   * If enabled, TonWallet applet state read by SELECT + GET_APP_INFO is kept for the whole card session while it is surely
+   * valid, and TonWallet applet commands are sent without this preamble. State is dropped when card session is over, when command
+   * that may change state is sent (see TonWalletAppletStates.isStateChangingIns), when any command fails and when another applet
+   * is selected on the channel of TonWallet applet. By default state is cached only inside runWithAppletStateCache.
+   */
+  public void setAppletStateCacheEnabled(boolean appletStateCacheEnabled) {
+    this.appletStateCacheEnabled = appletStateCacheEnabled;
+    cachedAppletState = null;
+  }
+
+  /**
+   * Run operation sending many TonWallet applet commands (for example reading data chunk by chunk) with applet state cache
+   * enabled, so that SELECT + GET_APP_INFO is sent once instead of before each command. Cached state is dropped when the
+   * outermost operation is over, unless cache is enabled for the whole session.
+   */
+  public <T> T runWithAppletStateCache(Callable<T> operation) throws Exception {
+    appletStateCacheScopes++;
+    try {
+      return operation.call();
+    } finally {
+      if (--appletStateCacheScopes == 0 && !appletStateCacheEnabled && cardSession == null) cachedAppletState = null;
+    }
+  }
+
+  /**
+   * Forget cached TonWallet applet state, so that the next TonWallet applet command is preceded by SELECT + GET_APP_INFO.
+   */
+  public void invalidateAppletState() {
+    cachedAppletState = null;
+  }
+
+  public boolean isPrefetchEnabled() {
+    return prefetchEnabled;
+  }
+
+  /**
+   * If enabled, runner reads TonWallet applet state, serial number and sault as soon as tag is attached (see startPrefetch).
+   */
+  public void setPrefetchEnabled(boolean prefetchEnabled) {
+    this.prefetchEnabled = prefetchEnabled;
+  }
+
+  public int getPrefetchWaitTimeout() {
+    return prefetchWaitTimeout;
+  }
+
+  /**
+   * Set time (ms) operation waits for prefetch before it stops prefetch (interrupts it and closes the connection).
+   */
+  public void setPrefetchWaitTimeout(int prefetchWaitTimeout) {
+    if (prefetchWaitTimeout <= 0) throw new IllegalArgumentException(ERROR_MSG_PREFETCH_WAIT_TIMEOUT_INCORRECT);
+    this.prefetchWaitTimeout = prefetchWaitTimeout;
+  }
+
+  /**
+   * Read TonWallet applet state, serial number and sault in background thread while user is still busy with UI, so that the next
+   * operation takes them from cache instead of sending SELECT, GET_APP_INFO, GET_SERIAL_NUMBER and GET_SAULT.
+   * Any APDU sent by the operation waits until prefetch is finished. Prefetched data is dropped as soon as any other APDU is
+   * sent to the card (since applet state and sault may change) and when new card session starts. Prefetch belongs to the card
+   * state it is started for: when new tag is attached, prefetch of the previous one is interrupted and new prefetch is started,
+   * previous prefetch sends no more APDUs and its result is thrown away.
+   */
+  public synchronized void startPrefetch() {
+    long generation = cardStateGeneration.get();
+    PrefetchThread thread = prefetchThread;
+    if (thread != null) {
+      if (thread.generation == generation) return;
+      // Prefetch started for previous tag may be stuck in transceive, it stops as soon as it is unblocked
+      thread.interrupt();
+    }
+    thread = new PrefetchThread(generation);
+    prefetchThread = thread;
+    thread.start();
+  }
+
+  // Thread of prefetch started for one state of the card (see cardStateGeneration)
+  private class PrefetchThread extends Thread {
+    private final long generation;
+
+    PrefetchThread(long generation) {
+      this.generation = generation;
+    }
+
+    @Override
+    public void run() {
+      try {
+        prefetch(this);
+      } catch (Exception e) {
+        logDebug("Prefetch failed: " + e.getMessage());
+      } finally {
+        onPrefetchFinished(this);
+      }
+    }
+
+    // Prefetch is interrupted by operation which could not wait for it any longer, or card state it is started for is over
+    // (new tag is attached), it must not send APDUs or publish data then
+    boolean isStopped() {
+      return isInterrupted() || generation != cardStateGeneration.get();
+    }
+  }
+
+  private synchronized void onPrefetchFinished(PrefetchThread thread) {
+    if (prefetchThread == thread) prefetchThread = null;
+  }
+
+  private void prefetch(PrefetchThread thread) throws Exception {
+    RAPDU stateResponse = selectTonWalletAppletAndGetState();
+    TonWalletAppletStates appletState = TonWalletAppletStates.findByStateValue(stateResponse.getData()[0]);
+    if (!TonWalletAppletStates.getStateByIns(INS_GET_SERIAL_NUMBER).contains(appletState)) return;
+    byte[] serialNumber = sendAPDU(GET_SERIAL_NUMBER_APDU).getData();
+    if (serialNumber.length != SERIAL_NUMBER_SIZE) return;
+    byte[] sault = null;
+    if (TonWalletAppletStates.getStateByIns(INS_GET_SAULT).contains(appletState)) {
+      sault = sendAPDU(GET_SAULT_APDU).getData();
+      if (sault.length != SAULT_LENGTH) sault = null;
+    }
+    PrefetchedCardData data = new PrefetchedCardData(stateResponse, serialNumber, sault, thread.generation);
+    if (thread.isStopped()) return;
+    prefetchedData = data;
+    logDebug("Prefetch is done.");
+  }
+
+  // Prefetched data of current card state or null, data published by prefetch of previous card state is thrown away
+  private PrefetchedCardData getPrefetchedData() {
+    PrefetchedCardData data = prefetchedData;
+    return data == null || data.getGeneration() != cardStateGeneration.get() ? null : data;
+  }
+
+  /**
+   * @return serial number read by prefetch or null if there is no valid prefetched data
+   */
+  public byte[] getPrefetchedSerialNumber() throws Exception {
+    awaitPrefetch();
+    PrefetchedCardData data = getPrefetchedData();
+    return data == null ? null : data.getSerialNumber();
+  }
+
+  /**
+   * @return sault read by prefetch (only once) or null if there is no valid prefetched sault
+   */
+  public byte[] takePrefetchedSault() throws Exception {
+    awaitPrefetch();
+    PrefetchedCardData data = getPrefetchedData();
+    return data == null ? null : data.takeSault();
+  }
+
+  /**
+   * Wait for prefetch to finish. If it is stuck (for example in transceive), it is interrupted and connection is closed, so that
+   * its APDUs never interleave with APDUs of operation. Operation reconnects to the card by itself.
+   */
+  private void awaitPrefetch() throws Exception {
+    Thread thread = prefetchThread;
+    if (thread == null || Thread.currentThread() instanceof PrefetchThread) return;
+    thread.join(prefetchWaitTimeout);
+    if (!thread.isAlive()) return;
+    logDebug("Prefetch is not finished in time, stop it.");
+    thread.interrupt();
+    try {
+      getCardChannel().close();
+    } catch (Exception e) {
+      logDebug("Close after prefetch timeout failed: " + e.getMessage());
+    }
+    thread.join(prefetchWaitTimeout);
+    if (thread.isAlive()) throw new Exception(ERROR_MSG_PREFETCH_NOT_FINISHED);
+  }
+
+  /**
+   * Called before APDU of operation is sent: prefetch must be finished, and prefetched data is not valid anymore.
+   * APDU of prefetch is sent only while its card state is current.
+   */
+  private void onOperationApdu() throws Exception {
+    Thread currentThread = Thread.currentThread();
+    if (currentThread instanceof PrefetchThread) {
+      if (((PrefetchThread) currentThread).isStopped()) throw new Exception(ERROR_MSG_PREFETCH_CARD_SESSION_IS_OVER);
+      return;
+    }
+    awaitPrefetch();
+    prefetchedData = null;
+  }
+
   public abstract boolean setCardTag(Intent intent) throws Exception;
 
-  public abstract void disconnectCard() throws Exception;
+  /**
+   * Identifier of the card in the field that stays the same between taps (for example tag UID), null if it is not known.
+   */
+  public byte[] getCardId() {
+    return null;
+  }
+
+  public CardIdCache getCardIdCache() {
+    return cardIdCache;
+  }
+
+  /**
+   * Set cache binding card identifier to serial number of its HMAC key, null turns it off.
+   */
+  public void setCardIdCache(CardIdCache cardIdCache) {
+    this.cardIdCache = cardIdCache;
+  }
+
+  /**
+   * @return number of APDU commands whose HMAC was rejected by the card (8F03) since the runner is created
+   */
+  public long getHmacRejectionCount() {
+    return hmacRejectionCount.get();
+  }
+
+  /**
+   * Card rejected HMAC of APDU, so HMAC key resolved for it (by card identifier or in card session) may be wrong.
+   */
+  private void onApduHmacRejected() {
+    hmacRejectionCount.incrementAndGet();
+    CardIdCache cache = cardIdCache;
+    if (cache != null) cache.remove(getCardId());
+    CardSession session = cardSession;
+    if (session != null) session.setHmacKeySerialNumber(null);
+  }
+
+  private static boolean isApduHmacRejected(RAPDU rapdu) {
+    return (short) (((rapdu.getSW1() & 0xFF) << 8) | (rapdu.getSW2() & 0xFF)) == SW_INCORRECT_APDU_HMAC;
+  }
 
-  public abstract RAPDU transmitCommand(CAPDU commandAPDU) throws Exception;
+  /**
+   * Transport used to exchange raw APDU bytes with the card.
+   */
+  public abstract CardChannel getCardChannel();
+
+  public void disconnectCard() throws Exception {
+    CardSession session = cardSession;
+    if (session != null) session.close();
+    resetCardSession();
+    getCardChannel().close();
+  }
+
+  public RAPDU transmitCommand(CAPDU commandAPDU) throws Exception {
+    if (commandAPDU == null) throw new Exception(ERROR_MSG_APDU_EMPTY);
+    CardChannel cardChannel = getCardChannel();
+    if (!cardChannel.isConnected()) cardChannel.connect();
+    boolean extendedLength = cardChannel.isExtendedLengthApduSupported();
+    if (commandAPDU.isExtended() && !extendedLength) throw new Exception(ERROR_MSG_EXTENDED_APDU_NOT_SUPPORTED);
+    return new RAPDU(cardChannel.transceive(commandAPDU.getBytes()), extendedLength);
+  }
+
+  /**
+   * Max length of APDU data field that can be sent to the card at once. If channel supports extended length APDU, it is
+   * limited by max transceive length of the channel, otherwise short APDU limit (255 bytes) is used.
+   */
+  public int getMaxApduDataLength() {
+    CardChannel cardChannel = getCardChannel();
+    if (!cardChannel.isExtendedLengthApduSupported()) return CAPDU.MAX_DATA_LEN;
+    int len = cardChannel.getMaxTransceiveLength() - CAPDU.EXTENDED_LENGTH_OVERHEAD;
+    return Math.max(CAPDU.MAX_DATA_LEN, Math.min(CAPDU.MAX_EXTENDED_DATA_LEN, len));
+  }
 
   public RAPDU sendAPDUList(List<CAPDU> apduList) throws Exception {
-    System.out.println(apduList);
     RAPDU result = null;
     for (CAPDU apdu : apduList) {
       result = sendAPDU(apdu);
@@ -48,73 +515,261 @@ public abstract class ApduRunner {
     return result;
   }
 
+  /**
+   * Send APDU commands back-to-back and collect all responses. All commands are validated before the first one is sent and
+   * connection is checked once. Transmission stops at the first failed command (transport error or SW != 9000), its index
+   * and error are returned in result. Per-APDU logging of sendAPDU is skipped.
+   */
+  public ApduBatchResult sendAPDUBatch(List<CAPDU> apduList) throws Exception {
+    if (apduList == null || apduList.isEmpty()) throw new Exception(ERROR_MSG_APDU_LIST_EMPTY);
+    checkCancelled();
+    onOperationApdu();
+    CardChannel cardChannel = getCardChannel();
+    if (!cardChannel.isConnected()) cardChannel.connect();
+    boolean extendedLength = cardChannel.isExtendedLengthApduSupported();
+    CAPDU[] batch = new CAPDU[apduList.size()];
+    for (int i = 0; i < batch.length; i++) {
+      CAPDU commandAPDU = apduList.get(i);
+      if (commandAPDU == null) throw new Exception(ERROR_MSG_APDU_EMPTY);
+      if (commandAPDU.isExtended() && !extendedLength) throw new Exception(ERROR_MSG_EXTENDED_APDU_NOT_SUPPORTED);
+      batch[i] = toLogicalChannel(commandAPDU);
+    }
+    RAPDU[] responses = new RAPDU[batch.length];
+    for (int i = 0; i < batch.length; i++) {
+      checkCancelled();
+      RAPDU rapdu;
+      try {
+        rapdu = exchange(batch[i]);
+      } catch (Exception e) {
+        checkCancelled();
+        if (apduLogger.isLoggable(ApduLogger.Level.ERROR)) apduLogger.log(ApduLogger.Level.ERROR, "Batch stopped at apdu #" + i + ": " + e.getMessage());
+        return new ApduBatchResult(responses, i, e);
+      }
+      if (!RAPDU.isSuccess(rapdu)) {
+        if (isApduHmacRejected(rapdu)) onApduHmacRejected();
+        String errMsg = JSON_HELPER.createErrorJsonForCardException(rapdu.prepareSwFormatted(), batch[i]);
+        if (apduLogger.isLoggable(ApduLogger.Level.ERROR)) apduLogger.logResponse(batch[i], rapdu);
+        return new ApduBatchResult(responses, i, new Exception(errMsg));
+      }
+      responses[i] = rapdu;
+    }
+    logDebug("Batch of " + batch.length + " apdus is done.");
+    return new ApduBatchResult(responses);
+  }
+
   public RAPDU selectCoinManagerApplet() throws Exception {
     return sendAPDU(SELECT_COIN_MANAGER_APDU);
   }
 
   public RAPDU sendCoinManagerAppletAPDU(CAPDU commandAPDU) throws Exception {
     if (commandAPDU == null) throw new Exception(ERROR_MSG_APDU_EMPTY);
-    sendAPDU(SELECT_COIN_MANAGER_APDU);
+    if (logicalChannelsEnabled) {
+      coinManagerChannel = selectOnLogicalChannel(SELECT_COIN_MANAGER_APDU, coinManagerChannel);
+    } else {
+      sendAPDU(SELECT_COIN_MANAGER_APDU);
+    }
     return sendAPDU(commandAPDU);
   }
 
   public RAPDU sendTonWalletAppletAPDU(CAPDU commandAPDU) throws Exception {
     if (commandAPDU == null) throw new Exception(ERROR_MSG_APDU_EMPTY);
     if (commandAPDU.getCla() == SELECT_CLA && commandAPDU.getIns() == SELECT_INS) {
-      return sendAPDU(SELECT_TON_WALLET_APPLET_APDU);
+      return sendAPDU(SELECT_TON_WALLET_APPLET_APDU.withLogicalChannel(tonWalletChannel));
     }
-    RAPDU response = sendAPDUList(GET_APPLET_STATE_APDU_LIST);
-    if (response == null || response.getData() == null || response.getData().length != 0x01) throw new Exception(ERROR_MSG_STATE_RESPONSE_LEN_INCORRECT);
+    RAPDU response = selectTonWalletAppletAndGetState();
     if (commandAPDU.getIns() == INS_GET_APP_INFO ) return response;
-    TonWalletAppletStates appletState = TonWalletAppletStates.findByStateValue(response.getData()[0]);
-    byte ins = commandAPDU.getIns();
+    checkTonWalletAppletState(response, commandAPDU.getIns());
+    return sendAPDU(commandAPDU);
+  }
+
+  /**
+   * Batch version of sendTonWalletAppletAPDU: applet state is checked once for all commands, then they are sent by sendAPDUBatch.
+   */
+  public ApduBatchResult sendTonWalletAppletAPDUBatch(List<CAPDU> apduList) throws Exception {
+    if (apduList == null || apduList.isEmpty()) throw new Exception(ERROR_MSG_APDU_LIST_EMPTY);
+    RAPDU response = selectTonWalletAppletAndGetState();
+    for (CAPDU commandAPDU : apduList) {
+      if (commandAPDU == null) throw new Exception(ERROR_MSG_APDU_EMPTY);
+      checkTonWalletAppletState(response, commandAPDU.getIns());
+    }
+    return sendAPDUBatch(apduList);
+  }
+
+  private RAPDU selectTonWalletAppletAndGetState() throws Exception {
+    awaitPrefetch();
+    PrefetchedCardData data = getPrefetchedData();
+    if (data != null) return data.getAppletState();
+    RAPDU response = cachedAppletState;
+    if (response != null) return response;
+    if (logicalChannelsEnabled) {
+      tonWalletChannel = selectOnLogicalChannel(SELECT_TON_WALLET_APPLET_APDU, tonWalletChannel);
+      response = sendAPDU(GET_APP_INFO_APDU);
+    } else {
+      response = sendAPDUList(GET_APPLET_STATE_APDU_LIST);
+    }
+    if (response == null || response.getData() == null || response.getData().length != 0x01) throw new Exception(ERROR_MSG_STATE_RESPONSE_LEN_INCORRECT);
+    if (appletStateCacheEnabled || appletStateCacheScopes > 0 || cardSession != null) cachedAppletState = response;
+    return response;
+  }
+
+  private void checkTonWalletAppletState(RAPDU stateResponse, byte ins) throws Exception {
+    TonWalletAppletStates appletState = TonWalletAppletStates.findByStateValue(stateResponse.getData()[0]);
     if (!TonWalletAppletStates.getStateByIns(ins).contains(appletState)) {
       String errMsg = ERROR_MSG_APDU_NOT_SUPPORTED + " : " + getTonWalletAppletApduCommandName(ins) + " in " + appletState.getDescription();
       throw new Exception(errMsg);
     }
-    return sendAPDU(commandAPDU);
   }
 
   public RAPDU sendAPDU(CAPDU commandAPDU) throws Exception {
     if (commandAPDU == null)
       throw new Exception(ERROR_MSG_APDU_EMPTY);
-    Log.d(TAG, "===============================================================");
-    Log.d(TAG, "===============================================================");
-    StringBuilder apduFormated = commandAPDU.getFormattedApdu();
-
-    Log.d(TAG, ">>> Send apdu  " + apduFormated);
+    checkCancelled();
+    onOperationApdu();
+    commandAPDU = toLogicalChannel(commandAPDU);
+    ApduLogger logger = apduLogger;
+    if (logger.isLoggable(ApduLogger.Level.DEBUG)) logger.logCommand(commandAPDU);
+    RAPDU rapdu = exchange(commandAPDU);
+    boolean success = RAPDU.isSuccess(rapdu);
+    if (logger.isLoggable(success ? ApduLogger.Level.DEBUG : ApduLogger.Level.ERROR)) logger.logResponse(commandAPDU, rapdu);
+    if (!success) {
+      if (isApduHmacRejected(rapdu)) onApduHmacRejected();
+      String errMsg = JSON_HELPER.createErrorJsonForCardException(rapdu.prepareSwFormatted(), commandAPDU);
+      throw new Exception(errMsg);
+    }
+    if (isGetSerialNumberAPDU(commandAPDU)) {
+      byte[] serialNumber = rapdu.getData();
+      if (serialNumber.length == SERIAL_NUMBER_SIZE) cardSerialNumber = serialNumber;
+    }
+    return rapdu;
+  }
 
-    String apduName = APDU_HELPER.getApduCommandName(commandAPDU);
-    if (apduName != null)
-      Log.d(TAG, "(" + apduName + ")");
-    RAPDU rapdu = transmitCommand(commandAPDU);
+  private static boolean isGetSerialNumberAPDU(CAPDU commandAPDU) {
+    return (commandAPDU.getCla() & ~CAPDU.MAX_LOGICAL_CHANNEL) == WALLET_APPLET_CLA && commandAPDU.getIns() == INS_GET_SERIAL_NUMBER;
+  }
 
-    StringBuilder msg = new StringBuilder();
+  private RAPDU exchange(CAPDU commandAPDU) throws Exception {
+    ApduFlightRecorder recorder = flightRecorder;
+    long start = System.nanoTime();
+    RAPDU rapdu;
+    try {
+      rapdu = handleTransportStatus(commandAPDU, transmitCommand(commandAPDU));
+    } catch (Exception e) {
+      cachedAppletState = null;
+      if (recorder != null) recorder.recordFailure(commandAPDU, System.nanoTime() - start);
+      throw e;
+    }
+    if (cachedAppletState != null && (!RAPDU.isSuccess(rapdu) || !keepsAppletState(commandAPDU))) cachedAppletState = null;
+    if (recorder != null) recorder.record(commandAPDU, rapdu, System.nanoTime() - start);
+    return rapdu;
+  }
 
-    String swFormatted = rapdu.prepareSwFormatted();
+  /**
+   * @return true if successful command surely keeps TonWallet applet selected and does not change its state
+   */
+  private boolean keepsAppletState(CAPDU commandAPDU) {
+    byte cla = (byte) (commandAPDU.getCla() & ~LOGICAL_CHANNEL_MASK);
+    if (cla == WALLET_APPLET_CLA) return !TonWalletAppletStates.isStateChangingIns(commandAPDU.getIns());
+    if (cla == SELECT_CLA && commandAPDU.getIns() == MANAGE_CHANNEL_INS) {
+      return commandAPDU.getP1() == MANAGE_CHANNEL_OPEN_P1 || commandAPDU.getP2() != tonWalletChannel;
+    }
+    if (cla == SELECT_CLA && commandAPDU.getIns() == SELECT_INS) {
+      return commandAPDU.getLogicalChannel() != tonWalletChannel || Arrays.equals(commandAPDU.getData(), TON_WALLET_APPLET_AID);
+    }
+    return false;
+  }
 
-    StringBuilder swMsg = new StringBuilder().append(swFormatted);
+  /**
+   * Put APDU of TonWallet applet or CoinManager into logical channel where this applet is selected.
+   */
+  private CAPDU toLogicalChannel(CAPDU commandAPDU) {
+    if (commandAPDU.getLogicalChannel() != BASIC_CHANNEL) return commandAPDU;
+    if (commandAPDU.getCla() == WALLET_APPLET_CLA && tonWalletChannel != BASIC_CHANNEL) return commandAPDU.withLogicalChannel(tonWalletChannel);
+    if (commandAPDU.getCla() == COIN_MANAGER_CLA && coinManagerChannel != BASIC_CHANNEL) return commandAPDU.withLogicalChannel(coinManagerChannel);
+    return commandAPDU;
+  }
 
-    if (getMsg(swFormatted) != null)
-      swMsg.append(", ").append(getMsg(swFormatted));
+  /**
+   * Select applet on its logical channel. Channel is opened and applet is selected only once per card session.
+   * @return logical channel of applet, BASIC_CHANNEL if card does not support logical channels (then SELECT is sent each time)
+   */
+  private byte selectOnLogicalChannel(CAPDU selectAPDU, byte channel) throws Exception {
+    if (channel != BASIC_CHANNEL) return channel;
+    channel = openLogicalChannel();
+    try {
+      sendAPDU(selectAPDU.withLogicalChannel(channel));
+    } catch (Exception e) {
+      // Channel is not kept if applet is not selected on it, so it must not stay open (card has only a few of them)
+      if (channel != BASIC_CHANNEL) closeLogicalChannel(channel);
+      throw e;
+    }
+    return channel;
+  }
 
-    msg.append("SW1-SW2: " + swMsg);
+  private byte openLogicalChannel() throws Exception {
+    if (!logicalChannelsSupported) return BASIC_CHANNEL;
+    checkCancelled();
+    RAPDU rapdu = exchangeManageChannel(MANAGE_CHANNEL_OPEN_APDU);
+    if (RAPDU.isSuccess(rapdu) && rapdu.getData().length == 1) {
+      byte channel = rapdu.getData()[0];
+      if (channel > BASIC_CHANNEL && channel <= CAPDU.MAX_LOGICAL_CHANNEL) {
+        logDebug("Logical channel " + channel + " is opened.");
+        return channel;
+      }
+      // Channels above 3 need another CLA coding, that TonWallet applet and CoinManager do not use
+      if (channel != BASIC_CHANNEL) closeLogicalChannel(channel);
+    }
+    logDebug("Logical channels are not available, SELECT on basic channel is used.");
+    logicalChannelsSupported = false;
+    return BASIC_CHANNEL;
+  }
 
-    String rapduData = BYTE_ARRAY_HELPER.hex(rapdu.getData());
+  private void closeLogicalChannel(byte channel) {
+    try {
+      exchangeManageChannel(new CAPDU(SELECT_CLA, MANAGE_CHANNEL_INS, MANAGE_CHANNEL_CLOSE_P1, channel));
+      logDebug("Logical channel " + channel + " is closed.");
+    } catch (Exception e) {
+      logDebug("Close of logical channel " + channel + " failed: " + e.getMessage());
+    }
+  }
 
-    if (rapduData.length() > 0)
-      msg.append(", response data bytes: " + rapduData);
+  // MANAGE CHANNEL goes through the same exchange as other APDUs (flight recorder, 61xx/6Cxx), but its failure is not an error
+  private RAPDU exchangeManageChannel(CAPDU commandAPDU) throws Exception {
+    ApduLogger logger = apduLogger;
+    if (logger.isLoggable(ApduLogger.Level.DEBUG)) logger.logCommand(commandAPDU);
+    RAPDU rapdu = exchange(commandAPDU);
+    if (logger.isLoggable(ApduLogger.Level.DEBUG)) logger.logResponse(commandAPDU, rapdu);
+    return rapdu;
+  }
 
-    Log.d(TAG, msg.toString());
-    Log.d(TAG, "===============================================================");
 
-    // Check result for success result
+  /**
+   * Handle ISO 7816-4 transport status words, so that caller always gets complete response:
+   * 6Cxx - Le was wrong, command is sent again with Le = xx;
+   * 61xx - xx more bytes are available, GET RESPONSE commands are sent and all data is concatenated.
+   */
+  private RAPDU handleTransportStatus(CAPDU commandAPDU, RAPDU rapdu) throws Exception {
+    if (rapdu.getSW1() == SW1_CORRECT_EXPECTED_LENGTH && !commandAPDU.isExtended()) {
+      if (apduLogger.isLoggable(ApduLogger.Level.DEBUG)) logDebug("Wrong Le, resend apdu with Le = " + BYTE_ARRAY_HELPER.hex(rapdu.getSW2()));
+      rapdu = transmitCommand(setLe(commandAPDU, rapdu.getSW2()));
+    }
+    if (rapdu.getSW1() != SW1_RESPONSE_BYTES_REMAINING) return rapdu;
+    ByteArrayOutputStream responseData = new ByteArrayOutputStream();
+    byte getResponseCla = (byte) (commandAPDU.getCla() & LOGICAL_CHANNEL_MASK);
+    for (int i = 0; i < MAX_GET_RESPONSE_COUNT && rapdu.getSW1() == SW1_RESPONSE_BYTES_REMAINING; i++) {
+      responseData.write(rapdu.getData());
+      checkCancelled();
+      if (apduLogger.isLoggable(ApduLogger.Level.DEBUG)) logDebug("Bytes remaining: " + BYTE_ARRAY_HELPER.hex(rapdu.getSW2()) + ", send GET RESPONSE");
+      rapdu = transmitCommand(new CAPDU(getResponseCla, GET_RESPONSE_INS, (byte) 0x00, (byte) 0x00, rapdu.getSW2()));
+    }
+    responseData.write(rapdu.getBytes());
+    return new RAPDU(responseData.toByteArray(), true);
+  }
 
-    if (rapdu.getSW1() != (byte) 0x90 || rapdu.getSW2() != (byte) 0x00) {
-      String errMsg = JSON_HELPER.createErrorJsonForCardException(swFormatted, commandAPDU);
-      throw new Exception(errMsg);
+  private CAPDU setLe(CAPDU commandAPDU, byte le) {
+    if (commandAPDU.getLc() > 0) {
+      return new CAPDU(commandAPDU.getCla(), commandAPDU.getIns(), commandAPDU.getP1(), commandAPDU.getP2(), commandAPDU.getData(), le);
     }
-    return rapdu;
+    return new CAPDU(commandAPDU.getCla(), commandAPDU.getIns(), commandAPDU.getP1(), commandAPDU.getP2(), le);
   }
 
 }
@@ -0,0 +1,64 @@
+package com.tonnfccard.smartcard;
+
+import com.tonnfccard.helpers.HmacHelper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.tonnfccard.helpers.ResponsesConstants.ERROR_MSG_APDU_RUNNER_ID_IS_NULL;
+import static com.tonnfccard.helpers.ResponsesConstants.ERROR_MSG_APDU_RUNNER_IS_NULL;
+
+/**
+ * Registry of ApduRunners to drive several card readers in one process (for example on personalization station).
+ *
+ * Each registered runner owns its tag (channel), retry/timeout settings and HMAC context (current serial number), so
+ * API objects created for different runners can work concurrently from separate threads. One runner must not be used
+ * by several threads at the same time.
+ */
+public class ApduRunnerRegistry {
+  private static ApduRunnerRegistry instance;
+
+  private final ConcurrentHashMap<String, ApduRunner> runners = new ConcurrentHashMap<>();
+
+  public static synchronized ApduRunnerRegistry getInstance() {
+    if (instance == null) instance = new ApduRunnerRegistry();
+    return instance;
+  }
+
+  private ApduRunnerRegistry() {}
+
+  /**
+   * Register runner under given id. If runner has no own HMAC context, it gets a new one.
+   * @return runner previously registered under this id or null
+   */
+  public ApduRunner register(String id, ApduRunner runner) {
+    if (id == null) throw new IllegalArgumentException(ERROR_MSG_APDU_RUNNER_ID_IS_NULL);
+    if (runner == null) throw new IllegalArgumentException(ERROR_MSG_APDU_RUNNER_IS_NULL);
+    if (runner.getHmacHelper() == null) runner.setHmacHelper(HmacHelper.newInstance());
+    return runners.put(id, runner);
+  }
+
+  /**
+   * Create runner working via given channel and register it under given id.
+   */
+  public ApduRunner register(String id, CardChannel cardChannel) {
+    ApduRunner runner = new CardChannelApduRunner(cardChannel);
+    register(id, runner);
+    return runner;
+  }
+
+  public ApduRunner get(String id) {
+    if (id == null) throw new IllegalArgumentException(ERROR_MSG_APDU_RUNNER_ID_IS_NULL);
+    return runners.get(id);
+  }
+
+  public ApduRunner unregister(String id) {
+    if (id == null) throw new IllegalArgumentException(ERROR_MSG_APDU_RUNNER_ID_IS_NULL);
+    return runners.remove(id);
+  }
+
+  public List<String> getIds() {
+    return new ArrayList<>(runners.keySet());
+  }
+}
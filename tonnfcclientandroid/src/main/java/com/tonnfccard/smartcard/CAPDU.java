@@ -8,6 +8,8 @@ import com.tonnfccard.utils.ByteArrayUtil;
 import java.util.Arrays;
 
 import static com.tonnfccard.helpers.ResponsesConstants.ERROR_MSG_APDU_DATA_FIELD_LEN_INCORRECT;
+import static com.tonnfccard.helpers.ResponsesConstants.ERROR_MSG_APDU_LE_INCORRECT;
+import static com.tonnfccard.helpers.ResponsesConstants.ERROR_MSG_LOGICAL_CHANNEL_INCORRECT;
 
 /**
  * Class wrapper to represent APDU command that is sent to smart card
@@ -31,11 +33,23 @@ import static com.tonnfccard.helpers.ResponsesConstants.ERROR_MSG_APDU_DATA_FIEL
  * Note:
  * 1) LE = 0 usually means that applet must return all the data that it has
  * 2) LE = -1 we use for the case when really LE is absent and we do not wait for response from the card.
+ * <p>
+ * Extended length APDU (ISO 7816-4) is also supported, in this case LC and LE have size = 2 bytes and LC is prefixed by 0x00:
+ * CLA | INS | P1 | P2 | 00 | LC | Data
+ * CLA | INS | P1 | P2 | 00 | LC | Data | LE
+ * CLA | INS | P1 | P2 | 00 | LE
+ * Use createExtended methods to build such command. Send it only via ApduRunner which channel supports extended length
+ * (see ApduRunner.getMaxApduDataLength).
  */
 
 public class CAPDU {
     public final static int MAX_DATA_LEN = 255;
+    public final static int MAX_EXTENDED_DATA_LEN = 65535;
+    public final static int MAX_EXTENDED_LE = 0xFFFF;
     public final static int HEADER_LENGTH = 4;
+    public final static int MAX_LOGICAL_CHANNEL = 0x03;
+    public final static int EXTENDED_LENGTH_OVERHEAD = HEADER_LENGTH + 3 + 2;
+    public final static int MAX_LENGTH = HEADER_LENGTH + 1 + MAX_DATA_LEN + 1;
     private final static ByteArrayUtil BYTE_ARRAY_HELPER = ByteArrayUtil.getInstance();
     private final static byte[] EMPTY_DATA = new byte[0];
 
@@ -60,6 +74,54 @@ public class CAPDU {
         this.bytes = BYTE_ARRAY_HELPER.bConcat(new byte[]{cla, ins, p1, p2, (byte) dataField.length}, dataField, new byte[]{le});
     }
 
+    private CAPDU(byte[] bytes) {
+        this.bytes = bytes;
+    }
+
+    /**
+     * Extended length APDU without data: CLA | INS | P1 | P2 | 00 | LE (2 bytes). LE = 0 means up to 65536 bytes of response.
+     */
+    public static CAPDU createExtended(byte cla, byte ins, byte p1, byte p2, int le) {
+        checkExtendedLe(le);
+        return new CAPDU(new byte[]{cla, ins, p1, p2, 0x00, (byte) (le >> 8), (byte) le});
+    }
+
+    /**
+     * Extended length APDU with data and without LE: CLA | INS | P1 | P2 | 00 | LC (2 bytes) | Data
+     */
+    public static CAPDU createExtended(byte cla, byte ins, byte p1, byte p2, byte[] dataField) {
+        checkExtendedDataField(dataField);
+        return new CAPDU(BYTE_ARRAY_HELPER.bConcat(extendedHeader(cla, ins, p1, p2, dataField.length), dataField));
+    }
+
+    /**
+     * Extended length APDU with data and LE: CLA | INS | P1 | P2 | 00 | LC (2 bytes) | Data | LE (2 bytes)
+     */
+    public static CAPDU createExtended(byte cla, byte ins, byte p1, byte p2, byte[] dataField, int le) {
+        checkExtendedDataField(dataField);
+        checkExtendedLe(le);
+        return new CAPDU(BYTE_ARRAY_HELPER.bConcat(extendedHeader(cla, ins, p1, p2, dataField.length), dataField,
+                new byte[]{(byte) (le >> 8), (byte) le}));
+    }
+
+    /**
+     * Copy of this APDU sent over given logical channel (0..3): channel number is put into two lower bits of CLA.
+     */
+    public CAPDU withLogicalChannel(int channel) {
+        if (channel < 0 || channel > MAX_LOGICAL_CHANNEL) throw new IllegalArgumentException(ERROR_MSG_LOGICAL_CHANNEL_INCORRECT);
+        byte[] channelBytes = bytes.clone();
+        channelBytes[0] = (byte) ((channelBytes[0] & ~MAX_LOGICAL_CHANNEL) | channel);
+        return new CAPDU(channelBytes);
+    }
+
+    public int getLogicalChannel() {
+        return bytes[0] & MAX_LOGICAL_CHANNEL;
+    }
+
+    public boolean isExtended() {
+        return bytes.length >= HEADER_LENGTH + 3 && bytes[HEADER_LENGTH] == 0x00;
+    }
+
     public byte getCla() {
         return bytes[0];
     }
@@ -77,11 +139,19 @@ public class CAPDU {
     }
 
     public int getLc() {
+        if (isExtended()) {
+            if (bytes.length == HEADER_LENGTH + 3) return 0;
+            return ((0xFF & bytes[HEADER_LENGTH + 1]) << 8) | (0xFF & bytes[HEADER_LENGTH + 2]);
+        }
         if (bytes.length <= HEADER_LENGTH + 1) return 0;
         return (0xFF & bytes[4]);
     }
 
     public int getLe() {
+        if (isExtended()) {
+            if (getLc() != 0 && bytes.length == HEADER_LENGTH + 3 + getLc()) return -1;
+            return ((0xFF & bytes[bytes.length - 2]) << 8) | (0xFF & bytes[bytes.length - 1]);
+        }
         if (bytes.length <= HEADER_LENGTH ||
                 (getLc() != 0 && bytes.length == HEADER_LENGTH + 1 + getLc())) return -1;
         return (0xFF & bytes[bytes.length - 1]);
@@ -89,10 +159,14 @@ public class CAPDU {
 
     public byte[] getData() {
         if (getLc() > 0)
-            return BYTE_ARRAY_HELPER.bSub(bytes, HEADER_LENGTH + 1, getLc());
+            return BYTE_ARRAY_HELPER.bSub(bytes, getDataOffset(), getLc());
         return EMPTY_DATA;
     }
 
+    private int getDataOffset() {
+        return isExtended() ? HEADER_LENGTH + 3 : HEADER_LENGTH + 1;
+    }
+
     public byte[] getBytes() {
         return bytes;
     }
@@ -103,13 +177,17 @@ public class CAPDU {
                 .append(BYTE_ARRAY_HELPER.hex(getP1())).append(" ")
                 .append(BYTE_ARRAY_HELPER.hex(getP2())).append(" ");
 
+        if (isExtended()) {
+            apduFormated.append("00 ");
+        }
+
         if (getLc() > 0) {
-            apduFormated.append(BYTE_ARRAY_HELPER.hex(getLc())).append(" ")
+            apduFormated.append(formatLength(getLc())).append(" ")
                     .append(BYTE_ARRAY_HELPER.hex(getData())).append(" ");
         }
 
         if (getLe() != -1) {
-            apduFormated.append(BYTE_ARRAY_HELPER.hex(getLe())).append(" ");
+            apduFormated.append(formatLength(getLe())).append(" ");
         }
         return apduFormated;
     }
@@ -119,12 +197,32 @@ public class CAPDU {
         return BYTE_ARRAY_HELPER.hex(getBytes());
     }
 
+    private String formatLength(int len) {
+        return isExtended() ? String.format("%04X", len) : BYTE_ARRAY_HELPER.hex(len);
+    }
+
+    private static byte[] extendedHeader(byte cla, byte ins, byte p1, byte p2, int lc) {
+        return new byte[]{cla, ins, p1, p2, 0x00, (byte) (lc >> 8), (byte) lc};
+    }
+
     private static void checkDataField(byte[] dataField) {
         if (dataField == null || dataField.length == 0 || dataField.length > MAX_DATA_LEN) {
             throw new IllegalArgumentException(ERROR_MSG_APDU_DATA_FIELD_LEN_INCORRECT);
         }
     }
 
+    private static void checkExtendedDataField(byte[] dataField) {
+        if (dataField == null || dataField.length == 0 || dataField.length > MAX_EXTENDED_DATA_LEN) {
+            throw new IllegalArgumentException(ERROR_MSG_APDU_DATA_FIELD_LEN_INCORRECT);
+        }
+    }
+
+    private static void checkExtendedLe(int le) {
+        if (le < 0 || le > MAX_EXTENDED_LE) {
+            throw new IllegalArgumentException(ERROR_MSG_APDU_LE_INCORRECT);
+        }
+    }
+
     @Override
     public boolean equals(Object o) {
         // If the object is compared with itself then return true
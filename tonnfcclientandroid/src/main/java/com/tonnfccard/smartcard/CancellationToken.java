@@ -0,0 +1,72 @@
+package com.tonnfccard.smartcard;
+
+import static com.tonnfccard.helpers.ResponsesConstants.ERROR_MSG_OPERATION_DEADLINE_EXCEEDED;
+import static com.tonnfccard.helpers.ResponsesConstants.ERROR_NFC_CONNECTION_INTERRUPTED;
+
+/**
+ * Token to stop card operation from another thread (for example when user presses Cancel in NFC dialog) and/or to limit its
+ * total duration.
+ *
+ * ApduRunner checks the token before each APDU, NfcApduRunner checks it between retries and wakes up from backoff sleep as soon
+ * as token is cancelled. Cancelled operation fails with ERROR_NFC_CONNECTION_INTERRUPTED, expired one fails with
+ * ERROR_MSG_OPERATION_DEADLINE_EXCEEDED.
+ */
+public class CancellationToken {
+  private static final long NO_DEADLINE = Long.MAX_VALUE;
+
+  private final long deadline;
+  private volatile boolean cancelled = false;
+
+  public CancellationToken() {
+    this.deadline = NO_DEADLINE;
+  }
+
+  private CancellationToken(long deadline) {
+    this.deadline = deadline;
+  }
+
+  /**
+   * @param timeout max duration of operation (ms), counting from now
+   */
+  public static CancellationToken withTimeout(long timeout) {
+    return new CancellationToken(System.currentTimeMillis() + Math.max(0, timeout));
+  }
+
+  public synchronized void cancel() {
+    cancelled = true;
+    notifyAll();
+  }
+
+  public boolean isCancelled() {
+    return cancelled;
+  }
+
+  public boolean isDeadlineExceeded() {
+    return deadline != NO_DEADLINE && System.currentTimeMillis() >= deadline;
+  }
+
+  /**
+   * Time (ms) left until deadline, Long.MAX_VALUE if there is no deadline.
+   */
+  public long getRemainingTime() {
+    if (deadline == NO_DEADLINE) return Long.MAX_VALUE;
+    return Math.max(0, deadline - System.currentTimeMillis());
+  }
+
+  public void throwIfCancelled() throws Exception {
+    if (cancelled) throw new Exception(ERROR_NFC_CONNECTION_INTERRUPTED);
+    if (isDeadlineExceeded()) throw new Exception(ERROR_MSG_OPERATION_DEADLINE_EXCEEDED);
+  }
+
+  /**
+   * Sleep for given time, but wake up immediately if token is cancelled.
+   */
+  public synchronized void sleep(long millis) throws Exception {
+    long end = System.currentTimeMillis() + Math.min(millis, getRemainingTime());
+    long remaining;
+    while (!cancelled && (remaining = end - System.currentTimeMillis()) > 0) {
+      wait(remaining);
+    }
+    throwIfCancelled();
+  }
+}
@@ -0,0 +1,37 @@
+package com.tonnfccard.smartcard;
+
+/**
+ * Transport layer used by ApduRunner to exchange raw APDU bytes with the card.
+ *
+ * NfcApduRunner is the implementation working via Android NFC (IsoDep). Other implementations (for example in-JVM loopback channel)
+ * allow to drive the whole API stack without phone and real card.
+ */
+
+public interface CardChannel {
+  /**
+   * Establish connection with the card. Does nothing if connection is already established.
+   */
+  void connect() throws Exception;
+
+  /**
+   * Break connection with the card.
+   */
+  void close() throws Exception;
+
+  boolean isConnected();
+
+  /**
+   * Send raw bytes of APDU command to the card and return raw response bytes: DATA | SW1 | SW2.
+   */
+  byte[] transceive(byte[] apduCommandBytes) throws Exception;
+
+  /**
+   * Max length (in bytes) of APDU command that can be sent via this channel at once.
+   */
+  int getMaxTransceiveLength();
+
+  /**
+   * True if ISO 7816-4 extended length APDUs (LC/LE of 2 bytes) can be sent via this channel.
+   */
+  boolean isExtendedLengthApduSupported();
+}
@@ -0,0 +1,30 @@
+package com.tonnfccard.smartcard;
+
+import android.content.Intent;
+
+import static com.tonnfccard.helpers.ResponsesConstants.ERROR_MSG_CARD_CHANNEL_IS_NULL;
+
+/**
+ * ApduRunner working on top of any CardChannel. It has no knowledge about NFC tags, so card is always bound to the channel
+ * given in constructor.
+ */
+
+public class CardChannelApduRunner extends ApduRunner {
+  private final CardChannel cardChannel;
+
+  public CardChannelApduRunner(CardChannel cardChannel) {
+    super();
+    if (cardChannel == null) throw new IllegalArgumentException(ERROR_MSG_CARD_CHANNEL_IS_NULL);
+    this.cardChannel = cardChannel;
+  }
+
+  @Override
+  public CardChannel getCardChannel() {
+    return cardChannel;
+  }
+
+  @Override
+  public boolean setCardTag(Intent intent) {
+    return false;
+  }
+}
@@ -0,0 +1,71 @@
+package com.tonnfccard.smartcard;
+
+import com.tonnfccard.utils.ByteArrayUtil;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache binding card identifier (tag UID, see ApduRunner.getCardId) to serial number of the card whose HMAC key was
+ * found in keystore, so that for a known card TonWalletApi.reselectKeyForHmac neither reads serial number of the card nor looks
+ * up the key in keystore. Least recently used entries are evicted when capacity is exceeded.
+ *
+ * Binding is verified lazily: entry of the card is dropped when card rejects APDU HMAC, when HMAC key bound to it is not found
+ * in keystore and when HMAC key of its serial number is deleted, then the key is resolved by serial number of the card again.
+ */
+public class CardIdCache {
+  public static final int DEFAULT_CAPACITY = 16;
+  private static final ByteArrayUtil BYTE_ARRAY_HELPER = ByteArrayUtil.getInstance();
+
+  private final Map<String, String> serialNumbers;
+
+  public CardIdCache() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  public CardIdCache(final int capacity) {
+    serialNumbers = new LinkedHashMap<String, String>(capacity, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+        return size() > capacity;
+      }
+    };
+  }
+
+  /**
+   * @return serial number bound to card identifier or null
+   */
+  public synchronized String getSerialNumber(byte[] cardId) {
+    if (cardId == null) return null;
+    return serialNumbers.get(BYTE_ARRAY_HELPER.hex(cardId));
+  }
+
+  public synchronized void put(byte[] cardId, String serialNumber) {
+    if (cardId == null || serialNumber == null) return;
+    serialNumbers.put(BYTE_ARRAY_HELPER.hex(cardId), serialNumber);
+  }
+
+  public synchronized void remove(byte[] cardId) {
+    if (cardId == null) return;
+    serialNumbers.remove(BYTE_ARRAY_HELPER.hex(cardId));
+  }
+
+  /**
+   * Drop all cards bound to serial number (for example when its HMAC key is deleted).
+   */
+  public synchronized void removeSerialNumber(String serialNumber) {
+    Iterator<String> iterator = serialNumbers.values().iterator();
+    while (iterator.hasNext()) {
+      if (iterator.next().equals(serialNumber)) iterator.remove();
+    }
+  }
+
+  public synchronized int size() {
+    return serialNumbers.size();
+  }
+
+  public synchronized void clear() {
+    serialNumbers.clear();
+  }
+}
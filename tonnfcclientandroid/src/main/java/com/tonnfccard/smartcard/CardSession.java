@@ -0,0 +1,61 @@
+package com.tonnfccard.smartcard;
+
+/**
+ * Session of several operations with the same card (for example check serial number, verify PIN, sign, read public key during
+ * one tap), see ApduRunner.openCardSession. While session is open, API classes sharing the runner keep here the data they have
+ * already read from the card: serial number and serial number of resolved HMAC key. TonWallet applet state is kept by the runner
+ * itself. Data is dropped when new card session starts (new tag or new connection), session is closed by close() or
+ * ApduRunner.disconnectCard.
+ */
+public class CardSession implements AutoCloseable {
+  private final ApduRunner apduRunner;
+  private volatile boolean open = true;
+  private volatile byte[] serialNumber = null;
+  private volatile String hmacKeySerialNumber = null;
+
+  CardSession(ApduRunner apduRunner) {
+    this.apduRunner = apduRunner;
+  }
+
+  public boolean isOpen() {
+    return open;
+  }
+
+  /**
+   * @return serial number read from the card in this session or null
+   */
+  public byte[] getSerialNumber() {
+    byte[] result = serialNumber;
+    return result == null ? null : result.clone();
+  }
+
+  public void setSerialNumber(byte[] serialNumber) {
+    if (open) this.serialNumber = serialNumber == null ? null : serialNumber.clone();
+  }
+
+  /**
+   * @return serial number whose HMAC key was found in keystore for the card in this session or null
+   */
+  public String getHmacKeySerialNumber() {
+    return hmacKeySerialNumber;
+  }
+
+  public void setHmacKeySerialNumber(String hmacKeySerialNumber) {
+    if (open) this.hmacKeySerialNumber = hmacKeySerialNumber;
+  }
+
+  @Override
+  public void close() {
+    apduRunner.closeCardSession(this);
+  }
+
+  void clear() {
+    serialNumber = null;
+    hmacKeySerialNumber = null;
+  }
+
+  void markClosed() {
+    open = false;
+    clear();
+  }
+}
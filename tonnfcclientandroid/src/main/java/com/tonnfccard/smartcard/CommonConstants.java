@@ -7,6 +7,10 @@ class CommonConstants {
   final static byte SELECT_P2 = 0x00;
   final static byte LE = 0x00;
   final static byte NEGATIVE_LE = (byte) -1;
+  final static byte GET_RESPONSE_INS = (byte) 0xC0;
+  final static byte MANAGE_CHANNEL_INS = 0x70;
+  final static byte MANAGE_CHANNEL_OPEN_P1 = 0x00;
+  final static byte MANAGE_CHANNEL_CLOSE_P1 = (byte) 0x80;
   final static String SELECT_COIN_MANAGER_APDU_NAME = "SELECT_COIN_MANAGER";
   final static String SELECT_TON_WALLET_APPLET_APDU_NAME = "SELECT_TON_WALLET_APPLET";
 }
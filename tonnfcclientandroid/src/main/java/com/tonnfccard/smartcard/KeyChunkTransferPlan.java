@@ -0,0 +1,105 @@
+package com.tonnfccard.smartcard;
+
+import com.tonnfccard.helpers.HmacHelper;
+import com.tonnfccard.utils.ByteArrayUtil;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.tonnfccard.TonWalletConstants.DATA_PORTION_MAX_SIZE;
+import static com.tonnfccard.TonWalletConstants.MAX_KEY_SIZE_IN_KEYCHAIN;
+import static com.tonnfccard.TonWalletConstants.SAULT_LENGTH;
+import static com.tonnfccard.helpers.ResponsesConstants.ERROR_MSG_KEY_CHUNK_APDU_IS_ALREADY_USED;
+import static com.tonnfccard.helpers.ResponsesConstants.ERROR_MSG_KEY_SIZE_INCORRECT;
+import static com.tonnfccard.helpers.ResponsesConstants.ERROR_MSG_SAULT_BYTES_SIZE_INCORRECT;
+import static com.tonnfccard.smartcard.TonWalletAppletApduCommands.P2;
+import static com.tonnfccard.smartcard.TonWalletAppletApduCommands.SEND_CHUNK_LE;
+import static com.tonnfccard.smartcard.TonWalletAppletApduCommands.WALLET_APPLET_CLA;
+
+/**
+ * APDU commands ADD_KEY_CHUNK / CHANGE_KEY_CHUNK for the whole key prepared ahead of the transfer. Data of each command is
+ * (chunk data | sault | hmac(chunk data | sault)), so hmac of chunk data is absorbed in advance (HmacHelper.prepareMac),
+ * and after GET_SAULT only the sault is left to be hashed. The result is the same as of TonWalletAppletApduCommands.getSendKeyChunkAPDU.
+ *
+ * If Mac of the key can be cloned, hmacs of all chunks are prepared at once. Otherwise (AndroidKeyStore) each prepared hmac holds
+ * a keystore operation, so only MAX_PREPARED_AHEAD chunks following the current one are prepared.
+ *
+ * Commands go in order: chunks with P1 = 0x00 (first one) and 0x01, then the hmac of the key with P1 = 0x02. Each command may be
+ * got only once since its hmac state is consumed.
+ */
+public class KeyChunkTransferPlan {
+  public static final int MAX_PREPARED_AHEAD = 2;
+  private static final ByteArrayUtil BYTE_ARRAY_HELPER = ByteArrayUtil.getInstance();
+
+  private final byte ins;
+  private final byte[] keyMac;
+  private final HmacHelper hmacHelper;
+  private final int preparedAhead;
+  private final List<byte[]> chunkData = new ArrayList<>();
+  private final List<HmacHelper.PreparedMac> chunkMacs = new ArrayList<>();
+  private int numberOfPreparedMacs = 0;
+
+  public KeyChunkTransferPlan(byte ins, byte[] keyBytes, HmacHelper hmacHelper) throws Exception {
+    if (keyBytes == null || keyBytes.length == 0 || keyBytes.length > MAX_KEY_SIZE_IN_KEYCHAIN) throw new IllegalArgumentException(ERROR_MSG_KEY_SIZE_INCORRECT);
+    this.ins = ins;
+    this.hmacHelper = hmacHelper;
+    for (int offset = 0; offset < keyBytes.length; offset += DATA_PORTION_MAX_SIZE) {
+      byte[] keyChunk = BYTE_ARRAY_HELPER.bSub(keyBytes, offset, Math.min(DATA_PORTION_MAX_SIZE, keyBytes.length - offset));
+      addCommandData(BYTE_ARRAY_HELPER.bConcat(new byte[]{(byte) keyChunk.length}, keyChunk));
+    }
+    keyMac = hmacHelper.computeMac(keyBytes);
+    addCommandData(keyMac);
+    preparedAhead = hmacHelper.isMacCloneable() ? size() : MAX_PREPARED_AHEAD;
+    prepareMacs(preparedAhead);
+  }
+
+  private void addCommandData(byte[] data) {
+    chunkData.add(data);
+    chunkMacs.add(null);
+  }
+
+  // Prepare hmacs of commands in order until there are prepared hmacs for the first limit commands
+  private void prepareMacs(int limit) throws Exception {
+    for (; numberOfPreparedMacs < Math.min(limit, size()); numberOfPreparedMacs++) {
+      chunkMacs.set(numberOfPreparedMacs, hmacHelper.prepareMac(chunkData.get(numberOfPreparedMacs)));
+    }
+  }
+
+  /**
+   * @return number of APDU commands including the last one with hmac of the key
+   */
+  public int size() {
+    return chunkData.size();
+  }
+
+  /**
+   * @return hmac of the key which is sent in the last command
+   */
+  public byte[] getKeyMac() {
+    return keyMac.clone();
+  }
+
+  /**
+   * @return number of prepared hmacs which are not consumed by getApdu yet
+   */
+  public int getNumberOfPendingMacs() {
+    int pending = 0;
+    for (HmacHelper.PreparedMac mac : chunkMacs) {
+      if (mac != null) pending++;
+    }
+    return pending;
+  }
+
+  public CAPDU getApdu(int index, byte[] sault) throws Exception {
+    if (sault == null || sault.length != SAULT_LENGTH)
+      throw new IllegalArgumentException(ERROR_MSG_SAULT_BYTES_SIZE_INCORRECT);
+    prepareMacs(index + 1);
+    HmacHelper.PreparedMac mac = chunkMacs.set(index, null);
+    if (mac == null) throw new IllegalStateException(ERROR_MSG_KEY_CHUNK_APDU_IS_ALREADY_USED);
+    byte[] data = BYTE_ARRAY_HELPER.bConcat(chunkData.get(index), sault, mac.doFinal(sault));
+    // Hmacs of the next commands are prepared now, so that after their GET_SAULT only the sault is left to be hashed
+    prepareMacs(index + 1 + preparedAhead);
+    if (index == size() - 1) return new CAPDU(WALLET_APPLET_CLA, ins, (byte) 0x02, P2, data, SEND_CHUNK_LE);
+    return new CAPDU(WALLET_APPLET_CLA, ins, index == 0 ? (byte) 0x00 : (byte) 0x01, P2, data);
+  }
+}
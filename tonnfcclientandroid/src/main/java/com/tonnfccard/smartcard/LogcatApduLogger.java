@@ -0,0 +1,73 @@
+package com.tonnfccard.smartcard;
+
+import android.util.Log;
+
+import com.tonnfccard.utils.ByteArrayUtil;
+
+import static com.tonnfccard.smartcard.ErrorCodes.getMsg;
+
+/**
+ * ApduLogger writing into logcat. DEBUG level logs every command and response (default behavior of ApduRunner), ERROR level
+ * logs only failed responses together with their commands.
+ */
+public class LogcatApduLogger implements ApduLogger {
+  private static final String TAG = "ApduRunner";
+  private static final String SEPARATOR = "===============================================================";
+  private static final ApduHelper APDU_HELPER = ApduHelper.getInstance();
+  private static final ByteArrayUtil BYTE_ARRAY_HELPER = ByteArrayUtil.getInstance();
+
+  private final Level level;
+
+  public LogcatApduLogger(Level level) {
+    this.level = level == null ? Level.NONE : level;
+  }
+
+  public Level getLevel() {
+    return level;
+  }
+
+  @Override
+  public boolean isLoggable(Level level) {
+    return level != Level.NONE && level.ordinal() <= this.level.ordinal();
+  }
+
+  @Override
+  public void logCommand(CAPDU commandAPDU) {
+    Log.d(TAG, SEPARATOR);
+    Log.d(TAG, SEPARATOR);
+    Log.d(TAG, ">>> Send apdu  " + commandAPDU.getFormattedApdu());
+    String apduName = APDU_HELPER.getApduCommandName(commandAPDU);
+    if (apduName != null)
+      Log.d(TAG, "(" + apduName + ")");
+  }
+
+  @Override
+  public void logResponse(CAPDU commandAPDU, RAPDU responseAPDU) {
+    StringBuilder msg = new StringBuilder();
+    if (!RAPDU.isSuccess(responseAPDU) && level == Level.ERROR) {
+      msg.append("Apdu ").append(commandAPDU.getFormattedApdu()).append("failed, ");
+    }
+    msg.append("SW1-SW2: ").append(BYTE_ARRAY_HELPER.hex(responseAPDU.getSW()));
+    String swMsg = getMsg(responseAPDU);
+    if (swMsg != null)
+      msg.append(", ").append(swMsg);
+    byte[] data = responseAPDU.getData();
+    if (data.length > 0)
+      msg.append(", response data bytes: ").append(BYTE_ARRAY_HELPER.hex(data));
+    if (RAPDU.isSuccess(responseAPDU)) {
+      Log.d(TAG, msg.toString());
+    } else {
+      Log.e(TAG, msg.toString());
+    }
+    if (level == Level.DEBUG) Log.d(TAG, SEPARATOR);
+  }
+
+  @Override
+  public void log(Level level, String msg) {
+    if (level == Level.ERROR) {
+      Log.e(TAG, msg);
+    } else {
+      Log.d(TAG, msg);
+    }
+  }
+}
@@ -0,0 +1,43 @@
+package com.tonnfccard.smartcard;
+
+/**
+ * Results of TonWallet applet preamble (applet state, serial number, sault) read right after the tag is attached.
+ * They are valid only until the next APDU is sent to the card and only for the card state they are read in, see ApduRunner.startPrefetch.
+ */
+class PrefetchedCardData {
+  private final RAPDU appletState;
+  private final byte[] serialNumber;
+  private final long generation;
+  private byte[] sault;
+
+  PrefetchedCardData(RAPDU appletState, byte[] serialNumber, byte[] sault, long generation) {
+    this.appletState = appletState;
+    this.serialNumber = serialNumber;
+    this.sault = sault;
+    this.generation = generation;
+  }
+
+  /**
+   * @return generation of card state (see ApduRunner.resetCardState) the data is read in
+   */
+  long getGeneration() {
+    return generation;
+  }
+
+  RAPDU getAppletState() {
+    return appletState;
+  }
+
+  byte[] getSerialNumber() {
+    return serialNumber;
+  }
+
+  /**
+   * Sault may be used only for one command, so it is returned only once.
+   */
+  byte[] takeSault() {
+    byte[] result = sault;
+    sault = null;
+    return result;
+  }
+}
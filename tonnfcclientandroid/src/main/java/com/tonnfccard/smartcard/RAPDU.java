@@ -26,6 +26,7 @@ import static com.tonnfccard.helpers.ResponsesConstants.ERROR_MSG_SW_TOO_SHORT;
 public class RAPDU {
     public static final int MIN_LENGTH = 2;
     public static final int MAX_LENGTH = 257;
+    public static final int MAX_EXTENDED_LENGTH = 65538;
     private static final ByteArrayUtil BYTE_ARRAY_HELPER = ByteArrayUtil.getInstance();
     private final byte[] bytes;
 
@@ -35,8 +36,15 @@ public class RAPDU {
     }
 
     public RAPDU(byte[] bytes) {
+        this(bytes, false);
+    }
+
+    /**
+     * @param extendedLength true if response is got for extended length APDU, so DATA may have up to 65536 bytes
+     */
+    public RAPDU(byte[] bytes, boolean extendedLength) {
         if (bytes == null || bytes.length < MIN_LENGTH) throw new IllegalArgumentException(ERROR_MSG_SW_TOO_SHORT);
-        if (bytes.length > MAX_LENGTH ) throw new IllegalArgumentException(ERROR_MSG_APDU_RESPONSE_TOO_LONG);
+        if (bytes.length > (extendedLength ? MAX_EXTENDED_LENGTH : MAX_LENGTH)) throw new IllegalArgumentException(ERROR_MSG_APDU_RESPONSE_TOO_LONG);
         this.bytes = bytes;
     }
 
@@ -46,6 +46,13 @@ public class TonWalletAppletApduCommands {
     HMAC_HELPER = hmacHelper;
   }
 
+  /**
+   * @return shared HMAC context used by APDU builders called without explicit HmacHelper
+   */
+  public static HmacHelper getHmacHelper() {
+    return HMAC_HELPER;
+  }
+
   public static final byte[] TON_WALLET_APPLET_AID = {0x31, 0x31, 0x32, 0x32, 0x33, 0x33, 0x34, 0x34, 0x35, 0x35, 0x36, 0x36}; //"31313232333334343535363600";
 
   // code of CLA byte in the command APDU header
@@ -402,10 +409,14 @@ public class TonWalletAppletApduCommands {
    Precondition:  GET_SAULT should be called before to get new sault from card.
    */
   public static CAPDU getVerifyPinAPDU(byte[] pinBytes, byte[] sault) throws Exception {
+    return getVerifyPinAPDU(pinBytes, sault, HMAC_HELPER);
+  }
+
+  public static CAPDU getVerifyPinAPDU(byte[] pinBytes, byte[] sault, HmacHelper hmacHelper) throws Exception {
     if (pinBytes == null || pinBytes.length != PIN_SIZE)
       throw new IllegalArgumentException(ERROR_MSG_PIN_BYTES_SIZE_INCORRECT);
     checkSault(sault);
-    byte[] data = prepareApduData(BYTE_ARRAY_HELPER.bConcat(pinBytes, sault));
+    byte[] data = prepareApduData(BYTE_ARRAY_HELPER.bConcat(pinBytes, sault), hmacHelper);
     return new CAPDU(WALLET_APPLET_CLA, INS_VERIFY_PIN, P1, P2, data);
   }
 
@@ -426,10 +437,14 @@ public class TonWalletAppletApduCommands {
    Precondition:  1) GET_SAULT should be called before to get new sault from card. 2) VERIFY_PIN should be called before.
    */
   public static CAPDU getSignShortMessageWithDefaultPathAPDU(byte[] dataForSigning, byte[] sault) throws Exception {
+    return getSignShortMessageWithDefaultPathAPDU(dataForSigning, sault, HMAC_HELPER);
+  }
+
+  public static CAPDU getSignShortMessageWithDefaultPathAPDU(byte[] dataForSigning, byte[] sault, HmacHelper hmacHelper) throws Exception {
     if (dataForSigning == null || dataForSigning.length == 0 || dataForSigning.length > DATA_FOR_SIGNING_MAX_SIZE)
       throw new IllegalArgumentException(ERROR_MSG_DATA_BYTES_SIZE_INCORRECT);
     checkSault(sault);
-    byte[] data = prepareApduData(BYTE_ARRAY_HELPER.bConcat(new byte[]{0x00, (byte) (dataForSigning.length)}, dataForSigning, sault));
+    byte[] data = prepareApduData(BYTE_ARRAY_HELPER.bConcat(new byte[]{0x00, (byte) (dataForSigning.length)}, dataForSigning, sault), hmacHelper);
     return new CAPDU(WALLET_APPLET_CLA, INS_SIGN_SHORT_MESSAGE_WITH_DEFAULT_PATH, P1, P2, data, SIG_LEN);
   }
 
@@ -451,11 +466,15 @@ public class TonWalletAppletApduCommands {
    Precondition:  1)* GET_SAULT should be called before to get new sault from card. 2) VERIFY_PIN should be called before.
    */
   public static CAPDU getSignShortMessageAPDU(byte[] dataForSigning, byte[] hdIndex, byte[] sault) throws Exception {
+    return getSignShortMessageAPDU(dataForSigning, hdIndex, sault, HMAC_HELPER);
+  }
+
+  public static CAPDU getSignShortMessageAPDU(byte[] dataForSigning, byte[] hdIndex, byte[] sault, HmacHelper hmacHelper) throws Exception {
     if (dataForSigning == null || dataForSigning.length == 0 || dataForSigning.length > DATA_FOR_SIGNING_MAX_SIZE_FOR_CASE_WITH_PATH)
       throw new IllegalArgumentException(ERROR_MSG_DATA_WITH_HD_PATH_BYTES_SIZE_INCORRECT);
     checkSault(sault);
     checkHdIndex(hdIndex);
-    byte[] data = prepareApduData(BYTE_ARRAY_HELPER.bConcat(new byte[]{0x00, (byte) (dataForSigning.length)}, dataForSigning, new byte[]{(byte) hdIndex.length}, hdIndex, sault));
+    byte[] data = prepareApduData(BYTE_ARRAY_HELPER.bConcat(new byte[]{0x00, (byte) (dataForSigning.length)}, dataForSigning, new byte[]{(byte) hdIndex.length}, hdIndex, sault), hmacHelper);
     return new CAPDU(WALLET_APPLET_CLA, INS_SIGN_SHORT_MESSAGE, P1, P2, data, SIG_LEN);
   }
 
@@ -554,7 +573,11 @@ public class TonWalletAppletApduCommands {
    Available in applet states PERSONALIZED and DELETE_KEY_FROM_KEYCHAIN_MODE.
    */
   public static CAPDU getResetKeyChainAPDU(byte[] sault) throws Exception {
-    byte[] data = prepareSaultBasedApduData(sault);
+    return getResetKeyChainAPDU(sault, HMAC_HELPER);
+  }
+
+  public static CAPDU getResetKeyChainAPDU(byte[] sault, HmacHelper hmacHelper) throws Exception {
+    byte[] data = prepareSaultBasedApduData(sault, hmacHelper);
     return new CAPDU(WALLET_APPLET_CLA, INS_RESET_KEYCHAIN, P1, P2, data);
   }
 
@@ -574,7 +597,11 @@ public class TonWalletAppletApduCommands {
    Available in applet states PERSONALIZED and DELETE_KEY_FROM_KEYCHAIN_MODE.
    */
   public static CAPDU getNumberOfKeysAPDU(byte[] sault) throws Exception {
-    byte[] data = prepareSaultBasedApduData(sault);
+    return getNumberOfKeysAPDU(sault, HMAC_HELPER);
+  }
+
+  public static CAPDU getNumberOfKeysAPDU(byte[] sault, HmacHelper hmacHelper) throws Exception {
+    byte[] data = prepareSaultBasedApduData(sault, hmacHelper);
     return new CAPDU(WALLET_APPLET_CLA, INS_GET_NUMBER_OF_KEYS, P1, P2,
       data, GET_NUMBER_OF_KEYS_LE);
   }
@@ -595,7 +622,11 @@ public class TonWalletAppletApduCommands {
    Available in applet states PERSONALIZED and DELETE_KEY_FROM_KEYCHAIN_MODE.
    */
   public static CAPDU getGetOccupiedSizeAPDU(byte[] sault) throws Exception {
-    byte[] data = prepareSaultBasedApduData(sault);
+    return getGetOccupiedSizeAPDU(sault, HMAC_HELPER);
+  }
+
+  public static CAPDU getGetOccupiedSizeAPDU(byte[] sault, HmacHelper hmacHelper) throws Exception {
+    byte[] data = prepareSaultBasedApduData(sault, hmacHelper);
     return new CAPDU(
       WALLET_APPLET_CLA,
       INS_GET_OCCUPIED_STORAGE_SIZE, P1, P2,
@@ -618,7 +649,11 @@ public class TonWalletAppletApduCommands {
    Available in applet states PERSONALIZED and DELETE_KEY_FROM_KEYCHAIN_MODE.
    */
   public static CAPDU getGetFreeSizeAPDU(byte[] sault) throws Exception {
-    byte[] data = prepareSaultBasedApduData(sault);
+    return getGetFreeSizeAPDU(sault, HMAC_HELPER);
+  }
+
+  public static CAPDU getGetFreeSizeAPDU(byte[] sault, HmacHelper hmacHelper) throws Exception {
+    byte[] data = prepareSaultBasedApduData(sault, hmacHelper);
     return new CAPDU(
       WALLET_APPLET_CLA,
       INS_GET_FREE_STORAGE_SIZE, P1, P2,
@@ -641,10 +676,14 @@ public class TonWalletAppletApduCommands {
    Available in applet state PERSONALIZED.
    */
   public static CAPDU getCheckAvailableVolForNewKeyAPDU(short keySize, byte[] sault) throws Exception {
+    return getCheckAvailableVolForNewKeyAPDU(keySize, sault, HMAC_HELPER);
+  }
+
+  public static CAPDU getCheckAvailableVolForNewKeyAPDU(short keySize, byte[] sault, HmacHelper hmacHelper) throws Exception {
     if (keySize <= 0 || keySize > MAX_KEY_SIZE_IN_KEYCHAIN)
       throw new IllegalArgumentException(ERROR_MSG_KEY_SIZE_INCORRECT);
     checkSault(sault);
-    byte[] data = prepareApduData(BYTE_ARRAY_HELPER.bConcat(new byte[]{(byte) (keySize >> 8), (byte) (keySize)}, sault));
+    byte[] data = prepareApduData(BYTE_ARRAY_HELPER.bConcat(new byte[]{(byte) (keySize >> 8), (byte) (keySize)}, sault), hmacHelper);
     return new CAPDU(
       WALLET_APPLET_CLA,
       INS_CHECK_AVAILABLE_VOL_FOR_NEW_KEY, P1, P2,
@@ -666,9 +705,13 @@ public class TonWalletAppletApduCommands {
    Available in applet states PERSONALIZED and DELETE_KEY_FROM_KEYCHAIN_MODE.
    */
   public static CAPDU getCheckKeyHmacConsistencyAPDU(byte[] keyMac, byte[] sault) throws Exception {
+    return getCheckKeyHmacConsistencyAPDU(keyMac, sault, HMAC_HELPER);
+  }
+
+  public static CAPDU getCheckKeyHmacConsistencyAPDU(byte[] keyMac, byte[] sault, HmacHelper hmacHelper) throws Exception {
     checkHmac(keyMac);
     checkSault(sault);
-    byte[] data = prepareApduData(BYTE_ARRAY_HELPER.bConcat(keyMac, sault));
+    byte[] data = prepareApduData(BYTE_ARRAY_HELPER.bConcat(keyMac, sault), hmacHelper);
     return new CAPDU(WALLET_APPLET_CLA, INS_CHECK_KEY_HMAC_CONSISTENCY, P1, P2, data);
   }
 
@@ -687,9 +730,13 @@ public class TonWalletAppletApduCommands {
    Available in applet state PERSONALIZED.
    */
   public static CAPDU getInitiateChangeOfKeyAPDU(byte[] keyIndex, byte[] sault) throws Exception {
+    return getInitiateChangeOfKeyAPDU(keyIndex, sault, HMAC_HELPER);
+  }
+
+  public static CAPDU getInitiateChangeOfKeyAPDU(byte[] keyIndex, byte[] sault, HmacHelper hmacHelper) throws Exception {
     checkKeyChainKeyIndex(keyIndex);
     checkSault(sault);
-    byte[] data = prepareApduData(BYTE_ARRAY_HELPER.bConcat(new byte[]{keyIndex[0], keyIndex[1]}, sault));
+    byte[] data = prepareApduData(BYTE_ARRAY_HELPER.bConcat(new byte[]{keyIndex[0], keyIndex[1]}, sault), hmacHelper);
     return new CAPDU(
       WALLET_APPLET_CLA,
       INS_INITIATE_CHANGE_OF_KEY, P1, P2,
@@ -712,9 +759,13 @@ public class TonWalletAppletApduCommands {
    Available in applet states PERSONALIZED and DELETE_KEY_FROM_KEYCHAIN_MODE.
    */
   public static CAPDU getGetIndexAndLenOfKeyInKeyChainAPDU(byte[] keyMac, byte[] sault) throws Exception {
+    return getGetIndexAndLenOfKeyInKeyChainAPDU(keyMac, sault, HMAC_HELPER);
+  }
+
+  public static CAPDU getGetIndexAndLenOfKeyInKeyChainAPDU(byte[] keyMac, byte[] sault, HmacHelper hmacHelper) throws Exception {
     checkHmac(keyMac);
     checkSault(sault);
-    byte[] data = prepareApduData(BYTE_ARRAY_HELPER.bConcat(keyMac, sault));
+    byte[] data = prepareApduData(BYTE_ARRAY_HELPER.bConcat(keyMac, sault), hmacHelper);
     return new CAPDU(
       WALLET_APPLET_CLA,
       INS_GET_KEY_INDEX_IN_STORAGE_AND_LEN, P1, P2,
@@ -739,9 +790,13 @@ public class TonWalletAppletApduCommands {
    Available in applet state PERSONALIZED.
    */
   public static CAPDU getInitiateDeleteOfKeyAPDU(byte[] keyIndex, byte[] sault) throws Exception {
+    return getInitiateDeleteOfKeyAPDU(keyIndex, sault, HMAC_HELPER);
+  }
+
+  public static CAPDU getInitiateDeleteOfKeyAPDU(byte[] keyIndex, byte[] sault, HmacHelper hmacHelper) throws Exception {
     checkKeyChainKeyIndex(keyIndex);
     checkSault(sault);
-    byte[] data = prepareApduData(BYTE_ARRAY_HELPER.bConcat(new byte[]{keyIndex[0], keyIndex[1]}, sault));
+    byte[] data = prepareApduData(BYTE_ARRAY_HELPER.bConcat(new byte[]{keyIndex[0], keyIndex[1]}, sault), hmacHelper);
     return new CAPDU(
       WALLET_APPLET_CLA,
       INS_INITIATE_DELETE_KEY, P1, P2,
@@ -765,7 +820,11 @@ public class TonWalletAppletApduCommands {
    * Available in applet state DELETE_KEY_FROM_KEYCHAIN_MODE.
    */
   public static CAPDU getDeleteKeyChunkNumOfPacketsAPDU(byte[] sault) throws Exception {
-    byte[] data = prepareSaultBasedApduData(sault);
+    return getDeleteKeyChunkNumOfPacketsAPDU(sault, HMAC_HELPER);
+  }
+
+  public static CAPDU getDeleteKeyChunkNumOfPacketsAPDU(byte[] sault, HmacHelper hmacHelper) throws Exception {
+    byte[] data = prepareSaultBasedApduData(sault, hmacHelper);
     return new CAPDU(
       WALLET_APPLET_CLA,
       INS_GET_DELETE_KEY_CHUNK_NUM_OF_PACKETS, P1, P2,
@@ -788,7 +847,11 @@ public class TonWalletAppletApduCommands {
    * Available in applet state DELETE_KEY_FROM_KEYCHAIN_MODE.
    */
   public static CAPDU getDeleteKeyRecordNumOfPacketsAPDU(byte[] sault) throws Exception {
-    byte[] data = prepareSaultBasedApduData(sault);
+    return getDeleteKeyRecordNumOfPacketsAPDU(sault, HMAC_HELPER);
+  }
+
+  public static CAPDU getDeleteKeyRecordNumOfPacketsAPDU(byte[] sault, HmacHelper hmacHelper) throws Exception {
+    byte[] data = prepareSaultBasedApduData(sault, hmacHelper);
     return new CAPDU(
       WALLET_APPLET_CLA,
       INS_GET_DELETE_KEY_RECORD_NUM_OF_PACKETS, P1, P2,
@@ -815,7 +878,11 @@ public class TonWalletAppletApduCommands {
    Available in applet state DELETE_KEY_FROM_KEYCHAIN_MODE.
    */
   public static CAPDU getDeleteKeyChunkAPDU(byte[] sault) throws Exception {
-    byte[] data = prepareSaultBasedApduData(sault);
+    return getDeleteKeyChunkAPDU(sault, HMAC_HELPER);
+  }
+
+  public static CAPDU getDeleteKeyChunkAPDU(byte[] sault, HmacHelper hmacHelper) throws Exception {
+    byte[] data = prepareSaultBasedApduData(sault, hmacHelper);
     return new CAPDU(
       WALLET_APPLET_CLA,
       INS_DELETE_KEY_CHUNK, P1, P2,
@@ -846,7 +913,11 @@ public class TonWalletAppletApduCommands {
    Available in applet state DELETE_KEY_FROM_KEYCHAIN_MODE.
    */
   public static CAPDU getDeleteKeyRecordAPDU(byte[] sault) throws Exception {
-    byte[] data = prepareSaultBasedApduData(sault);
+    return getDeleteKeyRecordAPDU(sault, HMAC_HELPER);
+  }
+
+  public static CAPDU getDeleteKeyRecordAPDU(byte[] sault, HmacHelper hmacHelper) throws Exception {
+    byte[] data = prepareSaultBasedApduData(sault, hmacHelper);
     return new CAPDU(
       WALLET_APPLET_CLA,
       INS_DELETE_KEY_RECORD, P1, P2,
@@ -870,9 +941,13 @@ public class TonWalletAppletApduCommands {
    Available in applet states PERSONALIZED and DELETE_KEY_FROM_KEYCHAIN_MODE.
    */
   public static CAPDU getGetHmacAPDU(byte[] keyIndex, byte[] sault) throws Exception {
+    return getGetHmacAPDU(keyIndex, sault, HMAC_HELPER);
+  }
+
+  public static CAPDU getGetHmacAPDU(byte[] keyIndex, byte[] sault, HmacHelper hmacHelper) throws Exception {
     checkKeyChainKeyIndex(keyIndex);
     checkSault(sault);
-    byte[] data = prepareApduData(BYTE_ARRAY_HELPER.bConcat(keyIndex, sault));
+    byte[] data = prepareApduData(BYTE_ARRAY_HELPER.bConcat(keyIndex, sault), hmacHelper);
     return new CAPDU(
       WALLET_APPLET_CLA,
       INS_GET_HMAC, P1, P2,
@@ -898,9 +973,13 @@ public class TonWalletAppletApduCommands {
    Available in applet states PERSONALIZED and DELETE_KEY_FROM_KEYCHAIN_MODE.
    */
   public static CAPDU getGetKeyChunkAPDU(byte[] keyIndex, short startPos, byte[] sault, byte le) throws Exception {
+    return getGetKeyChunkAPDU(keyIndex, startPos, sault, le, HMAC_HELPER);
+  }
+
+  public static CAPDU getGetKeyChunkAPDU(byte[] keyIndex, short startPos, byte[] sault, byte le, HmacHelper hmacHelper) throws Exception {
     checkKeyChainKeyIndex(keyIndex);
     checkSault(sault);
-    byte[] data = prepareApduData(BYTE_ARRAY_HELPER.bConcat(keyIndex, new byte[]{(byte) (startPos >> 8), (byte) (startPos)}, sault));
+    byte[] data = prepareApduData(BYTE_ARRAY_HELPER.bConcat(keyIndex, new byte[]{(byte) (startPos >> 8), (byte) (startPos)}, sault), hmacHelper);
     return new CAPDU(
       WALLET_APPLET_CLA,
       INS_GET_KEY_CHUNK, P1, P2,
@@ -935,7 +1014,11 @@ public class TonWalletAppletApduCommands {
    Available in applet states PERSONALIZED.
    */
   public static CAPDU getAddKeyChunkAPDU(byte p1, byte[] keyChunkOrMacBytes, byte[] sault) throws Exception {
-    return getSendKeyChunkAPDU(INS_ADD_KEY_CHUNK, p1, keyChunkOrMacBytes, sault);
+    return getAddKeyChunkAPDU(p1, keyChunkOrMacBytes, sault, HMAC_HELPER);
+  }
+
+  public static CAPDU getAddKeyChunkAPDU(byte p1, byte[] keyChunkOrMacBytes, byte[] sault, HmacHelper hmacHelper) throws Exception {
+    return getSendKeyChunkAPDU(INS_ADD_KEY_CHUNK, p1, keyChunkOrMacBytes, sault, hmacHelper);
   }
 
   /***
@@ -964,10 +1047,18 @@ public class TonWalletAppletApduCommands {
    Available in applet states PERSONALIZED.
    */
   public static CAPDU getChangeKeyChunkAPDU(byte p1, byte[] keyChunkOrMacBytes, byte[] sault) throws Exception {
-    return getSendKeyChunkAPDU(INS_CHANGE_KEY_CHUNK, p1, keyChunkOrMacBytes, sault);
+    return getChangeKeyChunkAPDU(p1, keyChunkOrMacBytes, sault, HMAC_HELPER);
+  }
+
+  public static CAPDU getChangeKeyChunkAPDU(byte p1, byte[] keyChunkOrMacBytes, byte[] sault, HmacHelper hmacHelper) throws Exception {
+    return getSendKeyChunkAPDU(INS_CHANGE_KEY_CHUNK, p1, keyChunkOrMacBytes, sault, hmacHelper);
   }
 
   public static CAPDU getSendKeyChunkAPDU(byte ins, byte p1, byte[] keyChunkOrMacBytes, byte[] sault) throws Exception {
+    return getSendKeyChunkAPDU(ins, p1, keyChunkOrMacBytes, sault, HMAC_HELPER);
+  }
+
+  public static CAPDU getSendKeyChunkAPDU(byte ins, byte p1, byte[] keyChunkOrMacBytes, byte[] sault, HmacHelper hmacHelper) throws Exception {
     checkSault(sault);
     if (p1 < 0 || p1 > 2)
       throw new IllegalArgumentException(ERROR_MSG_APDU_P1_INCORRECT);
@@ -975,19 +1066,27 @@ public class TonWalletAppletApduCommands {
       throw new IllegalArgumentException(ERROR_MSG_KEY_CHUNK_BYTES_SIZE_INCORRECT);
     if (p1 == 2 && (keyChunkOrMacBytes == null || keyChunkOrMacBytes.length != HMAC_SHA_SIG_SIZE))
       throw new IllegalArgumentException(ERROR_MSG_KEY_MAC_BYTES_SIZE_INCORRECT);
-    byte[] data = (p1 == 2) ? prepareApduData(BYTE_ARRAY_HELPER.bConcat(keyChunkOrMacBytes, sault))
-      : prepareApduData(BYTE_ARRAY_HELPER.bConcat(new byte[]{(byte) keyChunkOrMacBytes.length}, keyChunkOrMacBytes, sault));
+    byte[] data = (p1 == 2) ? prepareApduData(BYTE_ARRAY_HELPER.bConcat(keyChunkOrMacBytes, sault), hmacHelper)
+      : prepareApduData(BYTE_ARRAY_HELPER.bConcat(new byte[]{(byte) keyChunkOrMacBytes.length}, keyChunkOrMacBytes, sault), hmacHelper);
     return (p1 == 2) ? new CAPDU(WALLET_APPLET_CLA, ins, p1, P2, data, SEND_CHUNK_LE) :
       new CAPDU(WALLET_APPLET_CLA, ins, p1, P2, data);
   }
 
   public static byte[] prepareSaultBasedApduData(byte[] sault) throws Exception {
+    return prepareSaultBasedApduData(sault, HMAC_HELPER);
+  }
+
+  public static byte[] prepareSaultBasedApduData(byte[] sault, HmacHelper hmacHelper) throws Exception {
     checkSault(sault);
-    return BYTE_ARRAY_HELPER.bConcat(sault, HMAC_HELPER.computeMac(sault));
+    return BYTE_ARRAY_HELPER.bConcat(sault, hmacHelper.computeMac(sault));
   }
 
   public static byte[] prepareApduData(byte[] dataChunk) throws Exception {
-    return BYTE_ARRAY_HELPER.bConcat(dataChunk, HMAC_HELPER.computeMac(dataChunk));
+    return prepareApduData(dataChunk, HMAC_HELPER);
+  }
+
+  public static byte[] prepareApduData(byte[] dataChunk, HmacHelper hmacHelper) throws Exception {
+    return BYTE_ARRAY_HELPER.bConcat(dataChunk, hmacHelper.computeMac(dataChunk));
   }
 
   private static void checkHmac(byte[] hmac) {
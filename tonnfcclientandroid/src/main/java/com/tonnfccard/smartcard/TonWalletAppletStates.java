@@ -7,8 +7,10 @@ import com.tonnfccard.utils.ByteArrayUtil;
 
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import static com.tonnfccard.TonWalletConstants.*;
 import static com.tonnfccard.helpers.ResponsesConstants.ERROR_MSG_STATE_RESPONSE_INCORRECT;
@@ -56,6 +58,13 @@ public enum TonWalletAppletStates {
   //private static Map<Byte, String> tonWalletAppletStates = new HashMap<>();
   private static Map<Byte, List<TonWalletAppletStates>> tonWalletAppletCommandStateMapping = new HashMap<>();
 
+  /**
+   * Commands that move applet into another state when they succeed (personalization, activation, keychain delete/reset).
+   */
+  private static final Set<Byte> STATE_CHANGING_INS = new HashSet<>(Arrays.asList(INS_FINISH_PERS,
+    INS_SET_ENCRYPTED_PASSWORD_FOR_CARD_AUTHENTICATION, INS_SET_ENCRYPTED_COMMON_SECRET, INS_SET_SERIAL_NUMBER,
+    INS_VERIFY_PASSWORD, INS_INITIATE_DELETE_KEY, INS_DELETE_KEY_CHUNK, INS_DELETE_KEY_RECORD, INS_RESET_KEYCHAIN));
+
 
 
   static {
@@ -111,6 +120,13 @@ public enum TonWalletAppletStates {
     return  tonWalletAppletCommandStateMapping.get(ins);
   }
 
+  /**
+   * @return false if successful command with this INS surely keeps applet state, true if it may change it (unknown INS too)
+   */
+  public static boolean isStateChangingIns(byte ins) {
+    return STATE_CHANGING_INS.contains(ins) || !tonWalletAppletCommandStateMapping.containsKey(ins);
+  }
+
   private Byte value;
   private String description;
 
@@ -26,6 +26,7 @@ import static com.tonnfccard.helpers.ResponsesConstants.ERROR_MSG_STRING_IS_NULL
 public class ByteArrayUtil {
 
   private static StringHelper stringHelper = StringHelper.getInstance();
+  private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
 
   private static ByteArrayUtil instance;
 
@@ -139,11 +140,12 @@ public class ByteArrayUtil {
   public String hex(byte[] src)  {
     if (src == null) throw new IllegalArgumentException(ERROR_MSG_SOURCE_ARRAY_IS_NULL);
    // if (src.length == 0) throw new IllegalArgumentException(ERROR_MSG_SOURCE_ARRAY_IS_EMPTY);
-    StringBuilder stringBuilder = new StringBuilder();
+    char[] hexChars = new char[2 * src.length];
     for (int j = 0; j < src.length; j++) {
-      stringBuilder.append(String.format("%02X", src[j]));
+      hexChars[2 * j] = HEX_DIGITS[(src[j] >> 4) & 0x0F];
+      hexChars[2 * j + 1] = HEX_DIGITS[src[j] & 0x0F];
     }
-    return stringBuilder.toString();
+    return new String(hexChars);
   }
 
   //Convert hex non-empty string of even length to byte array.
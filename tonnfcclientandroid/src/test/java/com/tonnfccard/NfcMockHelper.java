@@ -94,6 +94,8 @@ public class NfcMockHelper {
         HmacHelper hmacHelperMock = Mockito.spy(hmacHelper);
         byte[] mac = BYTE_ARRAY_HELPER.bytes(STRING_HELPER.randomHexString(SHA_HASH_SIZE * 2));
         Mockito.doReturn(mac).when(hmacHelperMock).computeMac(any());
+        Mockito.doReturn((HmacHelper.PreparedMac) suffix -> mac).when(hmacHelperMock).prepareMac(any());
+        Mockito.doReturn(true).when(hmacHelperMock).isMacCloneable();
         System.out.println(BYTE_ARRAY_HELPER.hex(hmacHelperMock.computeMac(new byte[1])));
         return hmacHelperMock;
     }
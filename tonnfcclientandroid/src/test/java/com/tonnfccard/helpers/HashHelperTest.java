@@ -0,0 +1,60 @@
+package com.tonnfccard.helpers;
+
+import org.junit.Test;
+
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static com.tonnfccard.helpers.ResponsesConstants.ERROR_MSG_DATA_TO_HASH_IS_NULL;
+import static org.junit.Assert.*;
+
+public class HashHelperTest {
+    private static final HashHelper HASH_HELPER = HashHelper.getInstance();
+
+    @Test
+    public void testNullData() {
+        try {
+            HASH_HELPER.sha256(null);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals(e.getMessage(), ERROR_MSG_DATA_TO_HASH_IS_NULL);
+        }
+    }
+
+    @Test
+    public void testConcurrentHashing() throws Exception {
+        Random random = new Random(42);
+        List<byte[]> data = new ArrayList<>();
+        List<byte[]> expectedHashes = new ArrayList<>();
+        MessageDigest digest = MessageDigest.getInstance(HashHelper.SHA_256_ALG);
+        for (int i = 0; i < 64; i++) {
+            byte[] bytes = new byte[1 + random.nextInt(4096)];
+            random.nextBytes(bytes);
+            data.add(bytes);
+            expectedHashes.add(digest.digest(bytes));
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                results.add(executor.submit((Callable<Boolean>) () -> {
+                    for (int round = 0; round < 50; round++) {
+                        for (int i = 0; i < data.size(); i++) {
+                            if (!MessageDigest.isEqual(HASH_HELPER.sha256(data.get(i)), expectedHashes.get(i))) return false;
+                        }
+                    }
+                    return true;
+                }));
+            }
+            for (Future<Boolean> result : results) assertTrue(result.get());
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -1,11 +1,19 @@
 package com.tonnfccard.helpers;
 
+import com.tonnfccard.NfcMockHelper;
 import com.tonnfccard.utils.ByteArrayUtil;
 
 import org.junit.Test;
+import org.mockito.Mockito;
 
+import java.security.KeyStore;
+import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
 
 import static com.tonnfccard.TonWalletConstants.EMPTY_SERIAL_NUMBER;
 import static com.tonnfccard.TonWalletConstants.SHA_HASH_SIZE;
@@ -14,6 +22,8 @@ import static com.tonnfccard.helpers.ResponsesConstants.ERROR_MSG_ERR_CURRENT_SE
 import static com.tonnfccard.helpers.ResponsesConstants.ERROR_MSG_ERR_DATA_BYTES_FOR_HMAC_SHA256_IS_NULL;
 import static com.tonnfccard.helpers.ResponsesConstants.ERROR_MSG_ERR_KEY_BYTES_FOR_HMAC_SHA256_IS_NULL;
 import static com.tonnfccard.helpers.ResponsesConstants.ERROR_MSG_ERR_KEY_BYTES_FOR_HMAC_SHA256_IS_TOO_SHORT;
+import static com.tonnfccard.helpers.ResponsesConstants.ERROR_MSG_KEY_FOR_HMAC_DOES_NOT_EXIST_IN_ANDROID_KEYSTORE;
+import static com.tonnfccard.helpers.ResponsesConstants.ERROR_MSG_KEY_PROVIDER_IS_NULL;
 import static org.junit.Assert.*;
 
 public class HmacHelperTest {
@@ -84,6 +94,97 @@ public class HmacHelperTest {
         }
     }
 
+    @Test
+    public void testKeyFromKeystoreIsCached() throws Exception {
+        NfcMockHelper.mockAndroidKeyStore();
+        KeyStore keyStore = KeyStore.getInstance(HmacHelper.ANDROID_KEYSTORE);
+        String serialNumber = "123456789012345678901234";
+        String keyAlias = HmacHelper.HMAC_KEY_ALIAS + serialNumber;
+        byte[] key = new byte[SHA_HASH_SIZE];
+        Mockito.doReturn(new KeyStore.SecretKeyEntry(new SecretKeySpec(key, HmacHelper.HMAC_SHA256_ALG))).when(keyStore).getEntry(keyAlias, null);
+        HmacHelper hmacHelper = HmacHelper.newInstance();
+        hmacHelper.setCurrentSerialNumber(serialNumber);
+        byte[] data = ByteArrayUtil.getInstance().bytes("00aa");
+        byte[] expectedMac = hmacHelper.computeMac(key, data);
+        assertArrayEquals(hmacHelper.computeMac(data), expectedMac);
+        assertArrayEquals(hmacHelper.computeMac(data), expectedMac);
+        Mockito.verify(keyStore, Mockito.times(1)).getEntry(keyAlias, null);
+        hmacHelper.invalidateKey(serialNumber);
+        assertArrayEquals(hmacHelper.computeMac(data), expectedMac);
+        Mockito.verify(keyStore, Mockito.times(2)).getEntry(keyAlias, null);
+    }
 
+    @Test
+    public void testKeyLoadedDuringInvalidationIsNotCached() throws Exception {
+        String serialNumber = "123456789012345678901235";
+        AtomicInteger loads = new AtomicInteger();
+        HmacHelper[] hmacHelper = new HmacHelper[1];
+        InMemoryKeyProvider keyProvider = new InMemoryKeyProvider() {
+            @Override
+            public synchronized SecretKey getKey(String serialNumber) {
+                // key is rewritten by another thread while this one is loading it
+                if (loads.incrementAndGet() == 1) hmacHelper[0].invalidateKey(serialNumber);
+                return super.getKey(serialNumber);
+            }
+        };
+        keyProvider.setKey(serialNumber, new byte[SHA_HASH_SIZE]);
+        hmacHelper[0] = HmacHelper.newInstance(keyProvider);
+        hmacHelper[0].setCurrentSerialNumber(serialNumber);
+        byte[] data = ByteArrayUtil.getInstance().bytes("00aa");
+        hmacHelper[0].computeMac(data);
+        hmacHelper[0].computeMac(data);
+        hmacHelper[0].computeMac(data);
+        assertEquals(loads.get(), 2);
+    }
+
+    @Test
+    public void testKeyInvalidationReachesAllHelpersOfProvider() throws Exception {
+        String serialNumber = "123456789012345678901236";
+        byte[] key = new byte[SHA_HASH_SIZE];
+        byte[] newKey = new byte[SHA_HASH_SIZE];
+        newKey[0] = 0x01;
+        InMemoryKeyProvider keyProvider = new InMemoryKeyProvider();
+        keyProvider.setKey(serialNumber, key);
+        HmacHelper hmacHelper = HmacHelper.newInstance(keyProvider);
+        HmacHelper otherHmacHelper = HmacHelper.newInstance(keyProvider);
+        hmacHelper.setCurrentSerialNumber(serialNumber);
+        otherHmacHelper.setCurrentSerialNumber(serialNumber);
+        byte[] data = ByteArrayUtil.getInstance().bytes("00aa");
+        assertArrayEquals(hmacHelper.computeMac(data), hmacHelper.computeMac(key, data));
+        keyProvider.setKey(serialNumber, newKey);
+        otherHmacHelper.invalidateKey(serialNumber);
+        assertArrayEquals(hmacHelper.computeMac(data), hmacHelper.computeMac(newKey, data));
+        assertArrayEquals(otherHmacHelper.computeMac(data), hmacHelper.computeMac(newKey, data));
+    }
 
-}
\ No newline at end of file
+    @Test
+    public void testInMemoryKeyProvider() throws Exception {
+        try {
+            HmacHelper.newInstance(null);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals(e.getMessage(), ERROR_MSG_KEY_PROVIDER_IS_NULL);
+        }
+        String serialNumber = "123456789012345678901234";
+        byte[] key = new byte[SHA_HASH_SIZE];
+        key[0] = 0x01;
+        InMemoryKeyProvider keyProvider = new InMemoryKeyProvider();
+        keyProvider.setKey(serialNumber, key);
+        assertTrue(keyProvider.containsKey(serialNumber));
+        assertEquals(keyProvider.getSerialNumbers(), Collections.singletonList(serialNumber));
+        HmacHelper hmacHelper = HmacHelper.newInstance(keyProvider);
+        assertSame(hmacHelper.getKeyProvider(), keyProvider);
+        hmacHelper.setCurrentSerialNumber(serialNumber);
+        byte[] data = ByteArrayUtil.getInstance().bytes("00aa");
+        assertArrayEquals(hmacHelper.computeMac(data), hmacHelper.computeMac(key, data));
+        assertTrue(keyProvider.deleteKey(serialNumber));
+        assertFalse(keyProvider.deleteKey(serialNumber));
+        hmacHelper.invalidateKey(serialNumber);
+        try {
+            hmacHelper.computeMac(data);
+            fail();
+        } catch (Exception e) {
+            assertEquals(e.getMessage(), ERROR_MSG_KEY_FOR_HMAC_DOES_NOT_EXIST_IN_ANDROID_KEYSTORE);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.tonnfccard.helpers;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.tonnfccard.TonWalletConstants.SHA_HASH_SIZE;
+import static com.tonnfccard.helpers.ResponsesConstants.ERROR_MSG_CAN_NOT_WRITE_FILE;
+import static org.junit.Assert.*;
+
+public class IndexedKeyProviderTest {
+    private static final String SERIAL_NUMBER_1 = "504394802433901126813236";
+    private static final String SERIAL_NUMBER_2 = "504394802433901126813237";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static class CountingKeyProvider extends InMemoryKeyProvider {
+        final AtomicInteger enumerations = new AtomicInteger();
+        final AtomicInteger lookups = new AtomicInteger();
+
+        @Override
+        public synchronized List<String> getSerialNumbers() {
+            enumerations.incrementAndGet();
+            return super.getSerialNumbers();
+        }
+
+        @Override
+        public synchronized boolean containsKey(String serialNumber) {
+            lookups.incrementAndGet();
+            return super.containsKey(serialNumber);
+        }
+    }
+
+    @Test
+    public void testIndexIsBuiltOnceAndWrittenThrough() throws Exception {
+        File indexFile = new File(folder.getRoot(), "hmac_keys.idx");
+        CountingKeyProvider keyStore = new CountingKeyProvider();
+        keyStore.setKey(SERIAL_NUMBER_1, new byte[SHA_HASH_SIZE]);
+        IndexedKeyProvider keyProvider = new IndexedKeyProvider(keyStore, indexFile);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(keyProvider.getSerialNumbers(), Collections.singletonList(SERIAL_NUMBER_1));
+            assertTrue(keyProvider.containsKey(SERIAL_NUMBER_1));
+            assertFalse(keyProvider.containsKey(SERIAL_NUMBER_2));
+        }
+        assertEquals(keyStore.enumerations.get(), 1);
+        // Only serial number missing from the index is looked up in the keystore
+        assertEquals(keyStore.lookups.get(), 10);
+        keyProvider.setKey(SERIAL_NUMBER_2, new byte[SHA_HASH_SIZE]);
+        assertTrue(keyProvider.deleteKey(SERIAL_NUMBER_1));
+        assertFalse(keyStore.containsKey(SERIAL_NUMBER_1));
+
+        IndexedKeyProvider reloaded = new IndexedKeyProvider(keyStore, indexFile);
+        assertEquals(reloaded.getSerialNumbers(), Collections.singletonList(SERIAL_NUMBER_2));
+        assertTrue(reloaded.containsKey(SERIAL_NUMBER_2));
+        assertEquals(keyStore.enumerations.get(), 1);
+    }
+
+    @Test
+    public void testStaleEntryIsDropped() throws Exception {
+        File indexFile = new File(folder.getRoot(), "hmac_keys.idx");
+        InMemoryKeyProvider keyStore = new InMemoryKeyProvider();
+        keyStore.setKey(SERIAL_NUMBER_1, new byte[SHA_HASH_SIZE]);
+        keyStore.setKey(SERIAL_NUMBER_2, new byte[SHA_HASH_SIZE]);
+        assertEquals(new IndexedKeyProvider(keyStore, indexFile).getSerialNumbers(), Arrays.asList(SERIAL_NUMBER_1, SERIAL_NUMBER_2));
+        keyStore.deleteKey(SERIAL_NUMBER_1);
+        IndexedKeyProvider keyProvider = new IndexedKeyProvider(keyStore, indexFile);
+        assertNull(keyProvider.getKey(SERIAL_NUMBER_1));
+        assertEquals(keyProvider.getSerialNumbers(), Collections.singletonList(SERIAL_NUMBER_2));
+        assertEquals(new IndexedKeyProvider(new InMemoryKeyProvider(), indexFile).getSerialNumbers(), Collections.emptyList());
+    }
+
+    @Test
+    public void testKeyMissingFromIndexIsAdded() throws Exception {
+        File indexFile = new File(folder.getRoot(), "hmac_keys.idx");
+        CountingKeyProvider keyStore = new CountingKeyProvider();
+        keyStore.setKey(SERIAL_NUMBER_1, new byte[SHA_HASH_SIZE]);
+        IndexedKeyProvider keyProvider = new IndexedKeyProvider(keyStore, indexFile);
+        assertEquals(keyProvider.getSerialNumbers(), Collections.singletonList(SERIAL_NUMBER_1));
+        keyStore.setKey(SERIAL_NUMBER_2, new byte[SHA_HASH_SIZE]);
+        assertNotNull(keyProvider.getKey(SERIAL_NUMBER_2));
+        assertTrue(keyProvider.containsKey(SERIAL_NUMBER_2));
+        assertEquals(keyStore.lookups.get(), 1);
+        assertEquals(keyProvider.getSerialNumbers(), Arrays.asList(SERIAL_NUMBER_1, SERIAL_NUMBER_2));
+        assertEquals(new IndexedKeyProvider(keyStore, indexFile).getSerialNumbers(), Arrays.asList(SERIAL_NUMBER_1, SERIAL_NUMBER_2));
+        assertEquals(keyStore.enumerations.get(), 1);
+    }
+
+    @Test
+    public void testIndexEntryIsWrittenBeforeKey() throws Exception {
+        File indexFile = new File(folder.getRoot(), "hmac_keys.idx");
+        InMemoryKeyProvider keyStore = new InMemoryKeyProvider() {
+            @Override
+            public synchronized void setKey(String serialNumber, byte[] key) {
+                throw new IllegalStateException();
+            }
+        };
+        IndexedKeyProvider keyProvider = new IndexedKeyProvider(keyStore, indexFile);
+        try {
+            keyProvider.setKey(SERIAL_NUMBER_1, new byte[SHA_HASH_SIZE]);
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals(Files.readAllLines(indexFile.toPath(), StandardCharsets.UTF_8), Collections.singletonList(SERIAL_NUMBER_1));
+        }
+        // Entry without key is dropped when it is checked against the keystore
+        assertFalse(keyProvider.containsKey(SERIAL_NUMBER_1));
+        assertEquals(keyProvider.getSerialNumbers(), Collections.emptyList());
+        assertEquals(Files.readAllLines(indexFile.toPath(), StandardCharsets.UTF_8), Collections.emptyList());
+    }
+
+    @Test
+    public void testIndexFileCanNotBeReplaced() throws Exception {
+        File indexFile = new File(folder.getRoot(), "hmac_keys.idx");
+        InMemoryKeyProvider keyStore = new InMemoryKeyProvider();
+        IndexedKeyProvider keyProvider = new IndexedKeyProvider(keyStore, indexFile);
+        assertEquals(keyProvider.getSerialNumbers(), Collections.emptyList());
+        assertTrue(indexFile.delete());
+        assertTrue(indexFile.mkdir());
+        assertTrue(new File(indexFile, "other").createNewFile());
+        try {
+            keyProvider.setKey(SERIAL_NUMBER_1, new byte[SHA_HASH_SIZE]);
+            fail();
+        } catch (Exception e) {
+            assertEquals(e.getMessage(), ERROR_MSG_CAN_NOT_WRITE_FILE + indexFile);
+        }
+        assertTrue(indexFile.isDirectory());
+    }
+}
@@ -0,0 +1,95 @@
+package com.tonnfccard.helpers;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static com.tonnfccard.TonWalletConstants.SHA_HASH_SIZE;
+import static com.tonnfccard.helpers.ResponsesConstants.ERROR_MSG_CAN_NOT_WRITE_FILE;
+import static org.junit.Assert.*;
+
+public class Pkcs12KeyProviderTest {
+    private static final String SERIAL_NUMBER_1 = "504394802433901126813236";
+    private static final String SERIAL_NUMBER_2 = "504394802433901126813237";
+    private static final char[] PASSWORD = "password".toCharArray();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private interface Body {
+        void run() throws Exception;
+    }
+
+    // Static mock of KeyStore (see NfcMockHelper.mockAndroidKeyStore) is visible only in the thread that created it,
+    // so real PKCS12 keystore is used in another thread
+    private static void runWithRealKeyStore(Body body) throws Exception {
+        Exception[] failure = new Exception[1];
+        Error[] error = new Error[1];
+        Thread thread = new Thread(() -> {
+            try {
+                body.run();
+            } catch (Exception e) {
+                failure[0] = e;
+            } catch (Error e) {
+                error[0] = e;
+            }
+        });
+        thread.start();
+        thread.join();
+        if (error[0] != null) throw error[0];
+        if (failure[0] != null) throw failure[0];
+    }
+
+    @Test
+    public void testKeysAreReloadedFromFile() throws Exception {
+        runWithRealKeyStore(() -> {
+            File file = new File(folder.getRoot(), "hmac_keys.p12");
+            byte[] key1 = new byte[SHA_HASH_SIZE];
+            byte[] key2 = new byte[SHA_HASH_SIZE];
+            key1[0] = 0x01;
+            key2[0] = 0x02;
+            Pkcs12KeyProvider keyProvider = new Pkcs12KeyProvider(file, PASSWORD);
+            assertEquals(keyProvider.getSerialNumbers(), Collections.emptyList());
+            assertFalse(file.exists());
+            keyProvider.setKey(SERIAL_NUMBER_1, key1);
+            keyProvider.setKey(SERIAL_NUMBER_2, key2);
+            assertTrue(file.exists());
+            assertFalse(new File(folder.getRoot(), file.getName() + ".tmp").exists());
+
+            Pkcs12KeyProvider reloaded = new Pkcs12KeyProvider(file, PASSWORD);
+            assertEquals(reloaded.getSerialNumbers().size(), 2);
+            assertTrue(reloaded.getSerialNumbers().containsAll(Arrays.asList(SERIAL_NUMBER_1, SERIAL_NUMBER_2)));
+            assertArrayEquals(reloaded.getKey(SERIAL_NUMBER_1).getEncoded(), key1);
+            assertArrayEquals(reloaded.getKey(SERIAL_NUMBER_2).getEncoded(), key2);
+            assertTrue(reloaded.deleteKey(SERIAL_NUMBER_1));
+            assertFalse(reloaded.deleteKey(SERIAL_NUMBER_1));
+            assertNull(reloaded.getKey(SERIAL_NUMBER_1));
+
+            Pkcs12KeyProvider reloadedAgain = new Pkcs12KeyProvider(file, PASSWORD);
+            assertEquals(reloadedAgain.getSerialNumbers(), Collections.singletonList(SERIAL_NUMBER_2));
+            assertFalse(reloadedAgain.containsKey(SERIAL_NUMBER_1));
+            assertArrayEquals(reloadedAgain.getKey(SERIAL_NUMBER_2).getEncoded(), key2);
+        });
+    }
+
+    @Test
+    public void testFileCanNotBeReplaced() throws Exception {
+        runWithRealKeyStore(() -> {
+            File file = new File(folder.getRoot(), "hmac_keys.p12");
+            Pkcs12KeyProvider keyProvider = new Pkcs12KeyProvider(file, PASSWORD);
+            assertTrue(file.mkdir());
+            assertTrue(new File(file, "other").createNewFile());
+            try {
+                keyProvider.setKey(SERIAL_NUMBER_1, new byte[SHA_HASH_SIZE]);
+                fail();
+            } catch (Exception e) {
+                assertEquals(e.getMessage(), ERROR_MSG_CAN_NOT_WRITE_FILE + file);
+            }
+            assertTrue(file.isDirectory());
+        });
+    }
+}
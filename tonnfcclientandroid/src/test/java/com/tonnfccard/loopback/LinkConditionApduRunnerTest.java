@@ -0,0 +1,126 @@
+package com.tonnfccard.loopback;
+
+import com.tonnfccard.CardActivationApi;
+import com.tonnfccard.helpers.JsonHelper;
+import com.tonnfccard.smartcard.CardChannelApduRunner;
+import com.tonnfccard.utils.ByteArrayUtil;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.tonnfccard.NfcMockHelper.SW_SUCCESS;
+import static com.tonnfccard.TonWalletConstants.STATE_MAP;
+import static com.tonnfccard.helpers.ResponsesConstants.ERROR_BAD_RESPONSE;
+import static com.tonnfccard.helpers.ResponsesConstants.ERROR_MSG_APDU_RUNNER_IS_NULL;
+import static com.tonnfccard.helpers.ResponsesConstants.ERROR_TRANSCEIVE;
+import static com.tonnfccard.smartcard.TonWalletAppletApduCommands.GET_APP_INFO_APDU;
+import static com.tonnfccard.smartcard.TonWalletAppletApduCommands.SELECT_TON_WALLET_APPLET_APDU;
+import static org.junit.Assert.*;
+
+public class LinkConditionApduRunnerTest {
+    private static final ByteArrayUtil BYTE_ARRAY_HELPER = ByteArrayUtil.getInstance();
+    private static final JsonHelper JSON_HELPER = JsonHelper.getInstance();
+    private static final long SEED = 42;
+
+    @Test
+    public void testNullInnerRunner() {
+        try {
+            new LinkConditionApduRunner(null);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals(e.getMessage(), ERROR_MSG_APDU_RUNNER_IS_NULL);
+        }
+    }
+
+    @Test
+    public void testDropsExhaustRetries() throws Exception {
+        AtomicInteger exchanges = new AtomicInteger();
+        LinkConditionApduRunner runner = new LinkConditionApduRunner(new CardChannelApduRunner(new LoopbackCardChannel(apdu -> {
+            exchanges.incrementAndGet();
+            return SW_SUCCESS;
+        })), SEED);
+        runner.getCardChannel().setDropProbability(1);
+        runner.setNumberOfRetries(3);
+        runner.setRetryTimeOut(0);
+        try {
+            runner.sendAPDU(SELECT_TON_WALLET_APPLET_APDU);
+            fail();
+        } catch (Exception e) {
+            assertTrue(e.getMessage().startsWith(ERROR_TRANSCEIVE));
+        }
+        assertEquals(exchanges.get(), 0);
+    }
+
+    @Test
+    public void testTruncatedResponse() throws Exception {
+        LinkConditionApduRunner runner = new LinkConditionApduRunner(new CardChannelApduRunner(new LoopbackCardChannel(apdu -> SW_SUCCESS)), SEED);
+        runner.getCardChannel().setTruncationProbability(1);
+        runner.setNumberOfRetries(2);
+        runner.setRetryTimeOut(0);
+        try {
+            runner.sendAPDU(SELECT_TON_WALLET_APPLET_APDU);
+            fail();
+        } catch (Exception e) {
+            assertEquals(e.getMessage(), ERROR_BAD_RESPONSE);
+        }
+    }
+
+    @Test
+    public void testTagLoss() throws Exception {
+        LinkConditionApduRunner runner = new LinkConditionApduRunner(new CardChannelApduRunner(new LoopbackCardChannel(apdu -> SW_SUCCESS)), SEED);
+        LinkConditionCardChannel channel = runner.getCardChannel();
+        channel.setTagLossProbability(1);
+        channel.setTagAbsenceTime(50);
+        runner.setNumberOfRetries(1);
+        try {
+            runner.sendAPDU(SELECT_TON_WALLET_APPLET_APDU);
+            fail();
+        } catch (Exception e) {
+            assertTrue(e.getMessage().startsWith(ERROR_TRANSCEIVE));
+        }
+        assertFalse(channel.isTagPresent());
+        assertFalse(channel.isConnected());
+        channel.setTagLossProbability(0);
+        runner.setNumberOfRetries(20);
+        runner.setRetryTimeOut(20);
+        assertArrayEquals(runner.sendAPDU(SELECT_TON_WALLET_APPLET_APDU).getBytes(), SW_SUCCESS);
+        assertTrue(channel.isTagPresent());
+    }
+
+    @Test
+    public void testOperationUnderBadLinkConditions() throws Exception {
+        byte state = STATE_MAP.keySet().iterator().next();
+        LinkConditionApduRunner runner = new LinkConditionApduRunner(new CardChannelApduRunner(new LoopbackCardChannel(apdu -> {
+            if (Arrays.equals(apdu, GET_APP_INFO_APDU.getBytes())) {
+                return BYTE_ARRAY_HELPER.bConcat(new byte[]{state}, SW_SUCCESS);
+            }
+            return SW_SUCCESS;
+        })), SEED);
+        LinkConditionCardChannel channel = runner.getCardChannel();
+        channel.setLatencyModel(LinkConditionCardChannel.uniformLatency(0, 2));
+        channel.setDropProbability(0.2);
+        channel.setTagLossProbability(0.1);
+        channel.setTagAbsenceTime(5);
+        runner.setNumberOfRetries(30);
+        runner.setRetryTimeOut(10);
+        CardActivationApi cardActivationApi = new CardActivationApi(runner);
+        String expectedResponse = JSON_HELPER.createResponseJson(STATE_MAP.get(state)).toLowerCase();
+        for (int i = 0; i < 20; i++) {
+            assertEquals(cardActivationApi.getTonAppletStateAndGetJson().toLowerCase(), expectedResponse);
+        }
+    }
+
+    @Test
+    public void testLatencyModels() {
+        Random random = new Random(SEED);
+        assertEquals(LinkConditionCardChannel.fixedLatency(7).nextLatency(random, null), 7);
+        for (int i = 0; i < 100; i++) {
+            long uniform = LinkConditionCardChannel.uniformLatency(5, 10).nextLatency(random, null);
+            assertTrue(uniform >= 5 && uniform <= 10);
+            assertTrue(LinkConditionCardChannel.normalLatency(1, 10).nextLatency(random, null) >= 0);
+        }
+    }
+}
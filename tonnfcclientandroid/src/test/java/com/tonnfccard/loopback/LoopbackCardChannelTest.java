@@ -0,0 +1,142 @@
+package com.tonnfccard.loopback;
+
+import com.tonnfccard.CardActivationApi;
+import com.tonnfccard.helpers.JsonHelper;
+import com.tonnfccard.smartcard.CAPDU;
+import com.tonnfccard.smartcard.CardChannelApduRunner;
+import com.tonnfccard.smartcard.RAPDU;
+import com.tonnfccard.utils.ByteArrayUtil;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static com.tonnfccard.NfcMockHelper.SW_SUCCESS;
+import static com.tonnfccard.TonWalletConstants.STATE_MAP;
+import static com.tonnfccard.helpers.ResponsesConstants.ERROR_BAD_RESPONSE;
+import static com.tonnfccard.helpers.ResponsesConstants.ERROR_MSG_APDU_EMPTY;
+import static com.tonnfccard.helpers.ResponsesConstants.ERROR_MSG_CARD_PROCESSOR_IS_NULL;
+import static com.tonnfccard.helpers.ResponsesConstants.ERROR_MSG_EXTENDED_APDU_NOT_SUPPORTED;
+import static com.tonnfccard.helpers.ResponsesConstants.ERROR_MSG_NO_TAG;
+import static com.tonnfccard.helpers.ResponsesConstants.ERROR_MSG_TRANSCEIVE_LENGTH_EXCEEDED;
+import static com.tonnfccard.smartcard.TonWalletAppletApduCommands.GET_APP_INFO_APDU;
+import static com.tonnfccard.smartcard.TonWalletAppletApduCommands.SELECT_TON_WALLET_APPLET_APDU;
+import static org.junit.Assert.*;
+
+public class LoopbackCardChannelTest {
+    private static final ByteArrayUtil BYTE_ARRAY_HELPER = ByteArrayUtil.getInstance();
+    private static final JsonHelper JSON_HELPER = JsonHelper.getInstance();
+
+    @Test
+    public void testNullProcessor() {
+        try {
+            new LoopbackCardChannel(null);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals(e.getMessage(), ERROR_MSG_CARD_PROCESSOR_IS_NULL);
+        }
+    }
+
+    @Test
+    public void testTransceiveWithoutConnect() {
+        LoopbackCardChannel channel = new LoopbackCardChannel(apdu -> SW_SUCCESS);
+        try {
+            channel.transceive(SELECT_TON_WALLET_APPLET_APDU.getBytes());
+            fail();
+        } catch (Exception e) {
+            assertEquals(e.getMessage(), ERROR_MSG_NO_TAG);
+        }
+    }
+
+    @Test
+    public void testTransceiveNullApdu() {
+        LoopbackCardChannel channel = new LoopbackCardChannel(apdu -> SW_SUCCESS);
+        channel.connect();
+        try {
+            channel.transceive(null);
+            fail();
+        } catch (Exception e) {
+            assertEquals(e.getMessage(), ERROR_MSG_APDU_EMPTY);
+        }
+    }
+
+    @Test
+    public void testBadResponse() {
+        LoopbackCardChannel channel = new LoopbackCardChannel(apdu -> new byte[]{(byte) 0x90});
+        channel.connect();
+        try {
+            channel.transceive(SELECT_TON_WALLET_APPLET_APDU.getBytes());
+            fail();
+        } catch (Exception e) {
+            assertEquals(e.getMessage(), ERROR_BAD_RESPONSE);
+        }
+    }
+
+    @Test
+    public void testRunnerConnectsAndDisconnectsChannel() throws Exception {
+        LoopbackCardChannel channel = new LoopbackCardChannel(apdu -> SW_SUCCESS);
+        CardChannelApduRunner runner = new CardChannelApduRunner(channel);
+        assertFalse(channel.isConnected());
+        RAPDU rapdu = runner.sendAPDU(SELECT_TON_WALLET_APPLET_APDU);
+        assertTrue(channel.isConnected());
+        assertArrayEquals(rapdu.getBytes(), SW_SUCCESS);
+        runner.disconnectCard();
+        assertFalse(channel.isConnected());
+    }
+
+    @Test
+    public void testExtendedLengthNegotiation() throws Exception {
+        CAPDU extendedApdu = CAPDU.createExtended((byte) 0xB0, (byte) 0xA1, (byte) 0x00, (byte) 0x00, new byte[1000], 0x00);
+        byte[] longResponse = BYTE_ARRAY_HELPER.bConcat(new byte[2000], SW_SUCCESS);
+
+        CardChannelApduRunner shortRunner = new CardChannelApduRunner(new LoopbackCardChannel(apdu -> longResponse));
+        assertEquals(shortRunner.getMaxApduDataLength(), CAPDU.MAX_DATA_LEN);
+        try {
+            shortRunner.sendAPDU(extendedApdu);
+            fail();
+        } catch (Exception e) {
+            assertEquals(e.getMessage(), ERROR_MSG_EXTENDED_APDU_NOT_SUPPORTED);
+        }
+
+        CardChannelApduRunner extendedRunner = new CardChannelApduRunner(new LoopbackCardChannel(apdu -> longResponse, 4096, true));
+        assertEquals(extendedRunner.getMaxApduDataLength(), 4096 - CAPDU.EXTENDED_LENGTH_OVERHEAD);
+        RAPDU rapdu = extendedRunner.sendAPDU(extendedApdu);
+        assertEquals(rapdu.getData().length, 2000);
+    }
+
+    @Test
+    public void testCommandLongerThanMaxTransceiveLength() throws Exception {
+        CAPDU longestShortApdu = new CAPDU((byte) 0xB0, (byte) 0xA1, (byte) 0x00, (byte) 0x00, new byte[CAPDU.MAX_DATA_LEN], (byte) 0x00);
+        assertEquals(longestShortApdu.getBytes().length, CAPDU.MAX_LENGTH);
+        assertArrayEquals(new CardChannelApduRunner(new LoopbackCardChannel(apdu -> SW_SUCCESS)).sendAPDU(longestShortApdu).getBytes(), SW_SUCCESS);
+
+        int maxTransceiveLength = 600;
+        CardChannelApduRunner runner = new CardChannelApduRunner(new LoopbackCardChannel(apdu -> SW_SUCCESS, maxTransceiveLength, true));
+        int maxDataLength = runner.getMaxApduDataLength();
+        CAPDU longestApdu = CAPDU.createExtended((byte) 0xB0, (byte) 0xA1, (byte) 0x00, (byte) 0x00, new byte[maxDataLength], 0x00);
+        assertEquals(longestApdu.getBytes().length, maxTransceiveLength);
+        assertArrayEquals(runner.sendAPDU(longestApdu).getBytes(), SW_SUCCESS);
+        try {
+            runner.sendAPDU(CAPDU.createExtended((byte) 0xB0, (byte) 0xA1, (byte) 0x00, (byte) 0x00, new byte[maxDataLength + 1], 0x00));
+            fail();
+        } catch (IOException e) {
+            assertEquals(e.getMessage(), ERROR_MSG_TRANSCEIVE_LENGTH_EXCEEDED);
+        }
+    }
+
+    @Test
+    public void testGetTonAppletStateViaLoopback() throws Exception {
+        for (Byte state : STATE_MAP.keySet()) {
+            LoopbackCardChannel channel = new LoopbackCardChannel(apdu -> {
+                if (Arrays.equals(apdu, GET_APP_INFO_APDU.getBytes())) {
+                    return BYTE_ARRAY_HELPER.bConcat(new byte[]{state}, SW_SUCCESS);
+                }
+                return SW_SUCCESS;
+            });
+            CardActivationApi cardActivationApi = new CardActivationApi(new CardChannelApduRunner(channel));
+            String response = cardActivationApi.getTonAppletStateAndGetJson();
+            assertEquals(response.toLowerCase(), JSON_HELPER.createResponseJson(STATE_MAP.get(state)).toLowerCase());
+        }
+    }
+}
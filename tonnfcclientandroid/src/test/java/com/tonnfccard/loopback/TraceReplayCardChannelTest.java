@@ -0,0 +1,158 @@
+package com.tonnfccard.loopback;
+
+import com.tonnfccard.CardActivationApi;
+import com.tonnfccard.smartcard.CAPDU;
+import com.tonnfccard.smartcard.CardChannelApduRunner;
+import com.tonnfccard.smartcard.RAPDU;
+import com.tonnfccard.utils.ByteArrayUtil;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static com.tonnfccard.NfcMockHelper.SW_SUCCESS;
+import static com.tonnfccard.TonWalletConstants.HMAC_SHA_SIG_SIZE;
+import static com.tonnfccard.TonWalletConstants.SAULT_LENGTH;
+import static com.tonnfccard.TonWalletConstants.STATE_MAP;
+import static com.tonnfccard.helpers.ResponsesConstants.ERROR_MSG_TRACE_LINE_INCORRECT;
+import static com.tonnfccard.helpers.ResponsesConstants.ERROR_MSG_TRACE_MISMATCH;
+import static com.tonnfccard.smartcard.TonWalletAppletApduCommands.GET_APP_INFO_APDU;
+import static com.tonnfccard.smartcard.TonWalletAppletApduCommands.GET_SAULT_APDU;
+import static com.tonnfccard.smartcard.TonWalletAppletApduCommands.SELECT_TON_WALLET_APPLET_APDU;
+import static org.junit.Assert.*;
+
+public class TraceReplayCardChannelTest {
+    private static final ByteArrayUtil BYTE_ARRAY_HELPER = ByteArrayUtil.getInstance();
+    private static final byte INS = (byte) 0xA1;
+
+    @Test
+    public void testSaveAndLoad() throws Exception {
+        ApduTrace trace = new ApduTrace();
+        trace.add(SELECT_TON_WALLET_APPLET_APDU.getBytes(), SW_SUCCESS, 1500);
+        trace.add(GET_APP_INFO_APDU.getBytes(), BYTE_ARRAY_HELPER.bConcat(new byte[]{0x17}, SW_SUCCESS));
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        trace.save(outputStream);
+        String text = "# recorded session\n\n" + new String(outputStream.toByteArray(), StandardCharsets.UTF_8);
+        ApduTrace loadedTrace = ApduTrace.load(new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8)));
+        assertEquals(loadedTrace.size(), 2);
+        for (int i = 0; i < trace.size(); i++) {
+            assertArrayEquals(loadedTrace.get(i).getCommand(), trace.get(i).getCommand());
+            assertArrayEquals(loadedTrace.get(i).getResponse(), trace.get(i).getResponse());
+            assertEquals(loadedTrace.get(i).getLatencyMicros(), trace.get(i).getLatencyMicros());
+        }
+        assertEquals(loadedTrace.get(1).getLatencyMicros(), ApduTrace.NO_LATENCY);
+    }
+
+    @Test
+    public void testLoadIncorrectLine() throws Exception {
+        for (String line : new String[]{"B0A4", "B0A4 9000 10 20", "B0A4 9000 abc"}) {
+            try {
+                ApduTrace.load(new ByteArrayInputStream(line.getBytes(StandardCharsets.UTF_8)));
+                fail();
+            } catch (IllegalArgumentException e) {
+                assertEquals(e.getMessage(), ERROR_MSG_TRACE_LINE_INCORRECT);
+            }
+        }
+    }
+
+    @Test
+    public void testReplayIgnoresMacOfSaultBasedCommand() throws Exception {
+        byte[] sault = new byte[SAULT_LENGTH];
+        Arrays.fill(sault, (byte) 0x55);
+        byte[] payload = new byte[]{0x01, 0x02, 0x03};
+        byte[] recordedMac = new byte[HMAC_SHA_SIG_SIZE];
+        byte[] otherMac = new byte[HMAC_SHA_SIG_SIZE];
+        Arrays.fill(otherMac, (byte) 0x33);
+        ApduTrace trace = new ApduTrace();
+        trace.add(SELECT_TON_WALLET_APPLET_APDU.getBytes(), SW_SUCCESS);
+        trace.add(GET_SAULT_APDU.getBytes(), BYTE_ARRAY_HELPER.bConcat(sault, SW_SUCCESS));
+        trace.add(createCommand(payload, sault, recordedMac).getBytes(), SW_SUCCESS);
+
+        TraceReplayApduRunner runner = new TraceReplayApduRunner(trace);
+        runner.sendAPDU(SELECT_TON_WALLET_APPLET_APDU);
+        RAPDU saultRapdu = runner.sendAPDU(GET_SAULT_APDU);
+        assertArrayEquals(saultRapdu.getData(), sault);
+        RAPDU rapdu = runner.sendAPDU(createCommand(payload, sault, otherMac));
+        assertArrayEquals(rapdu.getBytes(), SW_SUCCESS);
+        assertTrue(runner.getCardChannel().isExhausted());
+
+        runner.getCardChannel().rewind();
+        runner.sendAPDU(SELECT_TON_WALLET_APPLET_APDU);
+        runner.sendAPDU(GET_SAULT_APDU);
+        try {
+            runner.sendAPDU(createCommand(new byte[]{0x01, 0x02, 0x04}, sault, recordedMac));
+            fail();
+        } catch (Exception e) {
+            assertTrue(e.getMessage().contains(ERROR_MSG_TRACE_MISMATCH));
+        }
+    }
+
+    @Test
+    public void testMacIsNotIgnoredWithoutSault() throws Exception {
+        byte[] data = new byte[SAULT_LENGTH + HMAC_SHA_SIG_SIZE];
+        ApduTrace trace = new ApduTrace();
+        trace.add(new CAPDU((byte) 0xB0, INS, (byte) 0x00, (byte) 0x00, data).getBytes(), SW_SUCCESS);
+        TraceReplayApduRunner runner = new TraceReplayApduRunner(trace);
+        data[data.length - 1] = 0x01;
+        try {
+            runner.sendAPDU(new CAPDU((byte) 0xB0, INS, (byte) 0x00, (byte) 0x00, data));
+            fail();
+        } catch (Exception e) {
+            assertTrue(e.getMessage().contains(ERROR_MSG_TRACE_MISMATCH));
+        }
+    }
+
+    @Test
+    public void testSkippingIsOptIn() throws Exception {
+        ApduTrace trace = new ApduTrace();
+        trace.add(SELECT_TON_WALLET_APPLET_APDU.getBytes(), SW_SUCCESS);
+        trace.add(GET_APP_INFO_APDU.getBytes(), BYTE_ARRAY_HELPER.bConcat(new byte[]{0x17}, SW_SUCCESS));
+        trace.add(GET_SAULT_APDU.getBytes(), SW_SUCCESS);
+        TraceReplayApduRunner runner = new TraceReplayApduRunner(trace);
+        assertFalse(runner.getCardChannel().isSkippingAllowed());
+        try {
+            runner.sendAPDU(GET_SAULT_APDU);
+            fail();
+        } catch (Exception e) {
+            assertTrue(e.getMessage().contains(ERROR_MSG_TRACE_MISMATCH));
+        }
+        assertEquals(runner.getCardChannel().getPosition(), 0);
+        assertEquals(runner.getCardChannel().getSkippedExchanges(), 0);
+
+        runner.getCardChannel().setSkippingAllowed(true);
+        runner.sendAPDU(GET_SAULT_APDU);
+        assertTrue(runner.getCardChannel().isExhausted());
+        assertEquals(runner.getCardChannel().getSkippedExchanges(), 2);
+        runner.getCardChannel().rewind();
+        assertEquals(runner.getCardChannel().getSkippedExchanges(), 0);
+    }
+
+    @Test
+    public void testRecordAndReplayFlow() throws Exception {
+        byte state = STATE_MAP.keySet().iterator().next();
+        LoopbackCardChannel loopbackChannel = new LoopbackCardChannel(apdu -> {
+            if (Arrays.equals(apdu, GET_APP_INFO_APDU.getBytes())) {
+                return BYTE_ARRAY_HELPER.bConcat(new byte[]{state}, SW_SUCCESS);
+            }
+            return SW_SUCCESS;
+        });
+        RecordingCardChannel recordingChannel = new RecordingCardChannel(loopbackChannel);
+        String recordedResponse = new CardActivationApi(new CardChannelApduRunner(recordingChannel)).getTonAppletStateAndGetJson();
+        ApduTrace trace = recordingChannel.getTrace();
+        assertTrue(trace.size() > 0);
+        assertTrue(trace.get(0).getLatencyMicros() >= 0);
+
+        TraceReplayApduRunner replayRunner = new TraceReplayApduRunner(trace);
+        replayRunner.getCardChannel().setTimingSimulated(true);
+        String replayedResponse = new CardActivationApi(replayRunner).getTonAppletStateAndGetJson();
+        assertEquals(replayedResponse, recordedResponse);
+        assertTrue(replayRunner.getCardChannel().isExhausted());
+    }
+
+    private CAPDU createCommand(byte[] payload, byte[] sault, byte[] mac) {
+        return new CAPDU((byte) 0xB0, INS, (byte) 0x00, (byte) 0x00, BYTE_ARRAY_HELPER.bConcat(payload, sault, mac));
+    }
+}
@@ -1,10 +1,14 @@
 package com.tonnfccard.nfc;
 
+import android.app.Activity;
 import android.content.Context;
 import android.content.Intent;
 import android.nfc.NfcAdapter;
+import android.nfc.Tag;
+import android.nfc.TagLostException;
 import android.nfc.tech.IsoDep;
 import android.os.Build;
+import android.os.Bundle;
 
 import androidx.test.core.app.ApplicationProvider;
 
@@ -16,6 +20,7 @@ import com.tonnfccard.utils.ByteArrayUtil;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.MockedStatic;
 import org.mockito.Mockito;
 import org.robolectric.RobolectricTestRunner;
@@ -26,6 +31,8 @@ import java.io.IOException;
 import java.util.Arrays;
 import java.util.List;
 
+import static com.tonnfccard.NfcMockHelper.SN;
+import static com.tonnfccard.NfcMockHelper.SW_SUCCESS;
 import static com.tonnfccard.TonWalletConstants.BLOCKED_STATE;
 import static com.tonnfccard.TonWalletConstants.INSTALLED_STATE;
 import static com.tonnfccard.TonWalletConstants.PERSONALIZED_STATE;
@@ -38,9 +45,11 @@ import static com.tonnfccard.smartcard.TonWalletAppletApduCommands.GET_HASH_OF_E
 import static com.tonnfccard.smartcard.TonWalletAppletApduCommands.GET_PUB_KEY_WITH_DEFAULT_PATH_APDU;
 import static com.tonnfccard.smartcard.TonWalletAppletApduCommands.GET_RECOVERY_DATA_HASH_APDU;
 import static com.tonnfccard.smartcard.TonWalletAppletApduCommands.GET_SAULT_APDU;
+import static com.tonnfccard.smartcard.TonWalletAppletApduCommands.GET_SERIAL_NUMBER_APDU;
 import static com.tonnfccard.smartcard.TonWalletAppletApduCommands.SELECT_TON_WALLET_APPLET_APDU;
 import static org.junit.Assert.*;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
@@ -55,6 +64,8 @@ import static org.mockito.Mockito.when;
 @DoNotInstrument
 public class NfcApduRunnerTest {
 
+    private static final byte[] SERIAL_NUMBER_RESPONSE = ByteArrayUtil.getInstance().bConcat(ByteArrayUtil.getInstance().bytes(SN), SW_SUCCESS);
+
     private NfcApduRunner nfcApduRunner;
 
     private final NfcApduRunnerFunction<CAPDU> disconnect = capdu -> {nfcApduRunner.disconnectCard(); return new RAPDU("9000");}; // just a fake RAPDU for unification with other functions
@@ -328,6 +339,215 @@ public class NfcApduRunnerTest {
         }
     }
 
+    /** Test adapter is validated and timeout is set once per tag session **/
+
+    @Test
+    public void testConnectionIsValidatedOncePerSession() throws Exception {
+        NfcAdapter nfcAdapterMock = mock(NfcAdapter.class);
+        when(nfcAdapterMock.isEnabled())
+                .thenReturn(true);
+        nfcApduRunner.setNfcAdapter(nfcAdapterMock);
+        IsoDep tag = mock(IsoDep.class);
+        when(tag.isConnected()).thenReturn(false);
+        when(tag.transceive(SELECT_TON_WALLET_APPLET_APDU.getBytes())).thenReturn(new byte[]{(byte) 0x90, (byte) 0x00});
+        nfcApduRunner.setCardTag(tag);
+        for (int i = 0; i < 5; i++) {
+            nfcApduRunner.sendAPDU(SELECT_TON_WALLET_APPLET_APDU);
+        }
+        Mockito.verify(nfcAdapterMock, Mockito.times(1)).isEnabled();
+        Mockito.verify(tag, Mockito.times(1)).connect();
+        Mockito.verify(tag, Mockito.times(1)).setTimeout(TIME_OUT);
+        Mockito.verify(tag, Mockito.times(5)).transceive(any());
+
+        when(tag.transceive(SELECT_TON_WALLET_APPLET_APDU.getBytes())).thenThrow(new IOException()).thenReturn(new byte[]{(byte) 0x90, (byte) 0x00});
+        nfcApduRunner.setNumberOfRetries(2);
+        nfcApduRunner.setRetryTimeOut(1);
+        nfcApduRunner.sendAPDU(SELECT_TON_WALLET_APPLET_APDU);
+        Mockito.verify(nfcAdapterMock, Mockito.times(2)).isEnabled();
+        Mockito.verify(tag, Mockito.times(2)).connect();
+        Mockito.verify(tag, Mockito.times(2)).setTimeout(TIME_OUT);
+    }
+
+    /** Test transceive error is retried up to max attempts **/
+
+    @Test
+    public void testTransceiveErrorRetries() throws Exception {
+        NfcAdapter nfcAdapterMock = mock(NfcAdapter.class);
+        when(nfcAdapterMock.isEnabled())
+                .thenReturn(true);
+        nfcApduRunner.setNfcAdapter(nfcAdapterMock);
+        IsoDep tag = mock(IsoDep.class);
+        Mockito.doThrow(new IOException()).when(tag).transceive(any());
+        nfcApduRunner.setCardTag(tag);
+        nfcApduRunner.setNumberOfRetries(3);
+        nfcApduRunner.setRetryTimeOut(1);
+        try {
+            nfcApduRunner.transmitCommand(SELECT_TON_WALLET_APPLET_APDU);
+            fail();
+        } catch (Exception e) {
+            assertTrue(e.getMessage().contains(ResponsesConstants.ERROR_TRANSCEIVE));
+        }
+        Mockito.verify(tag, Mockito.times(3)).transceive(any());
+    }
+
+    /** Test operation waits for the card to be tapped again, checks its serial number and resumes from the failed APDU **/
+
+    @Test
+    public void testReTapRecovery() throws Exception {
+        IsoDep newTag = prepareReTapMock(SERIAL_NUMBER_RESPONSE);
+        RAPDU rapdu = sendSaultWithReTap(newTag);
+        assertArrayEquals(rapdu.getData(), new byte[]{0x01, 0x02});
+        Mockito.verify(newTag, Mockito.times(1)).transceive(SELECT_TON_WALLET_APPLET_APDU.getBytes());
+        Mockito.verify(newTag, Mockito.times(1)).transceive(GET_SERIAL_NUMBER_APDU.getBytes());
+        Mockito.verify(newTag, Mockito.times(1)).transceive(GET_SAULT_APDU.getBytes());
+    }
+
+    /** Test operation fails if another card (or card whose serial number can not be read) is tapped again **/
+
+    @Test
+    public void testReTapOfAnotherCard() throws Exception {
+        byte[] anotherSerialNumberResponse = SERIAL_NUMBER_RESPONSE.clone();
+        anotherSerialNumberResponse[0]++;
+        for (byte[] serialNumberResponse : new byte[][]{anotherSerialNumberResponse, new byte[]{(byte) 0x6D, (byte) 0x00}}) {
+            IsoDep newTag = prepareReTapMock(serialNumberResponse);
+            try {
+                sendSaultWithReTap(newTag);
+                fail();
+            } catch (Exception e) {
+                assertEquals(e.getMessage(), ResponsesConstants.ERROR_MSG_NFC_CARD_CHANGED);
+            }
+            Mockito.verify(newTag, Mockito.never()).transceive(GET_SAULT_APDU.getBytes());
+        }
+    }
+
+    /** Test card with unknown serial number and without UID is not trusted after re-tap **/
+
+    @Test
+    public void testReTapWithoutSerialNumber() throws Exception {
+        NfcAdapter nfcAdapterMock = mock(NfcAdapter.class);
+        when(nfcAdapterMock.isEnabled()).thenReturn(true);
+        nfcApduRunner.setNfcAdapter(nfcAdapterMock);
+        IsoDep lostTag = mock(IsoDep.class);
+        when(lostTag.transceive(GET_SAULT_APDU.getBytes())).thenThrow(new TagLostException());
+        IsoDep newTag = prepareReTapMock(SERIAL_NUMBER_RESPONSE);
+        nfcApduRunner.setCardTag(lostTag);
+        nfcApduRunner.setNumberOfRetries(3);
+        Thread reTap = startReTap(newTag);
+        try {
+            nfcApduRunner.sendAPDU(GET_SAULT_APDU);
+            fail();
+        } catch (Exception e) {
+            assertEquals(e.getMessage(), ResponsesConstants.ERROR_MSG_NFC_CARD_CHANGED);
+        }
+        reTap.join();
+        Mockito.verify(newTag, Mockito.never()).transceive(GET_SAULT_APDU.getBytes());
+    }
+
+    /** Test card with unknown serial number is recognized after re-tap by unique UID only, single size UID may be NUID or random **/
+
+    @Test
+    public void testReTapWithoutSerialNumberByUid() throws Exception {
+        byte[] singleSizeUid = new byte[]{0x01, 0x02, 0x03, 0x04};
+        byte[] doubleSizeUid = new byte[]{0x04, 0x01, 0x02, 0x03, 0x04, 0x05, 0x06};
+        for (byte[] uid : new byte[][]{singleSizeUid, doubleSizeUid}) {
+            NfcAdapter nfcAdapterMock = mock(NfcAdapter.class);
+            when(nfcAdapterMock.isEnabled()).thenReturn(true);
+            nfcApduRunner.setNfcAdapter(nfcAdapterMock);
+            IsoDep lostTag = prepareTagWithUid(uid);
+            when(lostTag.transceive(GET_SAULT_APDU.getBytes())).thenThrow(new TagLostException());
+            IsoDep newTag = prepareTagWithUid(uid);
+            when(newTag.transceive(GET_SAULT_APDU.getBytes())).thenReturn(new byte[]{0x01, 0x02, (byte) 0x90, (byte) 0x00});
+            nfcApduRunner.setCardTag(lostTag);
+            nfcApduRunner.setNumberOfRetries(3);
+            Thread reTap = startReTap(newTag);
+            try {
+                RAPDU rapdu = nfcApduRunner.sendAPDU(GET_SAULT_APDU);
+                assertSame(uid, doubleSizeUid);
+                assertArrayEquals(rapdu.getData(), new byte[]{0x01, 0x02});
+            } catch (Exception e) {
+                assertSame(uid, singleSizeUid);
+                assertEquals(e.getMessage(), ResponsesConstants.ERROR_MSG_NFC_CARD_CHANGED);
+                Mockito.verify(newTag, Mockito.never()).transceive(GET_SAULT_APDU.getBytes());
+            }
+            reTap.join();
+        }
+    }
+
+    private IsoDep prepareTagWithUid(byte[] uid) {
+        Tag tag = mock(Tag.class);
+        when(tag.getId()).thenReturn(uid);
+        IsoDep isoDep = mock(IsoDep.class);
+        when(isoDep.getTag()).thenReturn(tag);
+        return isoDep;
+    }
+
+    private IsoDep prepareReTapMock(byte[] serialNumberResponse) throws Exception {
+        IsoDep newTag = mock(IsoDep.class);
+        when(newTag.transceive(SELECT_TON_WALLET_APPLET_APDU.getBytes())).thenReturn(new byte[]{(byte) 0x90, (byte) 0x00});
+        when(newTag.transceive(GET_SERIAL_NUMBER_APDU.getBytes())).thenReturn(serialNumberResponse);
+        when(newTag.transceive(GET_SAULT_APDU.getBytes())).thenReturn(new byte[]{0x01, 0x02, (byte) 0x90, (byte) 0x00});
+        return newTag;
+    }
+
+    private RAPDU sendSaultWithReTap(IsoDep newTag) throws Exception {
+        NfcAdapter nfcAdapterMock = mock(NfcAdapter.class);
+        when(nfcAdapterMock.isEnabled()).thenReturn(true);
+        nfcApduRunner.setNfcAdapter(nfcAdapterMock);
+        IsoDep lostTag = mock(IsoDep.class);
+        when(lostTag.transceive(SELECT_TON_WALLET_APPLET_APDU.getBytes())).thenReturn(new byte[]{(byte) 0x90, (byte) 0x00});
+        when(lostTag.transceive(GET_SERIAL_NUMBER_APDU.getBytes())).thenReturn(SERIAL_NUMBER_RESPONSE);
+        when(lostTag.transceive(GET_SAULT_APDU.getBytes())).thenThrow(new TagLostException());
+        nfcApduRunner.setCardTag(lostTag);
+        nfcApduRunner.setNumberOfRetries(3);
+        nfcApduRunner.sendAPDU(SELECT_TON_WALLET_APPLET_APDU);
+        nfcApduRunner.sendAPDU(GET_SERIAL_NUMBER_APDU);
+        Thread reTap = startReTap(newTag);
+        try {
+            return nfcApduRunner.sendAPDU(GET_SAULT_APDU);
+        } finally {
+            reTap.join();
+            Mockito.verify(lostTag, Mockito.times(1)).transceive(GET_SAULT_APDU.getBytes());
+        }
+    }
+
+    private Thread startReTap(IsoDep newTag) {
+        Thread reTap = new Thread(() -> {
+            try {
+                Thread.sleep(200);
+            } catch (InterruptedException ignored) {
+            }
+            nfcApduRunner.setCardTag(newTag);
+        });
+        reTap.start();
+        return reTap;
+    }
+
+    /** Test reader mode is enabled for ISO-DEP tags with given presence check delay **/
+
+    @Test
+    public void testEnableReaderMode() throws Exception {
+        NfcAdapter nfcAdapterMock = mock(NfcAdapter.class);
+        when(nfcAdapterMock.isEnabled()).thenReturn(true);
+        nfcApduRunner.setNfcAdapter(nfcAdapterMock);
+        Activity activity = mock(Activity.class);
+        nfcApduRunner.enableReaderMode(activity, 2000, null);
+        int flags = NfcAdapter.FLAG_READER_NFC_A | NfcAdapter.FLAG_READER_NFC_B | NfcAdapter.FLAG_READER_SKIP_NDEF_CHECK;
+        ArgumentCaptor<Bundle> extras = ArgumentCaptor.forClass(Bundle.class);
+        Mockito.verify(nfcAdapterMock, Mockito.times(1)).enableReaderMode(eq(activity), any(), eq(flags), extras.capture());
+        assertEquals(extras.getValue().getInt(NfcAdapter.EXTRA_READER_PRESENCE_CHECK_DELAY), 2000);
+        nfcApduRunner.disableReaderMode(activity);
+        Mockito.verify(nfcAdapterMock, Mockito.times(1)).disableReaderMode(activity);
+        when(nfcAdapterMock.isEnabled()).thenReturn(false);
+        nfcApduRunner.disableReaderMode(activity);
+        Mockito.verify(nfcAdapterMock, Mockito.times(1)).disableReaderMode(activity);
+        try {
+            nfcApduRunner.enableReaderMode(null, null);
+            fail();
+        } catch (Exception e) {
+            assertEquals(e.getMessage(), ResponsesConstants.ERROR_MSG_NO_CONTEXT);
+        }
+    }
+
     /**Test bad SW**/
 
     @Test
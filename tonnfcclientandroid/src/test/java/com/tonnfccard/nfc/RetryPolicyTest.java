@@ -0,0 +1,132 @@
+package com.tonnfccard.nfc;
+
+import android.nfc.TagLostException;
+
+import com.tonnfccard.helpers.ResponsesConstants;
+import com.tonnfccard.smartcard.CancellationToken;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.tonnfccard.TonWalletConstants.DONE_MSG;
+import static org.junit.Assert.*;
+
+public class RetryPolicyTest {
+
+    private final RetryPolicy retryPolicy = new RetryPolicy();
+
+    @Test
+    public void testClassifyFatal() {
+        String[] fatalMessages = {ResponsesConstants.ERROR_MSG_NO_TAG, ResponsesConstants.ERROR_MSG_APDU_EMPTY,
+                ResponsesConstants.ERROR_MSG_NO_NFC_HARDWARE, ResponsesConstants.ERROR_MSG_NFC_DISABLED};
+        for (String msg : fatalMessages) {
+            RetryPolicy.FailureType failureType = retryPolicy.classify(new Exception(msg));
+            assertEquals(failureType, RetryPolicy.FailureType.FATAL);
+            assertFalse(retryPolicy.isRetriable(failureType));
+        }
+        assertEquals(retryPolicy.classify(new IllegalArgumentException(ResponsesConstants.ERROR_MSG_APDU_RESPONSE_TOO_LONG)), RetryPolicy.FailureType.FATAL);
+        assertEquals(retryPolicy.classify(new Exception("Some other failure")), RetryPolicy.FailureType.FATAL);
+        assertEquals(retryPolicy.classify(new IllegalStateException()), RetryPolicy.FailureType.FATAL);
+    }
+
+    @Test
+    public void testDeadlineIsDerivedFromTimeout() {
+        assertEquals(retryPolicy.getDeadline(), 0);
+        assertEquals(retryPolicy.getDeadline(TimeoutPolicy.FAST_READ_TIMEOUT), RetryPolicy.MIN_DEADLINE);
+        assertEquals(retryPolicy.getDeadline(TimeoutPolicy.CRYPTO_OPERATION_TIMEOUT), RetryPolicy.DEADLINE_TIMEOUT_MULTIPLIER * TimeoutPolicy.CRYPTO_OPERATION_TIMEOUT);
+        assertTrue(retryPolicy.getDeadline(TimeoutPolicy.MAX_TIMEOUT) > TimeoutPolicy.MAX_TIMEOUT);
+        retryPolicy.setDeadline(5000);
+        assertEquals(retryPolicy.getDeadline(TimeoutPolicy.CRYPTO_OPERATION_TIMEOUT), 5000);
+    }
+
+    @Test
+    public void testClassifyTransportFailures() {
+        assertEquals(retryPolicy.classify(new Exception(ResponsesConstants.ERROR_TRANSCEIVE, new TagLostException())), RetryPolicy.FailureType.TAG_LOST);
+        assertEquals(retryPolicy.classify(new Exception(ResponsesConstants.ERROR_MSG_NFC_CONNECT)), RetryPolicy.FailureType.TAG_LOST);
+        assertEquals(retryPolicy.classify(new Exception(ResponsesConstants.ERROR_TRANSCEIVE, new IOException())), RetryPolicy.FailureType.IO_TIMEOUT);
+        assertEquals(retryPolicy.classify(new Exception(ResponsesConstants.ERROR_TRANSCEIVE)), RetryPolicy.FailureType.IO_TIMEOUT);
+        assertEquals(retryPolicy.classify(new Exception(ResponsesConstants.ERROR_BAD_RESPONSE)), RetryPolicy.FailureType.BAD_RESPONSE);
+        assertTrue(retryPolicy.isRetriable(RetryPolicy.FailureType.TAG_LOST));
+        assertTrue(retryPolicy.isRetriable(RetryPolicy.FailureType.IO_TIMEOUT));
+        assertTrue(retryPolicy.isRetriable(RetryPolicy.FailureType.BAD_RESPONSE));
+    }
+
+    @Test
+    public void testBackoffBounds() {
+        retryPolicy.setInitialBackoff(20);
+        retryPolicy.setMaxBackoff(500);
+        for (int attempt = 1; attempt < 20; attempt++) {
+            long expected = (long) Math.min(500, 20 * Math.pow(2, attempt - 1));
+            for (int i = 0; i < 50; i++) {
+                long backoff = retryPolicy.getBackoff(attempt);
+                assertTrue(backoff >= expected / 2);
+                assertTrue(backoff <= expected);
+            }
+        }
+    }
+
+    @Test
+    public void testZeroBackoff() {
+        retryPolicy.setMaxBackoff(0);
+        assertEquals(retryPolicy.getBackoff(1), 0);
+        assertEquals(retryPolicy.getBackoff(10), 0);
+    }
+
+    @Test
+    public void testExecuteKeepsCauseOfLastFailure() throws Exception {
+        retryPolicy.setMaxAttempts(3);
+        retryPolicy.setMaxBackoff(0);
+        AtomicInteger attempts = new AtomicInteger();
+        Exception failure = new Exception(ResponsesConstants.ERROR_TRANSCEIVE, new IOException());
+        try {
+            retryPolicy.execute(() -> {
+                attempts.incrementAndGet();
+                throw failure;
+            }, new CancellationToken());
+            fail();
+        } catch (Exception e) {
+            assertEquals(e.getMessage(), ResponsesConstants.ERROR_TRANSCEIVE);
+            assertSame(e.getCause(), failure);
+        }
+        assertEquals(attempts.get(), 3);
+
+        attempts.set(0);
+        try {
+            retryPolicy.execute(() -> {
+                attempts.incrementAndGet();
+                throw new Exception(ResponsesConstants.ERROR_MSG_NO_TAG);
+            }, new CancellationToken());
+            fail();
+        } catch (Exception e) {
+            assertEquals(e.getMessage(), ResponsesConstants.ERROR_MSG_NO_TAG);
+        }
+        assertEquals(attempts.get(), 1);
+    }
+
+    @Test
+    public void testExecuteRecoversWithoutBackoff() throws Exception {
+        retryPolicy.setMaxAttempts(2);
+        retryPolicy.setInitialBackoff(60000);
+        retryPolicy.setMaxBackoff(60000);
+        AtomicInteger recoveries = new AtomicInteger();
+        String result = retryPolicy.execute(new RetryPolicy.Attempt<String>() {
+            private int attempt = 0;
+
+            @Override
+            public String run() throws Exception {
+                if (attempt++ == 0) throw new Exception(ResponsesConstants.ERROR_TRANSCEIVE, new TagLostException());
+                return DONE_MSG;
+            }
+
+            @Override
+            public boolean recover(Exception e, long deadline) {
+                recoveries.incrementAndGet();
+                return true;
+            }
+        }, new CancellationToken());
+        assertEquals(result, DONE_MSG);
+        assertEquals(recoveries.get(), 1);
+    }
+}
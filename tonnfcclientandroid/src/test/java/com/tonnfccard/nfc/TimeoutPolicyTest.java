@@ -0,0 +1,102 @@
+package com.tonnfccard.nfc;
+
+import com.tonnfccard.smartcard.CAPDU;
+
+import org.junit.Test;
+
+import static com.tonnfccard.nfc.NfcApduRunner.TIME_OUT;
+import static com.tonnfccard.smartcard.CoinManagerApduCommands.GET_APPLET_LIST_APDU;
+import static com.tonnfccard.smartcard.CoinManagerApduCommands.GET_SE_VERSION_APDU;
+import static com.tonnfccard.smartcard.CoinManagerApduCommands.RESET_WALLET_APDU;
+import static com.tonnfccard.smartcard.TonWalletAppletApduCommands.GET_APP_INFO_APDU;
+import static com.tonnfccard.smartcard.TonWalletAppletApduCommands.GET_SAULT_APDU;
+import static com.tonnfccard.smartcard.TonWalletAppletApduCommands.GET_SERIAL_NUMBER_APDU;
+import static com.tonnfccard.smartcard.TonWalletAppletApduCommands.SELECT_TON_WALLET_APPLET_APDU;
+import static com.tonnfccard.smartcard.TonWalletAppletApduCommands.INS_SIGN_SHORT_MESSAGE_WITH_DEFAULT_PATH;
+import static com.tonnfccard.smartcard.TonWalletAppletApduCommands.WALLET_APPLET_CLA;
+import static org.junit.Assert.*;
+
+public class TimeoutPolicyTest {
+
+    @Test
+    public void testDefaultTimeoutBeforeLearning() {
+        TimeoutPolicy timeoutPolicy = new TimeoutPolicy();
+        assertEquals(timeoutPolicy.getTimeout(GET_APP_INFO_APDU), TimeoutPolicy.FAST_READ_TIMEOUT);
+        for (int i = 0; i < TimeoutPolicy.MIN_SAMPLES - 1; i++) {
+            timeoutPolicy.onSuccess(GET_APP_INFO_APDU, 10);
+        }
+        assertEquals(timeoutPolicy.getTimeout(GET_APP_INFO_APDU), TimeoutPolicy.FAST_READ_TIMEOUT);
+        timeoutPolicy.setDefaultTimeout(GET_SAULT_APDU, 1000);
+        assertEquals(timeoutPolicy.getTimeout(GET_SAULT_APDU), 1000);
+    }
+
+    @Test
+    public void testLimitByRemainingTime() {
+        assertEquals(TimeoutPolicy.limitByRemainingTime(TIME_OUT, Long.MAX_VALUE), TIME_OUT);
+        assertEquals(TimeoutPolicy.limitByRemainingTime(TimeoutPolicy.FAST_READ_TIMEOUT, 8500), TimeoutPolicy.FAST_READ_TIMEOUT);
+        // Timeout stays the same while deadline comes closer within one step
+        for (long remainingTime = 8999; remainingTime >= 8000; remainingTime -= 37) {
+            assertEquals(TimeoutPolicy.limitByRemainingTime(TimeoutPolicy.CRYPTO_OPERATION_TIMEOUT, remainingTime), 8000);
+        }
+        assertEquals(TimeoutPolicy.limitByRemainingTime(TimeoutPolicy.CRYPTO_OPERATION_TIMEOUT, 999), TimeoutPolicy.MIN_TIMEOUT);
+        assertEquals(TimeoutPolicy.limitByRemainingTime(TimeoutPolicy.CRYPTO_OPERATION_TIMEOUT, 0), TimeoutPolicy.MIN_TIMEOUT);
+    }
+
+    @Test
+    public void testDefaultTimeoutsOfCommandClasses() {
+        TimeoutPolicy timeoutPolicy = new TimeoutPolicy();
+        assertEquals(timeoutPolicy.getTimeout(SELECT_TON_WALLET_APPLET_APDU), TimeoutPolicy.FAST_READ_TIMEOUT);
+        assertEquals(timeoutPolicy.getTimeout(GET_SERIAL_NUMBER_APDU), TimeoutPolicy.FAST_READ_TIMEOUT);
+        assertEquals(timeoutPolicy.getTimeout(GET_SERIAL_NUMBER_APDU.withLogicalChannel(1)), TimeoutPolicy.FAST_READ_TIMEOUT);
+        assertEquals(timeoutPolicy.getTimeout(GET_SE_VERSION_APDU), TimeoutPolicy.FAST_READ_TIMEOUT);
+        assertEquals(timeoutPolicy.getTimeout(new CAPDU(WALLET_APPLET_CLA, INS_SIGN_SHORT_MESSAGE_WITH_DEFAULT_PATH, (byte) 0x00, (byte) 0x00, new byte[1], (byte) 0x40)), TimeoutPolicy.CRYPTO_OPERATION_TIMEOUT);
+        assertEquals(timeoutPolicy.getTimeout(RESET_WALLET_APDU), TIME_OUT);
+        assertEquals(timeoutPolicy.getTimeout(new CAPDU(WALLET_APPLET_CLA, (byte) 0x01, (byte) 0x00, (byte) 0x00)), TIME_OUT);
+    }
+
+    @Test
+    public void testLearnedTimeout() {
+        TimeoutPolicy timeoutPolicy = new TimeoutPolicy();
+        for (int i = 0; i < TimeoutPolicy.MIN_SAMPLES; i++) {
+            timeoutPolicy.onSuccess(GET_APP_INFO_APDU, 10);
+        }
+        assertEquals(timeoutPolicy.getTimeout(GET_APP_INFO_APDU), TimeoutPolicy.MIN_TIMEOUT);
+        assertEquals(timeoutPolicy.getTimeout(GET_SAULT_APDU), TimeoutPolicy.FAST_READ_TIMEOUT);
+
+        for (int i = 0; i < 50; i++) {
+            timeoutPolicy.onSuccess(GET_SAULT_APDU, 1000);
+        }
+        int timeout = timeoutPolicy.getTimeout(GET_SAULT_APDU);
+        assertTrue(timeout >= 2000 && timeout < 4000);
+
+        timeoutPolicy.setAdaptive(false);
+        assertEquals(timeoutPolicy.getTimeout(GET_SAULT_APDU), TimeoutPolicy.FAST_READ_TIMEOUT);
+    }
+
+    @Test
+    public void testBackoffAfterFailure() {
+        TimeoutPolicy timeoutPolicy = new TimeoutPolicy();
+        for (int i = 0; i < 50; i++) {
+            timeoutPolicy.onSuccess(GET_SAULT_APDU, 1000);
+        }
+        int timeout = timeoutPolicy.getTimeout(GET_SAULT_APDU);
+        timeoutPolicy.onFailure(GET_SAULT_APDU);
+        assertTrue(timeoutPolicy.getTimeout(GET_SAULT_APDU) >= 2 * timeout - 1);
+        for (int i = 0; i < 20; i++) {
+            timeoutPolicy.onFailure(GET_SAULT_APDU);
+        }
+        assertEquals(timeoutPolicy.getTimeout(GET_SAULT_APDU), TIME_OUT);
+        timeoutPolicy.onSuccess(GET_SAULT_APDU, 1000);
+        assertTrue(timeoutPolicy.getTimeout(GET_SAULT_APDU) < 4000);
+    }
+
+    @Test
+    public void testCommandsWithSameInsAreSeparated() {
+        TimeoutPolicy timeoutPolicy = new TimeoutPolicy();
+        for (int i = 0; i < TimeoutPolicy.MIN_SAMPLES; i++) {
+            timeoutPolicy.onSuccess(GET_SE_VERSION_APDU, 10);
+        }
+        assertEquals(timeoutPolicy.getTimeout(GET_SE_VERSION_APDU), TimeoutPolicy.MIN_TIMEOUT);
+        assertEquals(timeoutPolicy.getTimeout(GET_APPLET_LIST_APDU), TimeoutPolicy.FAST_READ_TIMEOUT);
+    }
+}
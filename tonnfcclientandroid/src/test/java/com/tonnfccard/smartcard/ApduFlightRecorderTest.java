@@ -0,0 +1,89 @@
+package com.tonnfccard.smartcard;
+
+import com.tonnfccard.loopback.LoopbackCardChannel;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+import static com.tonnfccard.smartcard.ApduFlightRecorder.*;
+import static com.tonnfccard.smartcard.TonWalletAppletApduCommands.GET_SAULT_APDU;
+import static org.junit.Assert.*;
+
+public class ApduFlightRecorderTest {
+    private static final int FILE_HEADER_SIZE = MAGIC.length + 12;
+
+    private ByteBuffer dump(ApduFlightRecorder recorder) throws Exception {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        recorder.dump(outputStream);
+        ByteBuffer result = ByteBuffer.wrap(outputStream.toByteArray());
+        byte[] magic = new byte[MAGIC.length];
+        result.get(magic);
+        assertArrayEquals(magic, MAGIC);
+        assertEquals(result.getInt(), VERSION);
+        assertEquals(result.getInt(), RECORD_SIZE);
+        int count = result.getInt();
+        assertEquals(result.remaining(), count * RECORD_SIZE);
+        return result;
+    }
+
+    @Test
+    public void testRecords() throws Exception {
+        ApduFlightRecorder recorder = new ApduFlightRecorder(4);
+        CAPDU capdu = new CAPDU((byte) 0xB0, (byte) 0xA1, (byte) 0x00, (byte) 0x00, new byte[]{0x01, 0x02}, (byte) 0x20);
+        recorder.record(capdu, new RAPDU(new byte[]{0x11, 0x22, 0x33, (byte) 0x90, 0x00}), 5000);
+        recorder.recordFailure(GET_SAULT_APDU, 1000);
+        ByteBuffer records = dump(recorder);
+        assertEquals(records.getInt(MAGIC.length + 8), 2);
+        int first = FILE_HEADER_SIZE;
+        assertEquals(records.getLong(first + STAMP_OFFSET), 1);
+        assertEquals(records.getInt(first + LATENCY_OFFSET), 5);
+        assertEquals(records.getInt(first + LC_OFFSET), 2);
+        assertEquals(records.getInt(first + LE_OFFSET), 0x20);
+        assertEquals(records.getInt(first + RESPONSE_LENGTH_OFFSET), 3);
+        assertEquals(records.getShort(first + SW_OFFSET), (short) 0x9000);
+        assertEquals(records.get(first + HEADER_OFFSET + 1), (byte) 0xA1);
+        assertEquals(records.get(first + TYPE_OFFSET), TYPE_RESPONSE);
+        // payload is not recorded by default
+        assertEquals(records.get(first + COMMAND_PAYLOAD_LENGTH_OFFSET), 0);
+        assertEquals(records.get(first + COMMAND_PAYLOAD_OFFSET), 0);
+        int second = first + RECORD_SIZE;
+        assertEquals(records.get(second + TYPE_OFFSET), TYPE_TRANSPORT_FAILURE);
+        assertEquals(records.getShort(second + SW_OFFSET), 0);
+    }
+
+    @Test
+    public void testPayloadPrefix() throws Exception {
+        ApduFlightRecorder recorder = new ApduFlightRecorder(4);
+        recorder.setPayloadPolicy(PayloadPolicy.PREFIX);
+        byte[] data = new byte[40];
+        for (int i = 0; i < data.length; i++) data[i] = (byte) i;
+        recorder.record(CAPDU.createExtended((byte) 0xB0, (byte) 0xA1, (byte) 0x00, (byte) 0x00, data, 0), new RAPDU(new byte[]{0x55, (byte) 0x90, 0x00}), 0);
+        ByteBuffer records = dump(recorder);
+        assertEquals(records.get(FILE_HEADER_SIZE + COMMAND_PAYLOAD_LENGTH_OFFSET), PAYLOAD_PREFIX_SIZE);
+        for (int i = 0; i < PAYLOAD_PREFIX_SIZE; i++) {
+            assertEquals(records.get(FILE_HEADER_SIZE + COMMAND_PAYLOAD_OFFSET + i), (byte) i);
+        }
+        assertEquals(records.get(FILE_HEADER_SIZE + RESPONSE_PAYLOAD_LENGTH_OFFSET), 1);
+        assertEquals(records.get(FILE_HEADER_SIZE + RESPONSE_PAYLOAD_OFFSET), 0x55);
+    }
+
+    @Test
+    public void testRingBufferKeepsLastRecords() throws Exception {
+        ApduFlightRecorder recorder = new ApduFlightRecorder(3);
+        CardChannelApduRunner runner = new CardChannelApduRunner(new LoopbackCardChannel(apdu -> new byte[]{apdu[5], (byte) 0x90, 0x00}));
+        runner.setFlightRecorder(recorder);
+        for (int i = 0; i < 5; i++) {
+            runner.sendAPDU(new CAPDU((byte) 0xB0, (byte) 0xA1, (byte) 0x00, (byte) 0x00, new byte[]{(byte) i}));
+        }
+        assertEquals(recorder.getRecordCount(), 5);
+        ByteBuffer records = dump(recorder);
+        assertEquals(records.getInt(MAGIC.length + 8), 3);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(records.getLong(FILE_HEADER_SIZE + i * RECORD_SIZE + STAMP_OFFSET), i + 3);
+        }
+        recorder.clear();
+        assertEquals(dump(recorder).getInt(MAGIC.length + 8), 0);
+    }
+}
@@ -0,0 +1,79 @@
+package com.tonnfccard.smartcard;
+
+import com.tonnfccard.helpers.HmacHelper;
+import com.tonnfccard.helpers.InMemoryKeyProvider;
+import com.tonnfccard.loopback.LoopbackCardChannel;
+import com.tonnfccard.utils.ByteArrayUtil;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static com.tonnfccard.NfcMockHelper.SW_SUCCESS;
+import static com.tonnfccard.TonWalletConstants.EMPTY_SERIAL_NUMBER;
+import static com.tonnfccard.TonWalletConstants.SAULT_LENGTH;
+import static com.tonnfccard.TonWalletConstants.SHA_HASH_SIZE;
+import static com.tonnfccard.helpers.ResponsesConstants.ERROR_MSG_APDU_RUNNER_ID_IS_NULL;
+import static com.tonnfccard.smartcard.TonWalletAppletApduCommands.getNumberOfKeysAPDU;
+import static org.junit.Assert.*;
+
+public class ApduRunnerRegistryTest {
+    private static final ApduRunnerRegistry REGISTRY = ApduRunnerRegistry.getInstance();
+    private static final String SERIAL_NUMBER_1 = "504394802433901126813236";
+    private static final String SERIAL_NUMBER_2 = "504394802433901126813237";
+
+    @After
+    public void cleanUp() {
+        for (String id : REGISTRY.getIds()) {
+            REGISTRY.unregister(id);
+        }
+    }
+
+    @Test
+    public void testRunnersHaveOwnHmacContext() {
+        ApduRunner runner1 = REGISTRY.register("reader1", new LoopbackCardChannel(apdu -> SW_SUCCESS));
+        ApduRunner runner2 = REGISTRY.register("reader2", new LoopbackCardChannel(apdu -> SW_SUCCESS));
+        assertSame(REGISTRY.get("reader1"), runner1);
+        assertSame(REGISTRY.get("reader2"), runner2);
+        assertEquals(REGISTRY.getIds().size(), 2);
+        assertNotNull(runner1.getHmacHelper());
+        assertNotNull(runner2.getHmacHelper());
+        assertNotSame(runner1.getHmacHelper(), runner2.getHmacHelper());
+        assertNotSame(runner1.getHmacHelper(), HmacHelper.getInstance());
+        assertEquals(runner1.getHmacHelper().getCurrentSerialNumber(), EMPTY_SERIAL_NUMBER);
+        runner1.getHmacHelper().setCurrentSerialNumber("111");
+        assertEquals(runner2.getHmacHelper().getCurrentSerialNumber(), EMPTY_SERIAL_NUMBER);
+        assertSame(REGISTRY.unregister("reader1"), runner1);
+        assertNull(REGISTRY.get("reader1"));
+    }
+
+    @Test
+    public void testApduIsSignedByGivenHmacContext() throws Exception {
+        InMemoryKeyProvider keyProvider = new InMemoryKeyProvider();
+        keyProvider.setKey(SERIAL_NUMBER_1, new byte[SHA_HASH_SIZE]);
+        byte[] key2 = new byte[SHA_HASH_SIZE];
+        key2[0] = 1;
+        keyProvider.setKey(SERIAL_NUMBER_2, key2);
+        HmacHelper hmacHelper1 = HmacHelper.newInstance(keyProvider);
+        hmacHelper1.setCurrentSerialNumber(SERIAL_NUMBER_1);
+        HmacHelper hmacHelper2 = HmacHelper.newInstance(keyProvider);
+        hmacHelper2.setCurrentSerialNumber(SERIAL_NUMBER_2);
+        byte[] sault = new byte[SAULT_LENGTH];
+        CAPDU apdu1 = getNumberOfKeysAPDU(sault, hmacHelper1);
+        CAPDU apdu2 = getNumberOfKeysAPDU(sault, hmacHelper2);
+        assertArrayEquals(apdu1.getData(), ByteArrayUtil.getInstance().bConcat(sault, hmacHelper1.computeMac(sault)));
+        assertArrayEquals(apdu2.getData(), ByteArrayUtil.getInstance().bConcat(sault, hmacHelper2.computeMac(sault)));
+        assertFalse(Arrays.equals(apdu1.getData(), apdu2.getData()));
+    }
+
+    @Test
+    public void testNullId() {
+        try {
+            REGISTRY.get(null);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals(e.getMessage(), ERROR_MSG_APDU_RUNNER_ID_IS_NULL);
+        }
+    }
+}
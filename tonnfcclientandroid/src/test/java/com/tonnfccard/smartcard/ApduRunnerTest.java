@@ -0,0 +1,525 @@
+package com.tonnfccard.smartcard;
+
+import com.tonnfccard.CardActivationApi;
+import com.tonnfccard.loopback.LoopbackCardChannel;
+import com.tonnfccard.utils.ByteArrayUtil;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static com.tonnfccard.NfcMockHelper.SW_SUCCESS;
+import static com.tonnfccard.helpers.ResponsesConstants.ERROR_MSG_APDU_EMPTY;
+import static com.tonnfccard.helpers.ResponsesConstants.ERROR_MSG_APDU_LIST_EMPTY;
+import static com.tonnfccard.helpers.ResponsesConstants.ERROR_MSG_PREFETCH_CARD_SESSION_IS_OVER;
+import static com.tonnfccard.helpers.ResponsesConstants.ERROR_MSG_PREFETCH_WAIT_TIMEOUT_INCORRECT;
+import static com.tonnfccard.smartcard.CoinManagerApduCommands.GET_ROOT_KEY_STATUS_APDU;
+import static com.tonnfccard.TonWalletConstants.PERSONALIZED_STATE;
+import static com.tonnfccard.smartcard.TonWalletAppletApduCommands.GET_APP_INFO_APDU;
+import static com.tonnfccard.smartcard.TonWalletAppletApduCommands.GET_SAULT_APDU;
+import static org.junit.Assert.*;
+
+public class ApduRunnerTest {
+    private static final ByteArrayUtil BYTE_ARRAY_HELPER = ByteArrayUtil.getInstance();
+    private final Random random = new Random();
+
+    /** Test 61xx: runner sends GET RESPONSE until all data is collected **/
+
+    @Test
+    public void testGetResponse() throws Exception {
+        byte[] fullData = new byte[600];
+        random.nextBytes(fullData);
+        List<byte[]> sentApdus = new ArrayList<>();
+        int[] offset = {0};
+        LoopbackCardChannel channel = new LoopbackCardChannel(apdu -> {
+            sentApdus.add(apdu);
+            int portion = Math.min(200, fullData.length - offset[0]);
+            byte[] data = BYTE_ARRAY_HELPER.bSub(fullData, offset[0], portion);
+            offset[0] += portion;
+            int remaining = fullData.length - offset[0];
+            if (remaining == 0) return BYTE_ARRAY_HELPER.bConcat(data, SW_SUCCESS);
+            return BYTE_ARRAY_HELPER.bConcat(data, new byte[]{0x61, (byte) Math.min(remaining, 200)});
+        });
+        RAPDU rapdu = new CardChannelApduRunner(channel).sendAPDU(GET_SAULT_APDU);
+        assertArrayEquals(rapdu.getData(), fullData);
+        assertTrue(RAPDU.isSuccess(rapdu));
+        assertEquals(sentApdus.size(), 3);
+        assertArrayEquals(sentApdus.get(0), GET_SAULT_APDU.getBytes());
+        assertArrayEquals(sentApdus.get(1), new byte[]{0x00, (byte) 0xC0, 0x00, 0x00, (byte) 200});
+        assertArrayEquals(sentApdus.get(2), new byte[]{0x00, (byte) 0xC0, 0x00, 0x00, (byte) 200});
+    }
+
+    /** Test 6Cxx: runner resends command with corrected Le **/
+
+    @Test
+    public void testWrongLe() throws Exception {
+        byte[] data = new byte[0x20];
+        random.nextBytes(data);
+        CAPDU capdu = new CAPDU((byte) 0xB0, (byte) 0xA1, (byte) 0x00, (byte) 0x00, new byte[]{0x01, 0x02}, (byte) 0x00);
+        List<byte[]> sentApdus = new ArrayList<>();
+        LoopbackCardChannel channel = new LoopbackCardChannel(apdu -> {
+            sentApdus.add(apdu);
+            if (apdu[apdu.length - 1] != 0x20) return new byte[]{0x6C, 0x20};
+            return BYTE_ARRAY_HELPER.bConcat(data, SW_SUCCESS);
+        });
+        RAPDU rapdu = new CardChannelApduRunner(channel).sendAPDU(capdu);
+        assertArrayEquals(rapdu.getData(), data);
+        assertEquals(sentApdus.size(), 2);
+        assertArrayEquals(sentApdus.get(1), new CAPDU((byte) 0xB0, (byte) 0xA1, (byte) 0x00, (byte) 0x00, new byte[]{0x01, 0x02}, (byte) 0x20).getBytes());
+    }
+
+    /** Test error SW after GET RESPONSE is reported for original command **/
+
+    @Test
+    public void testGetResponseError() {
+        LoopbackCardChannel channel = new LoopbackCardChannel(apdu -> {
+            if (apdu[1] == (byte) 0xC0) return new byte[]{0x6F, 0x00};
+            return new byte[]{0x01, 0x61, 0x10};
+        });
+        try {
+            new CardChannelApduRunner(channel).sendAPDU(GET_SAULT_APDU);
+            fail();
+        } catch (Exception e) {
+            assertTrue(e.getMessage().contains("6F00"));
+        }
+    }
+
+    /** Test logical channels: each applet is selected once on its own channel, CLA channel bits are set **/
+
+    @Test
+    public void testLogicalChannels() throws Exception {
+        List<byte[]> sentApdus = new ArrayList<>();
+        byte[] nextChannel = {1};
+        LoopbackCardChannel channel = new LoopbackCardChannel(apdu -> {
+            sentApdus.add(apdu);
+            if (apdu[1] == 0x70) return new byte[]{nextChannel[0]++, (byte) 0x90, 0x00};
+            if (apdu[1] == (byte) 0xC1) return new byte[]{PERSONALIZED_STATE, (byte) 0x90, 0x00};
+            return SW_SUCCESS;
+        });
+        CardChannelApduRunner runner = new CardChannelApduRunner(channel);
+        runner.setLogicalChannelsEnabled(true);
+        runner.sendTonWalletAppletAPDU(GET_SAULT_APDU);
+        runner.sendCoinManagerAppletAPDU(GET_ROOT_KEY_STATUS_APDU);
+        runner.sendTonWalletAppletAPDU(GET_SAULT_APDU);
+        // Reconnect to the same card after transport failure keeps its channels
+        channel.close();
+        runner.sendCoinManagerAppletAPDU(GET_ROOT_KEY_STATUS_APDU);
+        int selectCount = 0;
+        int manageChannelCount = 0;
+        for (byte[] apdu : sentApdus) {
+            if (apdu[1] == (byte) 0xA4) selectCount++;
+            if (apdu[1] == 0x70) manageChannelCount++;
+            if (apdu[0] == (byte) 0xB0 || apdu[0] == (byte) 0x80) fail();
+        }
+        assertEquals(selectCount, 2);
+        assertEquals(manageChannelCount, 2);
+        assertEquals(sentApdus.get(sentApdus.size() - 1)[0], (byte) 0x82);
+        assertEquals(sentApdus.get(sentApdus.size() - 3)[0], (byte) 0xB1);
+        runner.disconnectCard();
+        runner.sendTonWalletAppletAPDU(GET_SAULT_APDU);
+        assertEquals(sentApdus.get(sentApdus.size() - 4)[1], 0x70);
+    }
+
+    /** Test channel is closed if applet can not be selected on it, so that retries do not use up channels of the card **/
+
+    @Test
+    public void testLogicalChannelIsClosedIfSelectFails() throws Exception {
+        List<byte[]> sentApdus = new ArrayList<>();
+        boolean[] openChannels = new boolean[4];
+        LoopbackCardChannel channel = new LoopbackCardChannel(apdu -> {
+            sentApdus.add(apdu);
+            if (apdu[1] == 0x70 && apdu[2] == 0x00) {
+                for (byte i = 1; i < openChannels.length; i++) {
+                    if (!openChannels[i]) {
+                        openChannels[i] = true;
+                        return new byte[]{i, (byte) 0x90, 0x00};
+                    }
+                }
+                return new byte[]{0x6A, (byte) 0x81};
+            }
+            if (apdu[1] == 0x70) {
+                openChannels[apdu[3]] = false;
+                return SW_SUCCESS;
+            }
+            if (apdu[1] == (byte) 0xA4) return new byte[]{0x6A, (byte) 0x82};
+            return SW_SUCCESS;
+        });
+        CardChannelApduRunner runner = new CardChannelApduRunner(channel);
+        runner.setLogicalChannelsEnabled(true);
+        ApduFlightRecorder recorder = new ApduFlightRecorder(64);
+        runner.setFlightRecorder(recorder);
+        for (int i = 0; i < 5; i++) {
+            try {
+                runner.sendCoinManagerAppletAPDU(GET_ROOT_KEY_STATUS_APDU);
+                fail();
+            } catch (Exception e) {
+                assertTrue(e.getMessage().contains("6A82"));
+            }
+        }
+        for (boolean open : openChannels) assertFalse(open);
+        // Each attempt opens channel 1, selects on it and closes it, logical channels stay available
+        assertEquals(sentApdus.size(), 15);
+        for (int i = 0; i < 5; i++) {
+            assertArrayEquals(sentApdus.get(3 * i), new byte[]{0x00, 0x70, 0x00, 0x00, 0x01});
+            assertEquals(sentApdus.get(3 * i + 1)[0], (byte) 0x01);
+            assertArrayEquals(sentApdus.get(3 * i + 2), new byte[]{0x00, 0x70, (byte) 0x80, 0x01});
+        }
+        assertEquals(recorder.getRecordCount(), 15);
+    }
+
+    /** Test card without logical channels: runner falls back to SELECT on basic channel **/
+
+    @Test
+    public void testLogicalChannelsNotSupported() throws Exception {
+        List<byte[]> sentApdus = new ArrayList<>();
+        LoopbackCardChannel channel = new LoopbackCardChannel(apdu -> {
+            sentApdus.add(apdu);
+            if (apdu[1] == 0x70) return new byte[]{0x6D, 0x00};
+            return SW_SUCCESS;
+        });
+        CardChannelApduRunner runner = new CardChannelApduRunner(channel);
+        runner.setLogicalChannelsEnabled(true);
+        runner.sendCoinManagerAppletAPDU(GET_ROOT_KEY_STATUS_APDU);
+        runner.sendCoinManagerAppletAPDU(GET_ROOT_KEY_STATUS_APDU);
+        assertEquals(sentApdus.size(), 5);
+        assertArrayEquals(sentApdus.get(3), CoinManagerApduCommands.SELECT_COIN_MANAGER_APDU.getBytes());
+        assertArrayEquals(sentApdus.get(4), GET_ROOT_KEY_STATUS_APDU.getBytes());
+    }
+
+    /** Test batch: all responses are collected, batch stops at the first failed APDU **/
+
+    @Test
+    public void testBatch() throws Exception {
+        List<CAPDU> batch = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            batch.add(new CAPDU((byte) 0xB0, (byte) 0xD1, (byte) 0x00, (byte) 0x00, new byte[]{(byte) i}));
+        }
+        List<byte[]> sentApdus = new ArrayList<>();
+        LoopbackCardChannel channel = new LoopbackCardChannel(apdu -> {
+            sentApdus.add(apdu);
+            return apdu[5] == 3 ? new byte[]{0x6F, 0x00} : new byte[]{apdu[5], (byte) 0x90, 0x00};
+        });
+        CardChannelApduRunner runner = new CardChannelApduRunner(channel);
+        ApduBatchResult result = runner.sendAPDUBatch(batch.subList(0, 3));
+        assertTrue(result.isSuccess());
+        assertEquals(result.getFailedIndex(), ApduBatchResult.NO_FAILURE);
+        for (int i = 0; i < 3; i++) {
+            assertArrayEquals(result.getResponses()[i].getData(), new byte[]{(byte) i});
+        }
+        sentApdus.clear();
+        result = runner.sendAPDUBatch(batch);
+        assertFalse(result.isSuccess());
+        assertEquals(result.getFailedIndex(), 3);
+        assertEquals(sentApdus.size(), 4);
+        assertNull(result.getResponses()[3]);
+        assertTrue(result.getError().getMessage().contains("6F00"));
+        try {
+            result.getResponsesOrThrow();
+            fail();
+        } catch (Exception e) {
+            assertSame(e, result.getError());
+        }
+    }
+
+    /** Test batch is validated before the first APDU is sent **/
+
+    @Test
+    public void testBatchValidation() {
+        List<byte[]> sentApdus = new ArrayList<>();
+        CardChannelApduRunner runner = new CardChannelApduRunner(new LoopbackCardChannel(apdu -> {
+            sentApdus.add(apdu);
+            return SW_SUCCESS;
+        }));
+        try {
+            runner.sendAPDUBatch(Arrays.asList(GET_SAULT_APDU, null));
+            fail();
+        } catch (Exception e) {
+            assertEquals(e.getMessage(), ERROR_MSG_APDU_EMPTY);
+        }
+        try {
+            runner.sendAPDUBatch(new ArrayList<>());
+            fail();
+        } catch (Exception e) {
+            assertEquals(e.getMessage(), ERROR_MSG_APDU_LIST_EMPTY);
+        }
+        assertTrue(sentApdus.isEmpty());
+    }
+
+    /** Test prefetch: applet state, serial number and sault are read once and dropped after the next APDU **/
+
+    @Test
+    public void testPrefetch() throws Exception {
+        byte[] serialNumber = new byte[24];
+        byte[] sault = new byte[32];
+        random.nextBytes(serialNumber);
+        random.nextBytes(sault);
+        List<byte[]> sentApdus = new ArrayList<>();
+        LoopbackCardChannel channel = new LoopbackCardChannel(apdu -> {
+            sentApdus.add(apdu);
+            if (apdu[1] == (byte) 0xC1) return new byte[]{PERSONALIZED_STATE, (byte) 0x90, 0x00};
+            if (apdu[1] == (byte) 0xC2) return BYTE_ARRAY_HELPER.bConcat(serialNumber, SW_SUCCESS);
+            if (apdu[1] == (byte) 0xBD) return BYTE_ARRAY_HELPER.bConcat(sault, SW_SUCCESS);
+            return SW_SUCCESS;
+        });
+        CardChannelApduRunner runner = new CardChannelApduRunner(channel);
+        runner.startPrefetch();
+        assertArrayEquals(runner.getPrefetchedSerialNumber(), serialNumber);
+        assertArrayEquals(runner.takePrefetchedSault(), sault);
+        assertNull(runner.takePrefetchedSault());
+        assertEquals(sentApdus.size(), 4);
+        runner.sendTonWalletAppletAPDU(GET_SAULT_APDU);
+        assertEquals(sentApdus.size(), 5);
+        assertNull(runner.getPrefetchedSerialNumber());
+    }
+
+    /** Test prefetch does not read serial number if applet state is unknown **/
+
+    @Test
+    public void testPrefetchOfUnknownAppletState() throws Exception {
+        List<byte[]> sentApdus = new ArrayList<>();
+        LoopbackCardChannel channel = new LoopbackCardChannel(apdu -> {
+            sentApdus.add(apdu);
+            if (apdu[1] == (byte) 0xC1) return new byte[]{(byte) 0x55, (byte) 0x90, 0x00};
+            return SW_SUCCESS;
+        });
+        CardChannelApduRunner runner = new CardChannelApduRunner(channel);
+        runner.startPrefetch();
+        assertNull(runner.getPrefetchedSerialNumber());
+        assertEquals(sentApdus.size(), 2);
+        for (byte[] apdu : sentApdus) assertNotEquals(apdu[1], (byte) 0xC2);
+    }
+
+    /** Test prefetch not finished in time is interrupted, and its APDUs do not interleave with APDUs of operation **/
+
+    @Test
+    public void testPrefetchTimeout() throws Exception {
+        CountDownLatch serialNumberRequested = new CountDownLatch(1);
+        CountDownLatch cardReleased = new CountDownLatch(1);
+        List<byte[]> sentApdus = Collections.synchronizedList(new ArrayList<>());
+        LoopbackCardChannel channel = new LoopbackCardChannel(apdu -> {
+            sentApdus.add(apdu);
+            if (apdu[1] == (byte) 0xC1) return new byte[]{PERSONALIZED_STATE, (byte) 0x90, 0x00};
+            if (apdu[1] == (byte) 0xC2) {
+                serialNumberRequested.countDown();
+                cardReleased.await();
+            }
+            return SW_SUCCESS;
+        });
+        CardChannelApduRunner runner = new CardChannelApduRunner(channel);
+        runner.setPrefetchWaitTimeout(100);
+        runner.startPrefetch();
+        assertTrue(serialNumberRequested.await(5, TimeUnit.SECONDS));
+        int prefetchApdus = sentApdus.size();
+        runner.sendAPDU(GET_APP_INFO_APDU);
+        assertEquals(sentApdus.size(), prefetchApdus + 1);
+        assertArrayEquals(sentApdus.get(prefetchApdus), GET_APP_INFO_APDU.getBytes());
+        assertNull(runner.getPrefetchedSerialNumber());
+        assertNull(runner.takePrefetchedSault());
+        try {
+            runner.setPrefetchWaitTimeout(0);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals(e.getMessage(), ERROR_MSG_PREFETCH_WAIT_TIMEOUT_INCORRECT);
+        }
+    }
+
+    /** Test prefetch stuck on previous tag does not block prefetch of new tag, and its late result is thrown away **/
+
+    @Test
+    public void testPrefetchOfPreviousTagIsThrownAway() throws Exception {
+        byte[] oldSerialNumber = new byte[24];
+        byte[] newSerialNumber = new byte[24];
+        random.nextBytes(oldSerialNumber);
+        random.nextBytes(newSerialNumber);
+        CountDownLatch serialNumberRequested = new CountDownLatch(1);
+        CountDownLatch oldTagReleased = new CountDownLatch(1);
+        CountDownLatch oldPrefetchFinished = new CountDownLatch(1);
+        List<byte[]> sentApdus = Collections.synchronizedList(new ArrayList<>());
+        int[] serialNumberRequests = {0};
+        LoopbackCardChannel channel = new LoopbackCardChannel(apdu -> {
+            sentApdus.add(apdu);
+            if (apdu[1] == (byte) 0xC1) return new byte[]{PERSONALIZED_STATE, (byte) 0x90, 0x00};
+            if (apdu[1] == (byte) 0xC2) {
+                synchronized (serialNumberRequests) {
+                    if (serialNumberRequests[0]++ > 0) return BYTE_ARRAY_HELPER.bConcat(newSerialNumber, SW_SUCCESS);
+                }
+                serialNumberRequested.countDown();
+                // transceive is not interrupted by Thread.interrupt
+                while (oldTagReleased.getCount() > 0) {
+                    try {
+                        oldTagReleased.await();
+                    } catch (InterruptedException e) {
+                        // keep waiting
+                    }
+                }
+                return BYTE_ARRAY_HELPER.bConcat(oldSerialNumber, SW_SUCCESS);
+            }
+            return SW_SUCCESS;
+        });
+        CardChannelApduRunner runner = new CardChannelApduRunner(channel);
+        runner.setApduLogger(new ApduLogger() {
+            @Override
+            public boolean isLoggable(Level level) {
+                return level == Level.DEBUG;
+            }
+
+            @Override
+            public void logCommand(CAPDU commandAPDU) {
+            }
+
+            @Override
+            public void logResponse(CAPDU commandAPDU, RAPDU responseAPDU) {
+            }
+
+            @Override
+            public void log(Level level, String msg) {
+                if (msg.contains(ERROR_MSG_PREFETCH_CARD_SESSION_IS_OVER)) oldPrefetchFinished.countDown();
+            }
+        });
+        runner.startPrefetch();
+        assertTrue(serialNumberRequested.await(5, TimeUnit.SECONDS));
+        // new tag is attached
+        runner.resetCardSession();
+        runner.startPrefetch();
+        assertArrayEquals(runner.getPrefetchedSerialNumber(), newSerialNumber);
+        int apdus = sentApdus.size();
+        oldTagReleased.countDown();
+        assertTrue(oldPrefetchFinished.await(5, TimeUnit.SECONDS));
+        assertEquals(sentApdus.size(), apdus);
+        assertArrayEquals(runner.getPrefetchedSerialNumber(), newSerialNumber);
+    }
+
+    /** Test logger gets objects only for enabled levels **/
+
+    @Test
+    public void testApduLogger() throws Exception {
+        List<String> events = new ArrayList<>();
+        ApduLogger.Level[] level = {ApduLogger.Level.NONE};
+        ApduLogger logger = new ApduLogger() {
+            @Override
+            public boolean isLoggable(Level l) {
+                return l != Level.NONE && l.ordinal() <= level[0].ordinal();
+            }
+
+            @Override
+            public void logCommand(CAPDU commandAPDU) {
+                events.add("command");
+            }
+
+            @Override
+            public void logResponse(CAPDU commandAPDU, RAPDU responseAPDU) {
+                events.add("response " + responseAPDU.getSW1());
+            }
+
+            @Override
+            public void log(Level l, String msg) {
+                events.add(msg);
+            }
+        };
+        CardChannelApduRunner runner = new CardChannelApduRunner(new LoopbackCardChannel(apdu ->
+                apdu[1] == (byte) 0xBD ? SW_SUCCESS : new byte[]{0x6F, 0x00}));
+        runner.setApduLogger(logger);
+        runner.sendAPDU(GET_SAULT_APDU);
+        assertTrue(events.isEmpty());
+        level[0] = ApduLogger.Level.ERROR;
+        runner.sendAPDU(GET_SAULT_APDU);
+        try {
+            runner.sendAPDU(GET_APP_INFO_APDU);
+            fail();
+        } catch (Exception e) {
+            assertTrue(e.getMessage().contains("6F00"));
+        }
+        assertEquals(events, Collections.singletonList("response 111"));
+        events.clear();
+        level[0] = ApduLogger.Level.DEBUG;
+        runner.sendAPDU(GET_SAULT_APDU);
+        assertEquals(events, Arrays.asList("command", "response -112"));
+        runner.setApduLogger(null);
+        assertSame(runner.getApduLogger(), ApduLogger.NONE);
+    }
+
+    /** Test SELECT + GET_APP_INFO preamble is skipped while cached applet state is valid **/
+
+    @Test
+    public void testAppletStateCache() throws Exception {
+        List<byte[]> sentApdus = new ArrayList<>();
+        CardChannelApduRunner runner = new CardChannelApduRunner(new LoopbackCardChannel(apdu -> {
+            sentApdus.add(apdu);
+            if (apdu[1] == (byte) 0xC1) return new byte[]{PERSONALIZED_STATE, (byte) 0x90, 0x00};
+            if (apdu[1] == (byte) 0xB8) return new byte[]{0x6F, 0x00};
+            return SW_SUCCESS;
+        }));
+        runner.runWithAppletStateCache(() -> {
+            for (int i = 0; i < 3; i++) runner.sendTonWalletAppletAPDU(GET_SAULT_APDU);
+            return null;
+        });
+        assertEquals(sentApdus.size(), 5);
+        runner.sendTonWalletAppletAPDU(GET_SAULT_APDU);
+        assertEquals(sentApdus.size(), 8);
+
+        runner.setAppletStateCacheEnabled(true);
+        runner.sendTonWalletAppletAPDU(GET_SAULT_APDU);
+        runner.sendTonWalletAppletAPDU(GET_SAULT_APDU);
+        assertEquals(sentApdus.size(), 12);
+        runner.sendTonWalletAppletAPDU(new CAPDU((byte) 0xB0, (byte) 0xBC, (byte) 0x00, (byte) 0x00));
+        assertEquals(sentApdus.size(), 13);
+        runner.sendTonWalletAppletAPDU(GET_SAULT_APDU);
+        assertEquals(sentApdus.size(), 16);
+        try {
+            runner.sendTonWalletAppletAPDU(new CAPDU((byte) 0xB0, (byte) 0xB8, (byte) 0x00, (byte) 0x00, (byte) 0x02));
+            fail();
+        } catch (Exception e) {
+            assertEquals(sentApdus.size(), 17);
+        }
+        runner.sendTonWalletAppletAPDU(GET_SAULT_APDU);
+        assertEquals(sentApdus.size(), 20);
+        runner.sendAPDU(GET_ROOT_KEY_STATUS_APDU);
+        runner.sendTonWalletAppletAPDU(GET_SAULT_APDU);
+        assertEquals(sentApdus.size(), 24);
+        runner.resetCardSession();
+        runner.sendTonWalletAppletAPDU(GET_SAULT_APDU);
+        assertEquals(sentApdus.size(), 27);
+    }
+
+    /** Test card session keeps serial number and applet state until it is closed or card session is reset **/
+
+    @Test
+    public void testCardSession() throws Exception {
+        byte[] serialNumber = new byte[24];
+        List<byte[]> sentApdus = new ArrayList<>();
+        CardChannelApduRunner runner = new CardChannelApduRunner(new LoopbackCardChannel(apdu -> {
+            sentApdus.add(apdu);
+            if (apdu[1] == (byte) 0xC1) return new byte[]{PERSONALIZED_STATE, (byte) 0x90, 0x00};
+            if (apdu[1] == (byte) 0xC2) return BYTE_ARRAY_HELPER.bConcat(serialNumber, SW_SUCCESS);
+            return SW_SUCCESS;
+        }));
+        CardActivationApi cardActivationApi = new CardActivationApi(runner);
+        String serialNumberJson;
+        try (CardSession session = cardActivationApi.openCardSession()) {
+            assertSame(runner.getCardSession(), session);
+            serialNumberJson = cardActivationApi.getSerialNumberAndGetJson();
+            assertEquals(cardActivationApi.getSerialNumberAndGetJson(), serialNumberJson);
+            assertArrayEquals(session.getSerialNumber(), serialNumber);
+            runner.sendTonWalletAppletAPDU(GET_SAULT_APDU);
+            assertEquals(sentApdus.size(), 4);
+            runner.resetCardSession();
+            assertTrue(session.isOpen());
+            assertNull(session.getSerialNumber());
+            assertEquals(cardActivationApi.getSerialNumberAndGetJson(), serialNumberJson);
+            assertEquals(sentApdus.size(), 7);
+        }
+        assertNull(runner.getCardSession());
+        assertEquals(cardActivationApi.getSerialNumberAndGetJson(), serialNumberJson);
+        assertEquals(sentApdus.size(), 10);
+        CardSession session = runner.openCardSession();
+        runner.disconnectCard();
+        assertFalse(session.isOpen());
+        assertNull(runner.getCardSession());
+    }
+}
@@ -0,0 +1,96 @@
+package com.tonnfccard.smartcard;
+
+import com.tonnfccard.loopback.LoopbackCardChannel;
+
+import org.junit.Test;
+
+import static com.tonnfccard.NfcMockHelper.SW_SUCCESS;
+import static com.tonnfccard.helpers.ResponsesConstants.ERROR_MSG_OPERATION_DEADLINE_EXCEEDED;
+import static com.tonnfccard.helpers.ResponsesConstants.ERROR_NFC_CONNECTION_INTERRUPTED;
+import static com.tonnfccard.smartcard.TonWalletAppletApduCommands.GET_SAULT_APDU;
+import static org.junit.Assert.*;
+
+public class CancellationTokenTest {
+
+    @Test
+    public void testCancelWakesUpSleep() throws Exception {
+        CancellationToken token = new CancellationToken();
+        new Thread(() -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException ignored) {
+            }
+            token.cancel();
+        }).start();
+        long start = System.currentTimeMillis();
+        try {
+            token.sleep(10000);
+            fail();
+        } catch (Exception e) {
+            assertEquals(e.getMessage(), ERROR_NFC_CONNECTION_INTERRUPTED);
+        }
+        assertTrue(System.currentTimeMillis() - start < 5000);
+    }
+
+    @Test
+    public void testDeadline() throws Exception {
+        CancellationToken token = CancellationToken.withTimeout(30);
+        assertFalse(token.isDeadlineExceeded());
+        assertTrue(token.getRemainingTime() <= 30);
+        try {
+            token.sleep(10000);
+            fail();
+        } catch (Exception e) {
+            assertEquals(e.getMessage(), ERROR_MSG_OPERATION_DEADLINE_EXCEEDED);
+        }
+        assertTrue(token.isDeadlineExceeded());
+        assertEquals(new CancellationToken().getRemainingTime(), Long.MAX_VALUE);
+    }
+
+    @Test
+    public void testRunnerStopsBeforeNextApdu() throws Exception {
+        CardChannelApduRunner runner = new CardChannelApduRunner(new LoopbackCardChannel(apdu -> SW_SUCCESS));
+        CancellationToken token = new CancellationToken();
+        runner.setCancellationToken(token);
+        runner.sendAPDU(GET_SAULT_APDU);
+        token.cancel();
+        try {
+            runner.sendAPDU(GET_SAULT_APDU);
+            fail();
+        } catch (Exception e) {
+            assertEquals(e.getMessage(), ERROR_NFC_CONNECTION_INTERRUPTED);
+        }
+        runner.setCancellationToken(null);
+        assertFalse(runner.getCancellationToken().isCancelled());
+        runner.sendAPDU(GET_SAULT_APDU);
+    }
+
+    @Test
+    public void testOperationTokenIsBoundToThread() throws Exception {
+        CardChannelApduRunner runner = new CardChannelApduRunner(new LoopbackCardChannel(apdu -> SW_SUCCESS));
+        CancellationToken token = new CancellationToken();
+        token.cancel();
+        Exception[] otherThreadError = new Exception[1];
+        runner.runWithCancellationToken(token, () -> {
+            Thread thread = new Thread(() -> {
+                try {
+                    runner.sendAPDU(GET_SAULT_APDU);
+                } catch (Exception e) {
+                    otherThreadError[0] = e;
+                }
+            });
+            thread.start();
+            thread.join();
+            try {
+                runner.sendAPDU(GET_SAULT_APDU);
+                fail();
+            } catch (Exception e) {
+                assertEquals(e.getMessage(), ERROR_NFC_CONNECTION_INTERRUPTED);
+            }
+            return null;
+        });
+        assertNull(otherThreadError[0]);
+        assertFalse(runner.getCancellationToken().isCancelled());
+        runner.sendAPDU(GET_SAULT_APDU);
+    }
+}
@@ -0,0 +1,212 @@
+package com.tonnfccard.smartcard;
+
+import com.tonnfccard.CardKeyChainApi;
+import com.tonnfccard.helpers.HmacHelper;
+import com.tonnfccard.helpers.InMemoryKeyProvider;
+import com.tonnfccard.loopback.LoopbackCardChannel;
+import com.tonnfccard.utils.ByteArrayUtil;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.tonnfccard.NfcMockHelper.SW_SUCCESS;
+import static com.tonnfccard.TonWalletConstants.PERSONALIZED_STATE;
+import static com.tonnfccard.TonWalletConstants.SAULT_LENGTH;
+import static com.tonnfccard.TonWalletConstants.SHA_HASH_SIZE;
+import static com.tonnfccard.smartcard.TonWalletAppletApduCommands.INS_GET_APP_INFO;
+import static com.tonnfccard.smartcard.TonWalletAppletApduCommands.INS_GET_NUMBER_OF_KEYS;
+import static com.tonnfccard.smartcard.TonWalletAppletApduCommands.INS_GET_SAULT;
+import static com.tonnfccard.smartcard.TonWalletAppletApduCommands.INS_GET_SERIAL_NUMBER;
+import static org.junit.Assert.*;
+
+public class CardIdCacheTest {
+    private static final byte[] CARD_ID = new byte[]{0x04, 0x11, 0x22, 0x33, 0x44, 0x55, 0x66};
+    private static final String SERIAL_NUMBER = "504394802433901126813236";
+    private static final String OTHER_SERIAL_NUMBER = "504394802433901126813237";
+    private static final byte[] NUMBER_OF_KEYS_RESPONSE = new byte[]{0x00, 0x00, (byte) 0x90, 0x00};
+    private static final ByteArrayUtil BYTE_ARRAY_HELPER = ByteArrayUtil.getInstance();
+
+    /** Card simulator with serial number SERIAL_NUMBER checking hmac of GET_NUMBER_OF_KEYS, it may reject valid hmac several times **/
+    private static class CardProcessor implements LoopbackCardChannel.CardProcessor {
+        final HmacHelper cardHmacHelper;
+        final AtomicInteger serialNumberRequests = new AtomicInteger();
+        final AtomicInteger hmacCommands = new AtomicInteger();
+        int hmacRejections;
+
+        CardProcessor(byte[] key, int hmacRejections) throws Exception {
+            InMemoryKeyProvider keyProvider = new InMemoryKeyProvider();
+            keyProvider.setKey(SERIAL_NUMBER, key);
+            cardHmacHelper = HmacHelper.newInstance(keyProvider);
+            cardHmacHelper.setCurrentSerialNumber(SERIAL_NUMBER);
+            this.hmacRejections = hmacRejections;
+        }
+
+        @Override
+        public byte[] process(byte[] apdu) throws Exception {
+            if (apdu[1] == INS_GET_APP_INFO) return new byte[]{PERSONALIZED_STATE, (byte) 0x90, 0x00};
+            if (apdu[1] == INS_GET_SAULT) return BYTE_ARRAY_HELPER.bConcat(new byte[SAULT_LENGTH], SW_SUCCESS);
+            if (apdu[1] == INS_GET_SERIAL_NUMBER) {
+                serialNumberRequests.incrementAndGet();
+                byte[] serialNumber = new byte[SERIAL_NUMBER.length()];
+                for (int i = 0; i < serialNumber.length; i++) serialNumber[i] = (byte) (SERIAL_NUMBER.charAt(i) - '0');
+                return BYTE_ARRAY_HELPER.bConcat(serialNumber, SW_SUCCESS);
+            }
+            if (apdu[1] == INS_GET_NUMBER_OF_KEYS) {
+                hmacCommands.incrementAndGet();
+                byte[] sault = BYTE_ARRAY_HELPER.bSub(apdu, 5, SAULT_LENGTH);
+                byte[] mac = BYTE_ARRAY_HELPER.bSub(apdu, 5 + SAULT_LENGTH, SHA_HASH_SIZE);
+                if (hmacRejections-- > 0 || !Arrays.equals(mac, cardHmacHelper.computeMac(sault))) return new byte[]{(byte) 0x8F, 0x03};
+                return NUMBER_OF_KEYS_RESPONSE;
+            }
+            return SW_SUCCESS;
+        }
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEviction() {
+        CardIdCache cache = new CardIdCache(2);
+        cache.put(new byte[]{0x01}, "1");
+        cache.put(new byte[]{0x02}, "2");
+        assertEquals(cache.getSerialNumber(new byte[]{0x01}), "1");
+        cache.put(new byte[]{0x03}, "3");
+        assertEquals(cache.size(), 2);
+        assertNull(cache.getSerialNumber(new byte[]{0x02}));
+        assertEquals(cache.getSerialNumber(new byte[]{0x01}), "1");
+        assertEquals(cache.getSerialNumber(new byte[]{0x03}), "3");
+        assertNull(cache.getSerialNumber(null));
+    }
+
+    @Test
+    public void testRemoveSerialNumber() {
+        CardIdCache cache = new CardIdCache();
+        cache.put(CARD_ID, SERIAL_NUMBER);
+        cache.put(new byte[]{0x01}, SERIAL_NUMBER);
+        cache.put(new byte[]{0x02}, "2");
+        cache.removeSerialNumber(SERIAL_NUMBER);
+        assertEquals(cache.size(), 1);
+        assertEquals(cache.getSerialNumber(new byte[]{0x02}), "2");
+    }
+
+    @Test
+    public void testEntryIsDroppedWhenHmacIsRejected() throws Exception {
+        CardChannelApduRunner runner = new CardChannelApduRunner(new LoopbackCardChannel(apdu -> new byte[]{(byte) 0x8F, 0x03})) {
+            @Override
+            public byte[] getCardId() {
+                return CARD_ID;
+            }
+        };
+        runner.getCardIdCache().put(CARD_ID, SERIAL_NUMBER);
+        CardSession session = runner.openCardSession();
+        session.setHmacKeySerialNumber(SERIAL_NUMBER);
+        try {
+            runner.sendAPDU(new CAPDU((byte) 0xB0, (byte) 0xB8, (byte) 0x00, (byte) 0x00, (byte) 0x02));
+            fail();
+        } catch (Exception e) {
+            assertNull(runner.getCardIdCache().getSerialNumber(CARD_ID));
+            assertNull(session.getHmacKeySerialNumber());
+        }
+    }
+
+    /** Test known card uses its bound key without reading serial number and looking up the key in keystore **/
+
+    @Test
+    public void testBindingIsUsedWithoutSerialNumberRequest() throws Exception {
+        byte[] key = new byte[SHA_HASH_SIZE];
+        key[0] = 1;
+        CardProcessor card = new CardProcessor(key, 0);
+        CardChannelApduRunner runner = createRunner(card);
+        final AtomicInteger lookups = new AtomicInteger();
+        runner.setHmacHelper(HmacHelper.newInstance(new InMemoryKeyProvider() {
+            @Override
+            public synchronized boolean containsKey(String serialNumber) {
+                lookups.incrementAndGet();
+                return super.containsKey(serialNumber);
+            }
+        }));
+        runner.getHmacHelper().getKeyProvider().setKey(SERIAL_NUMBER, key);
+        runner.getCardIdCache().put(CARD_ID, SERIAL_NUMBER);
+        CardKeyChainApi cardKeyChainApi = new CardKeyChainApi(runner);
+        cardKeyChainApi.getNumberOfKeysAndGetJson();
+        cardKeyChainApi.getNumberOfKeysAndGetJson();
+        assertEquals(card.serialNumberRequests.get(), 0);
+        assertEquals(lookups.get(), 0);
+        assertEquals(card.hmacCommands.get(), 2);
+        assertEquals(runner.getHmacRejectionCount(), 0);
+    }
+
+    /** Test wrong binding of card identifier is dropped when card rejects hmac, and key is resolved by serial number of the card **/
+
+    @Test
+    public void testWrongBindingIsDroppedAfterHmacRejection() throws Exception {
+        byte[] key = new byte[SHA_HASH_SIZE];
+        key[0] = 1;
+        CardProcessor card = new CardProcessor(key, 0);
+        CardChannelApduRunner runner = createRunner(card);
+        InMemoryKeyProvider keyProvider = (InMemoryKeyProvider) runner.getHmacHelper().getKeyProvider();
+        keyProvider.setKey(SERIAL_NUMBER, key);
+        keyProvider.setKey(OTHER_SERIAL_NUMBER, new byte[SHA_HASH_SIZE]);
+        runner.getCardIdCache().put(CARD_ID, OTHER_SERIAL_NUMBER);
+        CardKeyChainApi cardKeyChainApi = new CardKeyChainApi(runner);
+        cardKeyChainApi.getNumberOfKeysAndGetJson();
+        cardKeyChainApi.getNumberOfKeysAndGetJson();
+        assertEquals(card.serialNumberRequests.get(), 1);
+        assertEquals(card.hmacCommands.get(), 3);
+        assertEquals(runner.getHmacRejectionCount(), 1);
+        assertEquals(runner.getCardIdCache().getSerialNumber(CARD_ID), SERIAL_NUMBER);
+    }
+
+    /** Test binding is dropped if HMAC key of its serial number is not in keystore anymore **/
+
+    @Test
+    public void testBindingOfDeletedKeyIsDropped() throws Exception {
+        CardProcessor card = new CardProcessor(new byte[SHA_HASH_SIZE], 0);
+        CardChannelApduRunner runner = createRunner(card);
+        runner.getCardIdCache().put(CARD_ID, SERIAL_NUMBER);
+        try {
+            new CardKeyChainApi(runner).getNumberOfKeysAndGetJson();
+            fail();
+        } catch (Exception e) {
+            assertNull(runner.getCardIdCache().getSerialNumber(CARD_ID));
+        }
+        assertEquals(card.serialNumberRequests.get(), 1);
+        assertEquals(card.hmacCommands.get(), 0);
+    }
+
+    /** Test command rejected by card because of HMAC is sent once more with key resolved again **/
+
+    @Test
+    public void testCommandIsRetriedOnceAfterHmacRejection() throws Exception {
+        byte[] key = new byte[SHA_HASH_SIZE];
+        CardProcessor card = new CardProcessor(key, 1);
+        CardChannelApduRunner runner = createRunner(card);
+        runner.getHmacHelper().getKeyProvider().setKey(SERIAL_NUMBER, key);
+        CardKeyChainApi cardKeyChainApi = new CardKeyChainApi(runner);
+        cardKeyChainApi.getNumberOfKeysAndGetJson();
+        assertEquals(card.hmacCommands.get(), 2);
+        assertEquals(runner.getHmacRejectionCount(), 1);
+        assertEquals(runner.getCardIdCache().getSerialNumber(CARD_ID), SERIAL_NUMBER);
+
+        card.hmacRejections = 2;
+        try {
+            cardKeyChainApi.getNumberOfKeysAndGetJson();
+            fail();
+        } catch (Exception e) {
+            assertTrue(e.getMessage().contains("8F03"));
+        }
+        assertEquals(card.hmacCommands.get(), 4);
+        assertEquals(runner.getHmacRejectionCount(), 3);
+    }
+
+    private CardChannelApduRunner createRunner(CardProcessor card) {
+        CardChannelApduRunner runner = new CardChannelApduRunner(new LoopbackCardChannel(card)) {
+            @Override
+            public byte[] getCardId() {
+                return CARD_ID;
+            }
+        };
+        runner.setHmacHelper(HmacHelper.newInstance(new InMemoryKeyProvider()));
+        return runner;
+    }
+}
@@ -0,0 +1,204 @@
+package com.tonnfccard.smartcard;
+
+import com.tonnfccard.helpers.HmacHelper;
+import com.tonnfccard.helpers.InMemoryKeyProvider;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.security.Key;
+import java.security.Provider;
+import java.security.Security;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.Mac;
+import javax.crypto.MacSpi;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import static com.tonnfccard.TonWalletConstants.DATA_PORTION_MAX_SIZE;
+import static com.tonnfccard.TonWalletConstants.SAULT_LENGTH;
+import static com.tonnfccard.TonWalletConstants.SHA_HASH_SIZE;
+import static com.tonnfccard.helpers.HmacHelper.HMAC_SHA256_ALG;
+import static com.tonnfccard.helpers.ResponsesConstants.ERROR_MSG_KEY_CHUNK_APDU_IS_ALREADY_USED;
+import static com.tonnfccard.helpers.ResponsesConstants.ERROR_MSG_KEY_SIZE_INCORRECT;
+import static com.tonnfccard.smartcard.TonWalletAppletApduCommands.INS_ADD_KEY_CHUNK;
+import static com.tonnfccard.smartcard.TonWalletAppletApduCommands.getSendKeyChunkAPDU;
+import static org.junit.Assert.*;
+
+public class KeyChunkTransferPlanTest {
+    private static final String SERIAL_NUMBER = "504394802433901126813236";
+    private static final String PROVIDER_NAME = "NonCloneableHmac";
+    private static final AtomicInteger initializedMacs = new AtomicInteger();
+
+    // Key which is accepted only by NonCloneableHmacSpi, like keys of AndroidKeyStore
+    public static class NonCloneableKey implements SecretKey {
+        private final byte[] key;
+
+        NonCloneableKey(byte[] key) {
+            this.key = key.clone();
+        }
+
+        @Override
+        public String getAlgorithm() {
+            return HMAC_SHA256_ALG;
+        }
+
+        @Override
+        public String getFormat() {
+            return null;
+        }
+
+        @Override
+        public byte[] getEncoded() {
+            return null;
+        }
+    }
+
+    // Hmac which does not implement Cloneable, so Mac.clone throws CloneNotSupportedException
+    public static class NonCloneableHmacSpi extends MacSpi {
+        private Mac mac;
+
+        @Override
+        protected int engineGetMacLength() {
+            return mac.getMacLength();
+        }
+
+        @Override
+        protected void engineInit(Key key, AlgorithmParameterSpec params) throws java.security.InvalidKeyException {
+            try {
+                mac = Mac.getInstance(HMAC_SHA256_ALG, "SunJCE");
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+            mac.init(new SecretKeySpec(((NonCloneableKey) key).key, HMAC_SHA256_ALG));
+            initializedMacs.incrementAndGet();
+        }
+
+        @Override
+        protected void engineUpdate(byte input) {
+            mac.update(input);
+        }
+
+        @Override
+        protected void engineUpdate(byte[] input, int offset, int len) {
+            mac.update(input, offset, len);
+        }
+
+        @Override
+        protected void engineUpdate(ByteBuffer input) {
+            mac.update(input);
+        }
+
+        @Override
+        protected byte[] engineDoFinal() {
+            return mac.doFinal();
+        }
+
+        @Override
+        protected void engineReset() {
+            mac.reset();
+        }
+    }
+
+    @Test
+    public void testPlanMatchesSendKeyChunkApdus() throws Exception {
+        Random random = new Random(42);
+        byte[] hmacKey = new byte[SHA_HASH_SIZE];
+        random.nextBytes(hmacKey);
+        InMemoryKeyProvider keyProvider = new InMemoryKeyProvider();
+        keyProvider.setKey(SERIAL_NUMBER, hmacKey);
+        HmacHelper hmacHelper = HmacHelper.newInstance(keyProvider);
+        hmacHelper.setCurrentSerialNumber(SERIAL_NUMBER);
+        for (int len : new int[]{1, DATA_PORTION_MAX_SIZE, 550}) {
+            byte[] key = new byte[len];
+            random.nextBytes(key);
+            KeyChunkTransferPlan plan = new KeyChunkTransferPlan(INS_ADD_KEY_CHUNK, key, hmacHelper);
+            int numberOfChunks = (len + DATA_PORTION_MAX_SIZE - 1) / DATA_PORTION_MAX_SIZE;
+            assertEquals(plan.size(), numberOfChunks + 1);
+            for (int i = 0; i < numberOfChunks; i++) {
+                byte[] sault = new byte[SAULT_LENGTH];
+                random.nextBytes(sault);
+                byte[] chunk = new byte[Math.min(DATA_PORTION_MAX_SIZE, len - i * DATA_PORTION_MAX_SIZE)];
+                System.arraycopy(key, i * DATA_PORTION_MAX_SIZE, chunk, 0, chunk.length);
+                assertArrayEquals(plan.getApdu(i, sault).getBytes(),
+                        getSendKeyChunkAPDU(INS_ADD_KEY_CHUNK, i == 0 ? (byte) 0x00 : (byte) 0x01, chunk, sault, hmacHelper).getBytes());
+            }
+            byte[] sault = new byte[SAULT_LENGTH];
+            random.nextBytes(sault);
+            assertArrayEquals(plan.getKeyMac(), hmacHelper.computeMac(key));
+            assertArrayEquals(plan.getApdu(numberOfChunks, sault).getBytes(),
+                    getSendKeyChunkAPDU(INS_ADD_KEY_CHUNK, (byte) 0x02, hmacHelper.computeMac(key), sault, hmacHelper).getBytes());
+        }
+    }
+
+    @Test
+    public void testOnlyFewMacsArePreparedIfMacIsNotCloneable() throws Exception {
+        Provider provider = new Provider(PROVIDER_NAME, 1.0, "Hmac without clone support") {};
+        provider.put("Mac." + HMAC_SHA256_ALG, NonCloneableHmacSpi.class.getName());
+        provider.put("Mac." + HMAC_SHA256_ALG + " SupportedKeyClasses", NonCloneableKey.class.getName());
+        Security.insertProviderAt(provider, 1);
+        try {
+            Random random = new Random(42);
+            byte[] hmacKey = new byte[SHA_HASH_SIZE];
+            random.nextBytes(hmacKey);
+            final NonCloneableKey nonCloneableKey = new NonCloneableKey(hmacKey);
+            InMemoryKeyProvider keyProvider = new InMemoryKeyProvider() {
+                @Override
+                public synchronized SecretKey getKey(String serialNumber) {
+                    return super.getKey(serialNumber) == null ? null : nonCloneableKey;
+                }
+            };
+            keyProvider.setKey(SERIAL_NUMBER, hmacKey);
+            HmacHelper hmacHelper = HmacHelper.newInstance(keyProvider);
+            hmacHelper.setCurrentSerialNumber(SERIAL_NUMBER);
+            InMemoryKeyProvider referenceKeyProvider = new InMemoryKeyProvider();
+            referenceKeyProvider.setKey(SERIAL_NUMBER, hmacKey);
+            HmacHelper referenceHmacHelper = HmacHelper.newInstance(referenceKeyProvider);
+            referenceHmacHelper.setCurrentSerialNumber(SERIAL_NUMBER);
+            assertFalse(hmacHelper.isMacCloneable());
+            assertTrue(referenceHmacHelper.isMacCloneable());
+
+            byte[] key = new byte[20 * DATA_PORTION_MAX_SIZE];
+            random.nextBytes(key);
+            initializedMacs.set(0);
+            KeyChunkTransferPlan plan = new KeyChunkTransferPlan(INS_ADD_KEY_CHUNK, key, hmacHelper);
+            assertEquals(plan.getNumberOfPendingMacs(), KeyChunkTransferPlan.MAX_PREPARED_AHEAD);
+            assertEquals(new KeyChunkTransferPlan(INS_ADD_KEY_CHUNK, key, referenceHmacHelper).getNumberOfPendingMacs(), plan.size());
+            for (int i = 0; i < plan.size(); i++) {
+                byte[] sault = new byte[SAULT_LENGTH];
+                random.nextBytes(sault);
+                byte[] data = i == plan.size() - 1 ? referenceHmacHelper.computeMac(key)
+                        : Arrays.copyOfRange(key, i * DATA_PORTION_MAX_SIZE, (i + 1) * DATA_PORTION_MAX_SIZE);
+                byte p1 = i == 0 ? (byte) 0x00 : i == plan.size() - 1 ? (byte) 0x02 : (byte) 0x01;
+                assertArrayEquals(plan.getApdu(i, sault).getBytes(),
+                        getSendKeyChunkAPDU(INS_ADD_KEY_CHUNK, p1, data, sault, referenceHmacHelper).getBytes());
+                assertTrue(plan.getNumberOfPendingMacs() <= KeyChunkTransferPlan.MAX_PREPARED_AHEAD);
+            }
+            assertEquals(plan.getNumberOfPendingMacs(), 0);
+            // Hmac of each command and of the whole key, each of them is a separate Mac since it can not be cloned
+            assertTrue(initializedMacs.get() <= plan.size() + 2);
+            try {
+                plan.getApdu(0, new byte[SAULT_LENGTH]);
+                fail();
+            } catch (IllegalStateException e) {
+                assertEquals(e.getMessage(), ERROR_MSG_KEY_CHUNK_APDU_IS_ALREADY_USED);
+            }
+        } finally {
+            Security.removeProvider(PROVIDER_NAME);
+        }
+    }
+
+    @Test
+    public void testEmptyKey() throws Exception {
+        try {
+            new KeyChunkTransferPlan(INS_ADD_KEY_CHUNK, new byte[0], HmacHelper.newInstance(new InMemoryKeyProvider()));
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals(e.getMessage(), ERROR_MSG_KEY_SIZE_INCORRECT);
+        }
+    }
+}
@@ -6,8 +6,11 @@ import org.junit.Test;
 import java.util.Random;
 
 import static com.tonnfccard.helpers.ResponsesConstants.ERROR_MSG_APDU_DATA_FIELD_LEN_INCORRECT;
+import static com.tonnfccard.helpers.ResponsesConstants.ERROR_MSG_APDU_LE_INCORRECT;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 public class CAPDUTest {
@@ -167,4 +170,72 @@ public class CAPDUTest {
         }
     }
 
-}
\ No newline at end of file
+    @Test
+    public void CAPDUExtendedTest1() {
+        byte cla = (byte) 0xB0;
+        byte ins = (byte) 0xA1;
+        byte p1 = 0x0A;
+        byte p2 = 0x0B;
+        for (int le : new int[]{0x00, 0x01, 0xFF, 0x100, 0x1234, 0xFFFF}) {
+            CAPDU capdu = CAPDU.createExtended(cla, ins, p1, p2, le);
+            assertTrue(capdu.isExtended());
+            assertArrayEquals(new byte[]{cla, ins, p1, p2, 0x00, (byte) (le >> 8), (byte) le}, capdu.getBytes());
+            assertEquals(capdu.getLc(), 0x00);
+            assertEquals(capdu.getData().length, 0x00);
+            assertEquals(capdu.getLe(), le);
+        }
+    }
+
+    @Test
+    public void CAPDUExtendedTest2() {
+        byte cla = (byte) 0xB0;
+        byte ins = (byte) 0xA1;
+        byte p1 = 0x0A;
+        byte p2 = 0x0B;
+        Random random = new Random();
+        for (int len : new int[]{1, 255, 256, 1000, CAPDU.MAX_EXTENDED_DATA_LEN}) {
+            byte[] dataField = new byte[len];
+            random.nextBytes(dataField);
+            CAPDU capdu = CAPDU.createExtended(cla, ins, p1, p2, dataField);
+            assertTrue(capdu.isExtended());
+            assertEquals(capdu.getBytes().length, len + 7);
+            assertEquals(capdu.getLc(), len);
+            assertArrayEquals(capdu.getData(), dataField);
+            assertEquals(capdu.getLe(), -1);
+
+            capdu = CAPDU.createExtended(cla, ins, p1, p2, dataField, 0x0102);
+            assertTrue(capdu.isExtended());
+            assertEquals(capdu.getBytes().length, len + 9);
+            assertEquals(capdu.getLc(), len);
+            assertArrayEquals(capdu.getData(), dataField);
+            assertEquals(capdu.getLe(), 0x0102);
+        }
+        assertEquals(CAPDU.createExtended(cla, ins, p1, p2, new byte[]{0x01, 0x02}, 0x0300).getFormattedApdu().toString(), "B0 A1 0A 0B 00 0002 0102 0300 ");
+        assertFalse(new CAPDU(cla, ins, p1, p2, new byte[]{0x01, 0x02}, (byte) 0x00).isExtended());
+    }
+
+    @Test
+    public void CAPDUExtendedTest3() {
+        byte cla = (byte) 0xB0;
+        byte ins = (byte) 0xA1;
+        byte p1 = 0x0A;
+        byte p2 = 0x0B;
+        for (byte[] dataField : new byte[][]{null, new byte[0], new byte[CAPDU.MAX_EXTENDED_DATA_LEN + 1]}) {
+            try {
+                CAPDU.createExtended(cla, ins, p1, p2, dataField);
+                fail();
+            } catch (IllegalArgumentException e) {
+                assertEquals(e.getMessage(), ERROR_MSG_APDU_DATA_FIELD_LEN_INCORRECT);
+            }
+        }
+        for (int le : new int[]{-1, CAPDU.MAX_EXTENDED_LE + 1}) {
+            try {
+                CAPDU.createExtended(cla, ins, p1, p2, le);
+                fail();
+            } catch (IllegalArgumentException e) {
+                assertEquals(e.getMessage(), ERROR_MSG_APDU_LE_INCORRECT);
+            }
+        }
+    }
+
+}